@@ -0,0 +1,74 @@
+package android.os;
+
+import java.util.ArrayList;
+
+/**
+ * Stand-in for the framework Handler on a plain JVM, where {@link MessageQueue} has no native half to
+ * construct a Looper with. Posted runnables are only recorded, the benchmarks flush what they measure
+ * themselves, so scheduling costs a list insert instead of the pooled Message of the real queue.
+ */
+public class Handler {
+  private final ArrayList<Runnable> mCallbacks = new ArrayList<>();
+  private final ArrayList<Object> mTokens = new ArrayList<>();
+
+  public Handler() {
+  }
+
+  public Handler(Looper looper) {
+  }
+
+  public final boolean post(Runnable r) {
+    return postAtTime(r, null, 0);
+  }
+
+  public final boolean postDelayed(Runnable r, long delayMillis) {
+    return postAtTime(r, null, 0);
+  }
+
+  public final boolean postAtTime(Runnable r, long uptimeMillis) {
+    return postAtTime(r, null, uptimeMillis);
+  }
+
+  public final synchronized boolean postAtTime(Runnable r, Object token, long uptimeMillis) {
+    mCallbacks.add(r);
+    mTokens.add(token);
+    return true;
+  }
+
+  public final synchronized void removeCallbacks(Runnable r) {
+    for (int i = mCallbacks.size() - 1; i >= 0; i--) {
+      if (mCallbacks.get(i) == r) {
+        mCallbacks.remove(i);
+        mTokens.remove(i);
+      }
+    }
+  }
+
+  public final synchronized void removeCallbacksAndMessages(Object token) {
+    for (int i = mCallbacks.size() - 1; i >= 0; i--) {
+      if (token == null || mTokens.get(i) == token) {
+        mCallbacks.remove(i);
+        mTokens.remove(i);
+      }
+    }
+  }
+
+  /**
+   * Run everything posted so far, in order.
+   */
+  public final void runPending() {
+    Runnable[] callbacks;
+    synchronized (this) {
+      callbacks = mCallbacks.toArray(new Runnable[0]);
+      mCallbacks.clear();
+      mTokens.clear();
+    }
+    for (Runnable callback : callbacks) {
+      callback.run();
+    }
+  }
+
+  public final Looper getLooper() {
+    return null;
+  }
+}
@@ -0,0 +1,22 @@
+package dalvik.system;
+
+import java.lang.reflect.Array;
+
+/**
+ * Stand-in for ART's runtime on a plain JVM, for the collections the framework parses advertisements into.
+ * There is no allocator padding to make use of, so unpadded arrays are plain ones.
+ */
+public final class VMRuntime {
+  private static final VMRuntime RUNTIME = new VMRuntime();
+
+  private VMRuntime() {
+  }
+
+  public static VMRuntime getRuntime() {
+    return RUNTIME;
+  }
+
+  public Object newUnpaddedArray(Class<?> componentType, int minLength) {
+    return Array.newInstance(componentType, minLength);
+  }
+}
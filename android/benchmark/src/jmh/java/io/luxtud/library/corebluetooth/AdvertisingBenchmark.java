@@ -0,0 +1,68 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.le.ScanRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Walking the raw AD structures of one advertisement with the flyweight cursor, against the platform's
+ * {@link ScanRecord} parser that builds maps and arrays for every packet.
+ */
+@State(Scope.Thread)
+public class AdvertisingBenchmark {
+  private static final int PACKETS = 256;
+
+  private byte[][] mPackets;
+  private AdvertisingCursor mCursor;
+  private int mIndex;
+
+  @Setup
+  public void setup() {
+    mPackets = new byte[PACKETS][];
+    for (int i = 0; i < PACKETS; i++) {
+      mPackets[i] = Synthetic.advertisement(i, i * 7);
+    }
+    mCursor = new AdvertisingCursor();
+  }
+
+  private byte[] next() {
+    int index = mIndex;
+    mIndex = (index + 1) & (PACKETS - 1);
+    return mPackets[index];
+  }
+
+  @Benchmark
+  public int cursorAllFields() {
+    int hash = 0;
+    AdvertisingCursor cursor = mCursor.reset(next());
+    while (cursor.next(AdvertisingCursor.FIELD_ALL)) {
+      hash = 31 * hash + cursor.type * cursor.length;
+    }
+    return hash;
+  }
+
+  @Benchmark
+  public int cursorManufacturerData() {
+    AdvertisingCursor cursor = mCursor.reset(next());
+    while (cursor.next(AdvertisingCursor.FIELD_MANUFACTURER_DATA)) {
+      if (cursor.getCompanyId() == Synthetic.COMPANY_ID) {
+        return cursor.getUint16(4);
+      }
+    }
+    return -1;
+  }
+
+  @Benchmark
+  public ScanRecord scanRecordParse() {
+    return ScanRecord.parseFromBytes(next());
+  }
+
+  @Benchmark
+  public int scanRecordManufacturerData() {
+    byte[] data = ScanRecord.parseFromBytes(next()).getManufacturerSpecificData(Synthetic.COMPANY_ID);
+    return data != null ? (data[2] & 0xff | (data[3] & 0xff) << 8) : -1;
+  }
+}
@@ -0,0 +1,148 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.PromiseImpl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Bookkeeping the queue adds around every GATT operation: enqueue, start, timeout scheduling, matching the
+ * completion and resolving, against a connection that accepts everything instantly. Scores are per operation.
+ */
+@State(Scope.Thread)
+public class GattQueueBenchmark {
+  private static final int PIPELINED = 16;
+
+  @Param({"false", "true"})
+  public boolean metrics;
+
+  private BluetoothGattCharacteristic mCharacteristic;
+  private byte[] mValue;
+  private Promise mPromise;
+  private GattCommand.Operation mRead;
+  private GattQueue mQueue;
+
+  @Setup
+  public void setup() {
+    mCharacteristic = Synthetic.characteristic();
+    mValue = Synthetic.payload(20, 3);
+    mPromise = new PromiseImpl(null, null);
+    mRead = gatt -> gatt.readCharacteristic(mCharacteristic);
+    GattMetrics gattMetrics = metrics ? new GattMetrics(new GattMetrics(null)) : null;
+    mQueue = new GattQueue(new ImmediateConnection(), new Handler(), gattMetrics);
+  }
+
+  private GattCommand createRead() {
+    return new GattCommand(
+      GattCommand.READ_CHARACTERISTIC,
+      mCharacteristic,
+      mPromise,
+      mRead,
+      "E_BLUETOOTH_READ",
+      "Failed to read characteristic."
+    );
+  }
+
+  private void completeRead() {
+    GattCommand command = mQueue.complete(GattCommand.READ_CHARACTERISTIC, mCharacteristic);
+    command.promise.resolve(PayloadCodec.encode(mValue));
+  }
+
+  @Benchmark
+  public void single() {
+    mQueue.enqueue(createRead());
+    completeRead();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PIPELINED)
+  public void pipelined() {
+    for (int i = 0; i < PIPELINED; i++) {
+      mQueue.enqueue(createRead());
+    }
+    for (int i = 0; i < PIPELINED; i++) {
+      completeRead();
+    }
+  }
+
+  /**
+   * Starts every operation, completions are driven by the benchmark.
+   */
+  private static final class ImmediateConnection implements GattConnection {
+    @Override
+    public boolean discoverServices() {
+      return true;
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public BluetoothGattService getService(UUID uuid) {
+      return null;
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+      return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, int writeType) {
+      return true;
+    }
+
+    @Override
+    public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+      return true;
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+      return true;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+      return true;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+      return true;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+      return true;
+    }
+
+    @Override
+    public void setPreferredPhy(int txPhy, int rxPhy, int phyOptions) {
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package io.luxtud.library.corebluetooth;
+
+import android.os.Handler;
+
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+
+/**
+ * Notification values from the GATT callback to the event handed to the bridge: buffering into the
+ * subscription rings, one dispatcher flush per window and the event built like emitNotifications does.
+ * The event uses the Java-only bridge collections, the JNI copy of the native ones is not measured.
+ * Scores are per notification.
+ */
+@State(Scope.Thread)
+public class NotificationBenchmark {
+  private static final int VALUES_PER_FLUSH = 64;
+
+  @Param({"1", "8"})
+  public int subscriptions;
+
+  @Param({"20", "244"})
+  public int payloadSize;
+
+  private NotificationSubscription[] mSubscriptions;
+  private byte[][] mPayloads;
+  private Handler mHandler;
+  private NotificationDispatcher mDispatcher;
+  private Blackhole mBlackhole;
+
+  @Setup
+  public void setup(Blackhole blackhole) {
+    mBlackhole = blackhole;
+    mSubscriptions = new NotificationSubscription[subscriptions];
+    for (int i = 0; i < subscriptions; i++) {
+      mSubscriptions[i] = new NotificationSubscription(
+        i,
+        Synthetic.address(i),
+        Synthetic.characteristic(),
+        NotificationSubscription.DEFAULT_CAPACITY,
+        NotificationSubscription.POLICY_DROP_OLDEST
+      );
+    }
+    mPayloads = new byte[VALUES_PER_FLUSH][];
+    for (int i = 0; i < VALUES_PER_FLUSH; i++) {
+      mPayloads[i] = Synthetic.payload(payloadSize, i);
+    }
+    mHandler = new Handler();
+    mDispatcher = new NotificationDispatcher(mHandler, this::emit);
+  }
+
+  private void emit(List<NotificationSubscription> subscriptions) {
+    WritableArray batch = new JavaOnlyArray();
+    for (int i = 0; i < subscriptions.size(); i++) {
+      NotificationSubscription subscription = subscriptions.get(i);
+      WritableArray timestamps = new JavaOnlyArray();
+      WritableArray values = new JavaOnlyArray();
+      int count = subscription.drain((timestamp, value, length) -> {
+        timestamps.pushDouble(timestamp);
+        values.pushString(PayloadCodec.encode(value, 0, length));
+      });
+      if (count == 0) {
+        continue;
+      }
+
+      WritableMap map = new JavaOnlyMap();
+      map.putInt("subscriptionId", subscription.id);
+      map.putString("identifier", subscription.identifier);
+      map.putString("serviceUuid", subscription.serviceUuid);
+      map.putString("uuid", subscription.uuid);
+      map.putArray("timestamps", timestamps);
+      map.putArray("values", values);
+      map.putDouble("dropped", subscription.getDroppedBeforeDrain());
+      map.putDouble("totalDelivered", subscription.getDelivered());
+      map.putDouble("totalDropped", subscription.getDropped());
+      batch.pushMap(map);
+    }
+    mBlackhole.consume(batch);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES_PER_FLUSH)
+  public void bufferAndFlush() {
+    long timestamp = System.currentTimeMillis();
+    for (int i = 0; i < VALUES_PER_FLUSH; i++) {
+      mDispatcher.onValue(mSubscriptions[i % subscriptions], timestamp + i, mPayloads[i]);
+    }
+    mDispatcher.flush();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES_PER_FLUSH)
+  public void buffer() {
+    long timestamp = System.currentTimeMillis();
+    for (int i = 0; i < VALUES_PER_FLUSH; i++) {
+      mSubscriptions[i % subscriptions].add(timestamp + i, mPayloads[i]);
+    }
+    // only drain, so the ring never overflows and the cost of building the event stays out
+    for (int i = 0; i < subscriptions; i++) {
+      mSubscriptions[i].drain((t, value, length) -> { });
+    }
+  }
+}
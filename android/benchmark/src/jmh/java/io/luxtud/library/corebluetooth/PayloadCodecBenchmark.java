@@ -0,0 +1,43 @@
+package io.luxtud.library.corebluetooth;
+
+import android.util.Base64;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Base64 encoding of payloads for the bridge, against the platform encoder it replaced, and decoding of
+ * values written from js.
+ */
+@State(Scope.Thread)
+public class PayloadCodecBenchmark {
+  @Param({"20", "244", "512"})
+  public int payloadSize;
+
+  private byte[] mPayload;
+  private String mEncoded;
+
+  @Setup
+  public void setup() {
+    mPayload = Synthetic.payload(payloadSize, 7);
+    mEncoded = PayloadCodec.encode(mPayload);
+  }
+
+  @Benchmark
+  public String encode() {
+    return PayloadCodec.encode(mPayload, 0, mPayload.length);
+  }
+
+  @Benchmark
+  public String encodePlatform() {
+    return Base64.encodeToString(mPayload, Base64.NO_WRAP);
+  }
+
+  @Benchmark
+  public byte[] decode() {
+    return PayloadCodec.decode(mEncoded);
+  }
+}
@@ -0,0 +1,83 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.le.ScanResult;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+
+/**
+ * Per-result cost of the scan callback path: the software filter that runs on the callback thread, and the
+ * registry lookup plus change filter that decide whether a device is forwarded to js.
+ */
+@State(Scope.Thread)
+public class ScanPathBenchmark {
+  private static final int RESULTS = 4096;
+
+  @Param({"64", "1024"})
+  public int devices;
+
+  private ScanResult[] mResults;
+  private String[] mAddresses;
+  private ScanFilterEngine mFilterEngine;
+  private DeviceRegistry mRegistry;
+  private ScanChangeFilter mChangeFilter;
+  private int mIndex;
+  private long mNow;
+
+  @Setup
+  public void setup() {
+    mResults = Synthetic.scanResults(devices, RESULTS, 42);
+    mAddresses = Synthetic.addresses(devices, RESULTS);
+
+    ScanFilterEngine.Rule rule = new ScanFilterEngine.Rule();
+    rule.companyId = Synthetic.COMPANY_ID;
+    rule.prefix = Synthetic.PREFIX;
+    rule.rssiFloor = -90;
+    mFilterEngine = new ScanFilterEngine();
+    mFilterEngine.setRules(Collections.singletonList(rule));
+
+    mRegistry = new DeviceRegistry();
+    mChangeFilter = new ScanChangeFilter();
+    mChangeFilter.configure(
+      true,
+      ScanChangeFilter.DEFAULT_RSSI_DELTA,
+      ScanChangeFilter.DEFAULT_RSSI_SMOOTHING,
+      ScanChangeFilter.DEFAULT_HEARTBEAT_MS
+    );
+  }
+
+  private int next() {
+    int index = mIndex;
+    mIndex = (index + 1) & (RESULTS - 1);
+    // an advertisement every millisecond, so heartbeats and the registry TTL come around during a run
+    mNow++;
+    return index;
+  }
+
+  private boolean forward(int index) {
+    long address = DeviceRegistry.parseAddress(mAddresses[index]);
+    DeviceRegistry.Entry entry = mRegistry.obtain(address, null, mNow);
+    return mChangeFilter.accept(entry, mResults[index], mNow);
+  }
+
+  @Benchmark
+  public boolean filter() {
+    return mFilterEngine.accept(mResults[next()]);
+  }
+
+  @Benchmark
+  public boolean dedup() {
+    return forward(next());
+  }
+
+  @Benchmark
+  public boolean filterAndDedup() {
+    int index = next();
+    return mFilterEngine.accept(mResults[index]) && forward(index);
+  }
+}
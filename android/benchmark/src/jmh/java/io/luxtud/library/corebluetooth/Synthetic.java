@@ -0,0 +1,121 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Deterministic advertisements, scan results and payloads shaped like a busy environment:
+ * sensors with a name, TX power, manufacturer data and service data, half of them from a company the
+ * benchmarks filter for, and a payload counter that only changes every few advertisements.
+ */
+final class Synthetic {
+  static final int COMPANY_ID = 0x0059;
+  static final int OTHER_COMPANY_ID = 0x0006;
+  // AltBeacon's beacon code, with the high bit set like most real payload bytes
+  static final byte[] PREFIX = {(byte) 0xbe, (byte) 0xac};
+
+  static final UUID SERVICE_UUID = UUID.fromString("0000181a-0000-1000-8000-00805f9b34fb");
+  static final UUID CHARACTERISTIC_UUID = UUID.fromString("00002a6e-0000-1000-8000-00805f9b34fb");
+
+  // advertisements per device between two payload changes
+  static final int CHANGE_EVERY = 8;
+
+  private Synthetic() {
+  }
+
+  static String address(int device) {
+    return String.format("C0:10:00:00:%02X:%02X", (device >> 8) & 0xff, device & 0xff);
+  }
+
+  /**
+   * Raw AD structures as {@link ScanRecord#getBytes()} returns them.
+   */
+  static byte[] advertisement(int device, int counter) {
+    byte[] name = String.format("Sensor-%04d", device).getBytes(StandardCharsets.US_ASCII);
+    int companyId = device % 2 == 0 ? COMPANY_ID : OTHER_COMPANY_ID;
+    byte[] bytes = new byte[3 + 2 + name.length + 3 + 12 + 6];
+    int i = 0;
+    // flags
+    bytes[i++] = 2;
+    bytes[i++] = 0x01;
+    bytes[i++] = 0x06;
+    // complete local name
+    bytes[i++] = (byte) (name.length + 1);
+    bytes[i++] = 0x09;
+    System.arraycopy(name, 0, bytes, i, name.length);
+    i += name.length;
+    // tx power level
+    bytes[i++] = 2;
+    bytes[i++] = 0x0a;
+    bytes[i++] = (byte) -12;
+    // manufacturer data, company id little endian, then prefix, device and counter
+    bytes[i++] = 11;
+    bytes[i++] = (byte) 0xff;
+    bytes[i++] = (byte) companyId;
+    bytes[i++] = (byte) (companyId >> 8);
+    bytes[i++] = PREFIX[0];
+    bytes[i++] = PREFIX[1];
+    bytes[i++] = (byte) device;
+    bytes[i++] = (byte) (device >> 8);
+    bytes[i++] = (byte) counter;
+    bytes[i++] = (byte) (counter >> 8);
+    bytes[i++] = (byte) (counter >> 16);
+    bytes[i++] = (byte) (counter >> 24);
+    // 16-bit service data of the environmental sensing service
+    bytes[i++] = 5;
+    bytes[i++] = 0x16;
+    bytes[i++] = 0x1a;
+    bytes[i++] = 0x18;
+    bytes[i++] = (byte) (2000 + counter);
+    bytes[i] = (byte) ((2000 + counter) >> 8);
+    return bytes;
+  }
+
+  /**
+   * Results of {@code devices} devices advertising in turn, {@code count} in total.
+   * The device of result i is {@code i % devices}.
+   */
+  static ScanResult[] scanResults(int devices, int count, long seed) {
+    Random random = new Random(seed);
+    ScanResult[] results = new ScanResult[count];
+    for (int i = 0; i < count; i++) {
+      int device = i % devices;
+      int counter = i / devices / CHANGE_EVERY;
+      // the RSSI wanders by a few dBm, below the change filter's default delta
+      int rssi = -60 - device % 20 + random.nextInt(5) - 2;
+      results[i] = new ScanResult(null, ScanRecord.parseFromBytes(advertisement(device, counter)), rssi, i * 1000000L);
+    }
+    return results;
+  }
+
+  static String[] addresses(int devices, int count) {
+    String[] addresses = new String[count];
+    for (int i = 0; i < count; i++) {
+      addresses[i] = address(i % devices);
+    }
+    return addresses;
+  }
+
+  static byte[] payload(int length, long seed) {
+    byte[] payload = new byte[length];
+    new Random(seed).nextBytes(payload);
+    return payload;
+  }
+
+  static BluetoothGattCharacteristic characteristic() {
+    BluetoothGattService service = new BluetoothGattService(SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+    BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+      CHARACTERISTIC_UUID,
+      BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_READ,
+      BluetoothGattCharacteristic.PERMISSION_READ
+    );
+    service.addCharacteristic(characteristic);
+    return characteristic;
+  }
+}
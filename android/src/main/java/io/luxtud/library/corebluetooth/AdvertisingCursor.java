@@ -0,0 +1,192 @@
+package io.luxtud.library.corebluetooth;
+
+import androidx.annotation.Nullable;
+
+import java.util.UUID;
+
+/**
+ * Flyweight cursor over the raw AD structures of an advertisement, as returned by
+ * {@link android.bluetooth.le.ScanRecord#getBytes()}.
+ * <p>
+ * The cursor only keeps offsets into the packet, so walking it allocates nothing and a single instance
+ * can be reset for every packet. Fields are the groups of AD types an app can subscribe to.
+ */
+final class AdvertisingCursor {
+  static final int TYPE_FLAGS = 0x01;
+  static final int TYPE_SHORT_NAME = 0x08;
+  static final int TYPE_COMPLETE_NAME = 0x09;
+  static final int TYPE_TX_POWER = 0x0a;
+  static final int TYPE_SERVICE_DATA_16 = 0x16;
+  static final int TYPE_SERVICE_DATA_32 = 0x20;
+  static final int TYPE_SERVICE_DATA_128 = 0x21;
+  static final int TYPE_MANUFACTURER_DATA = 0xff;
+
+  static final int FIELD_NAME = 1;
+  static final int FIELD_TX_POWER = 1 << 1;
+  static final int FIELD_MANUFACTURER_DATA = 1 << 2;
+  static final int FIELD_SERVICE_DATA = 1 << 3;
+  static final int FIELD_FLAGS = 1 << 4;
+  static final int FIELD_ALL = FIELD_NAME | FIELD_TX_POWER | FIELD_MANUFACTURER_DATA | FIELD_SERVICE_DATA | FIELD_FLAGS;
+  // what 'FoundBLEDevice' always carried
+  static final int DEFAULT_FIELDS = FIELD_NAME | FIELD_TX_POWER | FIELD_MANUFACTURER_DATA;
+
+  private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+  private byte[] mBytes;
+  private int mEnd;
+  private int mNext;
+
+  // current structure
+  int type;
+  // index of the structure's length byte
+  int start;
+  // index and length of the structure's data
+  int offset;
+  int length;
+
+  AdvertisingCursor reset(@Nullable byte[] bytes) {
+    mBytes = bytes;
+    mEnd = bytes != null ? bytes.length : 0;
+    mNext = 0;
+    type = 0;
+    start = 0;
+    offset = 0;
+    length = 0;
+    return this;
+  }
+
+  byte[] bytes() {
+    return mBytes;
+  }
+
+  /**
+   * Move to the next AD structure, returns false at the end of the significant part or at a truncated structure.
+   */
+  boolean next() {
+    if (mNext >= mEnd) {
+      return false;
+    }
+    int size = mBytes[mNext] & 0xff;
+    // a zero length starts the non-significant padding
+    if (size == 0 || mNext + 1 + size > mEnd) {
+      mNext = mEnd;
+      return false;
+    }
+    start = mNext;
+    type = mBytes[mNext + 1] & 0xff;
+    offset = mNext + 2;
+    length = size - 1;
+    mNext += size + 1;
+    return true;
+  }
+
+  /**
+   * Move to the next AD structure that belongs to one of the given fields.
+   */
+  boolean next(int fields) {
+    while (next()) {
+      if ((fieldOf(type) & fields) != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static int fieldOf(int type) {
+    switch (type) {
+      case TYPE_FLAGS:
+        return FIELD_FLAGS;
+      case TYPE_SHORT_NAME:
+      case TYPE_COMPLETE_NAME:
+        return FIELD_NAME;
+      case TYPE_TX_POWER:
+        return FIELD_TX_POWER;
+      case TYPE_SERVICE_DATA_16:
+      case TYPE_SERVICE_DATA_32:
+      case TYPE_SERVICE_DATA_128:
+        return FIELD_SERVICE_DATA;
+      case TYPE_MANUFACTURER_DATA:
+        return FIELD_MANUFACTURER_DATA;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * Whole structure size including its length and type bytes.
+   */
+  int size() {
+    return length + 2;
+  }
+
+  int getUint8(int index) {
+    return mBytes[offset + index] & 0xff;
+  }
+
+  int getInt8(int index) {
+    return mBytes[offset + index];
+  }
+
+  int getUint16(int index) {
+    return (mBytes[offset + index] & 0xff) | (mBytes[offset + index + 1] & 0xff) << 8;
+  }
+
+  /**
+   * Company identifier of a manufacturer data structure, or -1 when it is too short to carry one.
+   */
+  int getCompanyId() {
+    return length >= 2 ? getUint16(0) : -1;
+  }
+
+  /**
+   * Length of the uuid that prefixes a service data structure.
+   */
+  int getServiceUuidLength() {
+    switch (type) {
+      case TYPE_SERVICE_DATA_16:
+        return 2;
+      case TYPE_SERVICE_DATA_32:
+        return 4;
+      default:
+        return 16;
+    }
+  }
+
+  @Nullable
+  UUID getServiceDataUuid() {
+    int uuidLength = getServiceUuidLength();
+    if (length < uuidLength) {
+      return null;
+    }
+    if (uuidLength == 16) {
+      return new UUID(getLong(8), getLong(0));
+    }
+    long value = uuidLength == 2 ? getUint16(0) : (getUint16(0) | (long) getUint16(2) << 16);
+    return new UUID(value << 32 | 0x1000L, BASE_UUID_LSB);
+  }
+
+  /**
+   * Compare the current structure with size() bytes of another buffer.
+   */
+  boolean regionEquals(byte[] other, int otherOffset) {
+    int size = size();
+    if (otherOffset + size > other.length) {
+      return false;
+    }
+    for (int i = 0; i < size; i++) {
+      if (mBytes[start + i] != other[otherOffset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // little endian, as all multi-byte AD values
+  private long getLong(int index) {
+    long value = 0;
+    for (int i = 7; i >= 0; i--) {
+      value = value << 8 | (mBytes[offset + index + i] & 0xff);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,20 @@
+package io.luxtud.library.corebluetooth;
+
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Turns one AD structure of a known format into typed fields for scan events.
+ * <p>
+ * Decoders are offered every manufacturer and service data structure of a forwarded advertisement
+ * and must reject foreign ones with cheap primitive checks on the cursor before allocating anything.
+ */
+interface AdvertisingDecoder {
+  /**
+   * Decode the cursor's current structure into a map with at least a 'type' key,
+   * or return null when the structure is not in this decoder's format.
+   */
+  @Nullable
+  WritableMap decode(AdvertisingCursor cursor);
+}
@@ -0,0 +1,202 @@
+package io.luxtud.library.corebluetooth;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothStatusCodes;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * {@link GattConnection} over a platform {@link BluetoothGatt}.
+ */
+@SuppressLint("MissingPermission")
+class AndroidGattConnection implements GattConnection {
+  private final BluetoothGatt mGatt;
+
+  private AndroidGattConnection(BluetoothGatt gatt) {
+    mGatt = gatt;
+  }
+
+  @Nullable
+  static AndroidGattConnection connect(Context context, BluetoothDevice device, Listener listener, Handler handler, boolean autoConnect) {
+    BluetoothGattCallback callback = createCallback(listener);
+    BluetoothGatt gatt;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      // callbacks arrive on the handler's thread itself
+      gatt = device.connectGatt(context, autoConnect, callback, BluetoothDevice.TRANSPORT_LE, BluetoothDevice.PHY_LE_1M_MASK, handler);
+    } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+      gatt = device.connectGatt(context, autoConnect, callback, BluetoothDevice.TRANSPORT_LE);
+    } else {
+      gatt = device.connectGatt(context, autoConnect, callback);
+    }
+    return gatt != null ? new AndroidGattConnection(gatt) : null;
+  }
+
+  @Override
+  public boolean discoverServices() {
+    return mGatt.discoverServices();
+  }
+
+  @Override
+  public List<BluetoothGattService> getServices() {
+    return mGatt.getServices();
+  }
+
+  @Nullable
+  @Override
+  public BluetoothGattService getService(UUID uuid) {
+    return mGatt.getService(uuid);
+  }
+
+  @Override
+  public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+    return mGatt.readCharacteristic(characteristic);
+  }
+
+  @Override
+  public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, int writeType) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+      return mGatt.writeCharacteristic(characteristic, value, writeType) == BluetoothStatusCodes.SUCCESS;
+    } else {
+      characteristic.setWriteType(writeType);
+      characteristic.setValue(value);
+      return mGatt.writeCharacteristic(characteristic);
+    }
+  }
+
+  @Override
+  public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+    return mGatt.readDescriptor(descriptor);
+  }
+
+  @Override
+  public boolean writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+      return mGatt.writeDescriptor(descriptor, value) == BluetoothStatusCodes.SUCCESS;
+    } else {
+      descriptor.setValue(value);
+      return mGatt.writeDescriptor(descriptor);
+    }
+  }
+
+  @Override
+  public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+    return mGatt.setCharacteristicNotification(characteristic, enable);
+  }
+
+  @Override
+  public boolean requestMtu(int mtu) {
+    return mGatt.requestMtu(mtu);
+  }
+
+  @Override
+  public boolean requestConnectionPriority(int priority) {
+    return mGatt.requestConnectionPriority(priority);
+  }
+
+  @Override
+  @RequiresApi(api = Build.VERSION_CODES.O)
+  public void setPreferredPhy(int txPhy, int rxPhy, int phyOptions) {
+    mGatt.setPreferredPhy(txPhy, rxPhy, phyOptions);
+  }
+
+  @Override
+  public void disconnect() {
+    mGatt.disconnect();
+  }
+
+  @Override
+  public void close() {
+    mGatt.close();
+  }
+
+  /**
+   * Before Android 13 values are only left on the attribute, they are taken from it right in the callback,
+   * before the stack can overwrite them with the next one.
+   */
+  private static BluetoothGattCallback createCallback(Listener listener) {
+    return new BluetoothGattCallback() {
+      @Override
+      public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        listener.onConnectionStateChange(status, newState);
+      }
+
+      @Override
+      public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        listener.onServicesDiscovered(status);
+      }
+
+      @Override
+      @RequiresApi(api = Build.VERSION_CODES.TIRAMISU)
+      public void onCharacteristicRead(@NonNull BluetoothGatt gatt, @NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] value, int status) {
+        listener.onCharacteristicRead(characteristic, value, status);
+      }
+
+      @Override
+      public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        listener.onCharacteristicRead(characteristic, characteristic.getValue(), status);
+      }
+
+      @Override
+      public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        listener.onCharacteristicWrite(characteristic, status);
+      }
+
+      @Override
+      @RequiresApi(api = Build.VERSION_CODES.TIRAMISU)
+      public void onCharacteristicChanged(@NonNull BluetoothGatt gatt, @NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] value) {
+        listener.onCharacteristicChanged(characteristic, value);
+      }
+
+      @Override
+      public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        listener.onCharacteristicChanged(characteristic, characteristic.getValue());
+      }
+
+      @Override
+      @RequiresApi(api = Build.VERSION_CODES.TIRAMISU)
+      public void onDescriptorRead(@NonNull BluetoothGatt gatt, @NonNull BluetoothGattDescriptor descriptor, int status, @NonNull byte[] value) {
+        listener.onDescriptorRead(descriptor, value, status);
+      }
+
+      @Override
+      public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        listener.onDescriptorRead(descriptor, descriptor.getValue(), status);
+      }
+
+      @Override
+      public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        listener.onDescriptorWrite(descriptor, status);
+      }
+
+      @Override
+      public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        listener.onMtuChanged(mtu, status);
+      }
+
+      @Override
+      public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        listener.onPhyUpdate(txPhy, rxPhy, status);
+      }
+
+      @Override
+      @RequiresApi(api = Build.VERSION_CODES.S)
+      public void onServiceChanged(@NonNull BluetoothGatt gatt) {
+        listener.onServiceChanged();
+      }
+    };
+  }
+}
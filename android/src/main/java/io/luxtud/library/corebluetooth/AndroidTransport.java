@@ -0,0 +1,127 @@
+package io.luxtud.library.corebluetooth;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+
+import androidx.annotation.Nullable;
+import androidx.core.app.ActivityCompat;
+
+import java.util.List;
+
+/**
+ * {@link BluetoothTransport} over the platform {@link BluetoothAdapter}. Scan results arrive on the main thread.
+ */
+@SuppressLint("MissingPermission")
+class AndroidTransport implements BluetoothTransport {
+  private final Context mContext;
+  @Nullable
+  private final BluetoothAdapter mAdapter;
+
+  @Nullable
+  private ScanCallback mScanCallback;
+
+  AndroidTransport(Context context, @Nullable BluetoothAdapter adapter) {
+    mContext = context;
+    mAdapter = adapter;
+  }
+
+  @Override
+  public boolean isAvailable() {
+    return mAdapter != null;
+  }
+
+  @Override
+  public boolean checkScanPermission() {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+      return ActivityCompat.checkSelfPermission(
+        mContext,
+        android.Manifest.permission.BLUETOOTH_SCAN
+      ) == PackageManager.PERMISSION_GRANTED;
+    } else {
+      return ActivityCompat.checkSelfPermission(
+        mContext,
+        android.Manifest.permission.ACCESS_FINE_LOCATION
+      ) == PackageManager.PERMISSION_GRANTED;
+    }
+  }
+
+  @Override
+  public boolean isDiscovering() {
+    return mAdapter != null && mAdapter.isDiscovering();
+  }
+
+  @Override
+  public boolean isOffloadedScanBatchingSupported() {
+    return mAdapter != null && mAdapter.isOffloadedScanBatchingSupported();
+  }
+
+  @Override
+  public boolean isLe2MPhySupported() {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && mAdapter != null && mAdapter.isLe2MPhySupported();
+  }
+
+  @Nullable
+  private BluetoothLeScanner getScanner() {
+    return mAdapter != null ? mAdapter.getBluetoothLeScanner() : null;
+  }
+
+  @Override
+  public boolean startScan(List<ScanFilter> filters, ScanSettings settings, ScanListener listener) {
+    BluetoothLeScanner scanner = getScanner();
+    if (scanner == null) {
+      return false;
+    }
+    ScanCallback callback = new ScanCallback() {
+      @Override
+      public void onScanResult(int callbackType, ScanResult result) {
+        listener.onScanResult(result);
+      }
+
+      @Override
+      public void onBatchScanResults(List<ScanResult> results) {
+        listener.onBatchScanResults(results);
+      }
+
+      @Override
+      public void onScanFailed(int errorCode) {
+        listener.onScanFailed(errorCode);
+      }
+    };
+    scanner.startScan(filters, settings, callback);
+    mScanCallback = callback;
+    return true;
+  }
+
+  @Override
+  public void flushPendingScanResults() {
+    BluetoothLeScanner scanner = getScanner();
+    if (scanner != null && mScanCallback != null) {
+      scanner.flushPendingScanResults(mScanCallback);
+    }
+  }
+
+  @Override
+  public void stopScan() {
+    BluetoothLeScanner scanner = getScanner();
+    if (scanner != null && mScanCallback != null) {
+      scanner.stopScan(mScanCallback);
+    }
+    mScanCallback = null;
+  }
+
+  @Nullable
+  @Override
+  public GattConnection connect(BluetoothDevice device, GattConnection.Listener listener, Handler handler, boolean autoConnect) {
+    return AndroidGattConnection.connect(mContext, device, listener, handler, autoConnect);
+  }
+}
@@ -0,0 +1,152 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import androidx.annotation.Nullable;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Characteristics and descriptors of a connection, resolved once after service discovery.
+ * <p>
+ * Characteristics are found by the primitive bits of their service and characteristic UUIDs through an
+ * open-addressing table, or by the numeric handle assigned here in discovery order, so hot read and write
+ * paths skip the service and characteristic list scans of {@link android.bluetooth.BluetoothGatt}.
+ * The cache has to be dropped whenever the remote database changes.
+ */
+class AttributeCache {
+  static final class Attribute {
+    final int handle;
+    final long serviceMsb;
+    final long serviceLsb;
+    final long msb;
+    final long lsb;
+    final BluetoothGattCharacteristic characteristic;
+    final BluetoothGattDescriptor[] descriptors;
+
+    Attribute(int handle, BluetoothGattService service, BluetoothGattCharacteristic characteristic) {
+      UUID serviceUuid = service.getUuid();
+      UUID uuid = characteristic.getUuid();
+      this.handle = handle;
+      this.serviceMsb = serviceUuid.getMostSignificantBits();
+      this.serviceLsb = serviceUuid.getLeastSignificantBits();
+      this.msb = uuid.getMostSignificantBits();
+      this.lsb = uuid.getLeastSignificantBits();
+      this.characteristic = characteristic;
+      List<BluetoothGattDescriptor> descriptors = characteristic.getDescriptors();
+      this.descriptors = descriptors.toArray(new BluetoothGattDescriptor[0]);
+    }
+
+    boolean matches(long serviceMsb, long serviceLsb, long msb, long lsb) {
+      return this.lsb == lsb && this.msb == msb && this.serviceLsb == serviceLsb && this.serviceMsb == serviceMsb;
+    }
+
+    @Nullable
+    BluetoothGattDescriptor getDescriptor(UUID uuid) {
+      long descriptorMsb = uuid.getMostSignificantBits();
+      long descriptorLsb = uuid.getLeastSignificantBits();
+      for (BluetoothGattDescriptor descriptor : descriptors) {
+        UUID descriptorUuid = descriptor.getUuid();
+        if (descriptorUuid.getLeastSignificantBits() == descriptorLsb && descriptorUuid.getMostSignificantBits() == descriptorMsb) {
+          return descriptor;
+        }
+      }
+      return null;
+    }
+  }
+
+  private final Attribute[] handles;
+  private final Attribute[] table;
+  private final int mask;
+
+  AttributeCache(List<BluetoothGattService> services) {
+    int count = 0;
+    for (BluetoothGattService service : services) {
+      count += service.getCharacteristics().size();
+    }
+
+    handles = new Attribute[count];
+    int tableSize = Integer.highestOneBit(Math.max(count, 4) - 1) << 2;
+    table = new Attribute[tableSize];
+    mask = tableSize - 1;
+
+    int handle = 0;
+    for (BluetoothGattService service : services) {
+      for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+        Attribute attribute = new Attribute(handle, service, characteristic);
+        handles[handle++] = attribute;
+        // like BluetoothGatt, the first instance of a duplicated uuid wins
+        if (find(attribute.serviceMsb, attribute.serviceLsb, attribute.msb, attribute.lsb) == null) {
+          insert(attribute);
+        }
+      }
+    }
+  }
+
+  int size() {
+    return handles.length;
+  }
+
+  @Nullable
+  Attribute get(int handle) {
+    return handle >= 0 && handle < handles.length ? handles[handle] : null;
+  }
+
+  @Nullable
+  Attribute get(UUID serviceId, UUID uuid) {
+    return find(
+      serviceId.getMostSignificantBits(), serviceId.getLeastSignificantBits(),
+      uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()
+    );
+  }
+
+  @Nullable
+  BluetoothGattCharacteristic getCharacteristic(UUID serviceId, UUID uuid) {
+    Attribute attribute = get(serviceId, uuid);
+    return attribute != null ? attribute.characteristic : null;
+  }
+
+  @Nullable
+  BluetoothGattCharacteristic getCharacteristic(int handle) {
+    Attribute attribute = get(handle);
+    return attribute != null ? attribute.characteristic : null;
+  }
+
+  @Nullable
+  BluetoothGattDescriptor getDescriptor(UUID serviceId, UUID characteristicId, UUID uuid) {
+    Attribute attribute = get(serviceId, characteristicId);
+    return attribute != null ? attribute.getDescriptor(uuid) : null;
+  }
+
+  private static int hash(long serviceMsb, long serviceLsb, long msb, long lsb) {
+    long h = serviceMsb * 31 + serviceLsb;
+    h = h * 31 + msb;
+    h = h * 31 + lsb;
+    h *= 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  @Nullable
+  private Attribute find(long serviceMsb, long serviceLsb, long msb, long lsb) {
+    int i = hash(serviceMsb, serviceLsb, msb, lsb) & mask;
+    Attribute attribute;
+    while ((attribute = table[i]) != null) {
+      if (attribute.matches(serviceMsb, serviceLsb, msb, lsb)) {
+        return attribute;
+      }
+      i = (i + 1) & mask;
+    }
+    return null;
+  }
+
+  private void insert(Attribute attribute) {
+    int i = hash(attribute.serviceMsb, attribute.serviceLsb, attribute.msb, attribute.lsb) & mask;
+    while (table[i] != null) {
+      i = (i + 1) & mask;
+    }
+    table[i] = attribute;
+  }
+}
@@ -0,0 +1,155 @@
+package io.luxtud.library.corebluetooth;
+
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.UUID;
+
+/**
+ * Built-in {@link AdvertisingDecoder}s for iBeacon and the Eddystone UID, URL and TLM frames.
+ */
+final class BeaconDecoders {
+  static final int APPLE_COMPANY_ID = 0x004c;
+  static final int EDDYSTONE_SERVICE_UUID = 0xfeaa;
+
+  private static final int IBEACON_TYPE = 0x02;
+  private static final int IBEACON_LENGTH = 0x15;
+
+  private static final int EDDYSTONE_UID = 0x00;
+  private static final int EDDYSTONE_URL = 0x10;
+  private static final int EDDYSTONE_TLM = 0x20;
+
+  private static final String[] URL_SCHEMES = {"http://www.", "https://www.", "http://", "https://"};
+  private static final String[] URL_EXPANSIONS = {
+    ".com/", ".org/", ".edu/", ".net/", ".info/", ".biz/", ".gov/",
+    ".com", ".org", ".edu", ".net", ".info", ".biz", ".gov"
+  };
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  static final AdvertisingDecoder IBEACON = cursor -> {
+    // company id, type, length, 16 byte uuid, major, minor, measured power
+    if (cursor.type != AdvertisingCursor.TYPE_MANUFACTURER_DATA
+      || cursor.length < 25
+      || cursor.getCompanyId() != APPLE_COMPANY_ID
+      || cursor.getUint8(2) != IBEACON_TYPE
+      || cursor.getUint8(3) != IBEACON_LENGTH) {
+      return null;
+    }
+    WritableMap map = Arguments.createMap();
+    map.putString("type", "iBeacon");
+    map.putString("uuid", new UUID(getLongBE(cursor, 4), getLongBE(cursor, 12)).toString());
+    map.putInt("major", getUint16BE(cursor, 20));
+    map.putInt("minor", getUint16BE(cursor, 22));
+    map.putInt("txPower", cursor.getInt8(24));
+    return map;
+  };
+
+  static final AdvertisingDecoder EDDYSTONE = BeaconDecoders::decodeEddystone;
+
+  private BeaconDecoders() {
+  }
+
+  @Nullable
+  private static WritableMap decodeEddystone(AdvertisingCursor cursor) {
+    // service uuid, frame type, frame
+    if (cursor.type != AdvertisingCursor.TYPE_SERVICE_DATA_16
+      || cursor.length < 3
+      || cursor.getUint16(0) != EDDYSTONE_SERVICE_UUID) {
+      return null;
+    }
+    switch (cursor.getUint8(2)) {
+      case EDDYSTONE_UID:
+        return decodeEddystoneUid(cursor);
+      case EDDYSTONE_URL:
+        return decodeEddystoneUrl(cursor);
+      case EDDYSTONE_TLM:
+        return decodeEddystoneTlm(cursor);
+      default:
+        return null;
+    }
+  }
+
+  @Nullable
+  private static WritableMap decodeEddystoneUid(AdvertisingCursor cursor) {
+    // tx power, 10 byte namespace, 6 byte instance, the reserved bytes are optional
+    if (cursor.length < 20) {
+      return null;
+    }
+    WritableMap map = Arguments.createMap();
+    map.putString("type", "eddystoneUid");
+    map.putInt("txPower", cursor.getInt8(3));
+    map.putString("namespace", toHex(cursor, 4, 10));
+    map.putString("instance", toHex(cursor, 14, 6));
+    return map;
+  }
+
+  @Nullable
+  private static WritableMap decodeEddystoneUrl(AdvertisingCursor cursor) {
+    // tx power, scheme prefix, encoded url
+    if (cursor.length < 5 || cursor.getUint8(4) >= URL_SCHEMES.length) {
+      return null;
+    }
+    StringBuilder url = new StringBuilder(URL_SCHEMES[cursor.getUint8(4)]);
+    for (int i = 5; i < cursor.length; i++) {
+      int c = cursor.getUint8(i);
+      if (c < URL_EXPANSIONS.length) {
+        url.append(URL_EXPANSIONS[c]);
+      } else if (c > 0x20 && c < 0x7f) {
+        url.append((char) c);
+      } else {
+        return null;
+      }
+    }
+    WritableMap map = Arguments.createMap();
+    map.putString("type", "eddystoneUrl");
+    map.putInt("txPower", cursor.getInt8(3));
+    map.putString("url", url.toString());
+    return map;
+  }
+
+  @Nullable
+  private static WritableMap decodeEddystoneTlm(AdvertisingCursor cursor) {
+    // version, battery mV, temperature 8.8 fixed point, advertisement count, uptime in 0.1 s
+    if (cursor.length < 16 || cursor.getUint8(3) != 0) {
+      return null;
+    }
+    WritableMap map = Arguments.createMap();
+    map.putString("type", "eddystoneTlm");
+    map.putInt("batteryVoltage", getUint16BE(cursor, 4));
+    int temperature = (short) getUint16BE(cursor, 6);
+    // 0x8000 means not supported
+    if (temperature == Short.MIN_VALUE) {
+      map.putNull("temperature");
+    } else {
+      map.putDouble("temperature", temperature / 256.0);
+    }
+    map.putDouble("advertisementCount", getUint32BE(cursor, 8));
+    map.putDouble("uptime", getUint32BE(cursor, 12) / 10.0);
+    return map;
+  }
+
+  static int getUint16BE(AdvertisingCursor cursor, int index) {
+    return cursor.getUint8(index) << 8 | cursor.getUint8(index + 1);
+  }
+
+  static long getUint32BE(AdvertisingCursor cursor, int index) {
+    return (long) getUint16BE(cursor, index) << 16 | getUint16BE(cursor, index + 2);
+  }
+
+  private static long getLongBE(AdvertisingCursor cursor, int index) {
+    return getUint32BE(cursor, index) << 32 | getUint32BE(cursor, index + 4);
+  }
+
+  private static String toHex(AdvertisingCursor cursor, int index, int length) {
+    char[] chars = new char[length * 2];
+    for (int i = 0; i < length; i++) {
+      int b = cursor.getUint8(index + i);
+      chars[i * 2] = HEX[b >>> 4];
+      chars[i * 2 + 1] = HEX[b & 0x0f];
+    }
+    return new String(chars);
+  }
+}
@@ -0,0 +1,98 @@
+package io.luxtud.library.corebluetooth;
+
+import android.os.SystemClock;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Performance metrics of the module: scan counters, aggregate GATT metrics and the GATT metrics of
+ * recently connected devices.
+ * <p>
+ * Scan results are counted on the callback thread before they are handed over, everything else is recorded
+ * and read on the bluetooth thread, so a snapshot needs no locking.
+ */
+final class BluetoothStats {
+  static final int MAX_DEVICES = 64;
+
+  // every result the scanner delivered, and those the scan filter rejected
+  final AtomicLong scanResults;
+  final AtomicLong scanFiltered;
+  // results the change filter held back, and those forwarded to js
+  long scanSuppressed;
+  long scanForwarded;
+
+  final GattMetrics total;
+  private final LinkedHashMap<String, GattMetrics> mDevices;
+  private long mSince;
+
+  BluetoothStats() {
+    scanResults = new AtomicLong();
+    scanFiltered = new AtomicLong();
+    total = new GattMetrics(null);
+    // access ordered, the least recently connected device is dropped first
+    mDevices = new LinkedHashMap<String, GattMetrics>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, GattMetrics> eldest) {
+        return size() > MAX_DEVICES;
+      }
+    };
+    mSince = SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * Metrics of a device, kept across its connections.
+   */
+  GattMetrics device(String identifier) {
+    GattMetrics metrics = mDevices.get(identifier);
+    if (metrics == null) {
+      metrics = new GattMetrics(total);
+      mDevices.put(identifier, metrics);
+    }
+    return metrics;
+  }
+
+  void reset() {
+    scanResults.set(0);
+    scanFiltered.set(0);
+    scanSuppressed = 0;
+    scanForwarded = 0;
+    total.reset();
+    // sessions keep recording into their device's instance, so reset in place
+    for (GattMetrics metrics : mDevices.values()) {
+      metrics.reset();
+    }
+    mSince = SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * Map with 'elapsed' ms since the last reset, 'scan', 'total' and 'devices' keyed by identifier.
+   */
+  WritableMap toMap() {
+    long elapsed = SystemClock.elapsedRealtime() - mSince;
+    long results = scanResults.get();
+
+    WritableMap scan = Arguments.createMap();
+    scan.putDouble("results", results);
+    scan.putDouble("resultsPerSecond", elapsed > 0 ? results * 1000.0 / elapsed : 0);
+    scan.putDouble("filtered", scanFiltered.get());
+    scan.putDouble("suppressed", scanSuppressed);
+    scan.putDouble("forwarded", scanForwarded);
+
+    WritableMap devices = Arguments.createMap();
+    for (Map.Entry<String, GattMetrics> entry : mDevices.entrySet()) {
+      devices.putMap(entry.getKey(), entry.getValue().toMap(elapsed));
+    }
+
+    WritableMap map = Arguments.createMap();
+    map.putDouble("elapsed", elapsed);
+    map.putMap("scan", scan);
+    map.putMap("total", total.toMap(elapsed));
+    map.putMap("devices", devices);
+    return map;
+  }
+}
@@ -0,0 +1,64 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * The radio underneath {@link ICoreBluetooth}: scanning, connecting and the GATT connections themselves.
+ * <p>
+ * {@link AndroidTransport} drives the platform stack, the unit tests' SimulatedTransport scripted peripherals that
+ * only exist in memory. Everything above works on plain data classes such as {@link ScanResult} and
+ * {@link android.bluetooth.BluetoothGattCharacteristic}, so it behaves the same on either.
+ */
+interface BluetoothTransport {
+  interface ScanListener {
+    void onScanResult(ScanResult result);
+
+    void onBatchScanResults(List<ScanResult> results);
+
+    void onScanFailed(int errorCode);
+  }
+
+  /**
+   * Whether there is an adapter to work with at all.
+   */
+  boolean isAvailable();
+
+  boolean checkScanPermission();
+
+  /**
+   * Whether a classic discovery is running.
+   */
+  boolean isDiscovering();
+
+  boolean isOffloadedScanBatchingSupported();
+
+  boolean isLe2MPhySupported();
+
+  /**
+   * Start the LE scan, return false when it could not be started. Only one scan runs at a time.
+   */
+  boolean startScan(List<ScanFilter> filters, ScanSettings settings, ScanListener listener);
+
+  /**
+   * Deliver the results the controller holds back for a batched scan right away.
+   */
+  void flushPendingScanResults();
+
+  void stopScan();
+
+  /**
+   * Connect to the device, callbacks of the connection are delivered on the handler where possible.
+   * With autoConnect the attempt waits in the background until the device shows up instead of timing out.
+   * Returns null when the connection could not be initiated.
+   */
+  @Nullable
+  GattConnection connect(BluetoothDevice device, GattConnection.Listener listener, Handler handler, boolean autoConnect);
+}
@@ -0,0 +1,55 @@
+package io.luxtud.library.corebluetooth;
+
+import android.os.Handler;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands items from framework callback threads over to the thread of a {@link Handler} without locking.
+ * <p>
+ * Producers only append to a lock-free queue, and the first item after a drain posts a single drain
+ * to the handler, so a burst of callbacks costs one handler message instead of one per item.
+ */
+class CallbackInbox<T> {
+  interface Listener<T> {
+    void onItem(T item);
+  }
+
+  private final Handler mHandler;
+  private final Listener<T> mListener;
+  private final ConcurrentLinkedQueue<T> mItems;
+  private final AtomicBoolean mScheduled;
+  private final Runnable mDrainRunnable;
+
+  CallbackInbox(Handler handler, Listener<T> listener) {
+    mHandler = handler;
+    mListener = listener;
+    mItems = new ConcurrentLinkedQueue<>();
+    mScheduled = new AtomicBoolean();
+    mDrainRunnable = this::drain;
+  }
+
+  void offer(T item) {
+    mItems.offer(item);
+    if (mScheduled.compareAndSet(false, true)) {
+      mHandler.post(mDrainRunnable);
+    }
+  }
+
+  /**
+   * Drop everything not yet delivered.
+   */
+  void clear() {
+    mItems.clear();
+  }
+
+  private void drain() {
+    // clear the flag first, an item offered while draining either is seen below or posts a new drain
+    mScheduled.set(false);
+    T item;
+    while ((item = mItems.poll()) != null) {
+      mListener.onItem(item);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package io.luxtud.library.corebluetooth;
+
+import androidx.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the {@link GattSession}s of all peripherals that are connected or connecting, keyed by device identifier.
+ */
+class ConnectionManager {
+  // most controllers handle 7 concurrent LE links, some fewer
+  static final int DEFAULT_MAX_CONNECTIONS = 7;
+
+  private final Map<String, GattSession> mSessions;
+  private volatile int mMaxConnections;
+
+  ConnectionManager() {
+    mSessions = new ConcurrentHashMap<>();
+    mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+  }
+
+  void setMaxConnections(int maxConnections) {
+    if (maxConnections <= 0) {
+      throw new IllegalArgumentException("maxConnections must be positive");
+    }
+    mMaxConnections = maxConnections;
+  }
+
+  boolean isFull() {
+    return mSessions.size() >= mMaxConnections;
+  }
+
+  @Nullable
+  GattSession get(String identifier) {
+    return mSessions.get(identifier);
+  }
+
+  void add(GattSession session) {
+    mSessions.put(session.identifier, session);
+  }
+
+  /**
+   * Remove the session unless it has already been replaced by a newer one for the same device.
+   */
+  void remove(GattSession session) {
+    mSessions.remove(session.identifier, session);
+  }
+
+  Collection<GattSession> getSessions() {
+    return mSessions.values();
+  }
+
+  int size() {
+    return mSessions.size();
+  }
+}
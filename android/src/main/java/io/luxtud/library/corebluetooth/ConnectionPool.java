@@ -0,0 +1,196 @@
+package io.luxtud.library.corebluetooth;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * Keeps the links of sessions js disconnected open, so connecting to the same peripheral again resolves right away
+ * with its services still discovered and its subscriptions in place.
+ * <p>
+ * Idle sessions are kept in least recently used order. Beyond the limit, or once a session has been idle for the
+ * timeout, the eldest is handed to the evictor, which tears the link down for real. Pinned devices are kept
+ * however long they are idle and are never evicted. Owned by the bluetooth thread of {@link CoreBluetooth}.
+ */
+class ConnectionPool {
+  interface Evictor {
+    void evict(GattSession session);
+  }
+
+  private final Handler mHandler;
+  private final Evictor mEvictor;
+  private final Runnable mExpiryRunnable;
+  // access order, eldest first
+  private final LinkedHashMap<String, GattSession> mIdle;
+  private final Set<String> mPinned;
+
+  private int mMaxIdle;
+  private long mIdleTimeout;
+  private long mExpiryAt;
+
+  ConnectionPool(Handler handler, Evictor evictor) {
+    mHandler = handler;
+    mEvictor = evictor;
+    mExpiryRunnable = this::expire;
+    mIdle = new LinkedHashMap<>(16, 0.75f, true);
+    mPinned = new HashSet<>();
+  }
+
+  /**
+   * Keep at most maxIdle unpinned sessions for at most idleTimeout ms each, zero or less for no timeout.
+   * A maxIdle of zero turns pooling off for all but pinned devices.
+   */
+  void configure(int maxIdle, long idleTimeout) {
+    if (maxIdle < 0) {
+      throw new IllegalArgumentException("maxIdle must not be negative");
+    }
+    mMaxIdle = maxIdle;
+    mIdleTimeout = idleTimeout;
+    trim();
+    expire();
+  }
+
+  void setPinned(String identifier, boolean pinned) {
+    if (pinned) {
+      mPinned.add(identifier);
+      return;
+    }
+    mPinned.remove(identifier);
+    // an idle session that was only kept for the pin now counts like any other
+    trim();
+    expire();
+  }
+
+  boolean isPinned(String identifier) {
+    return mPinned.contains(identifier);
+  }
+
+  /**
+   * Keep the session's link open while nobody uses it. Returns false when it is not to be pooled.
+   */
+  boolean park(GattSession session) {
+    if (mMaxIdle <= 0 && !isPinned(session.identifier)) {
+      return false;
+    }
+    session.idleSince = SystemClock.uptimeMillis();
+    mIdle.put(session.identifier, session);
+    trim();
+    scheduleExpiry();
+    return true;
+  }
+
+  boolean isIdle(GattSession session) {
+    // get would count as a use
+    return mIdle.containsValue(session);
+  }
+
+  /**
+   * Take the idle session of the device back into use, null when there is none.
+   */
+  @Nullable
+  GattSession acquire(String identifier) {
+    return mIdle.remove(identifier);
+  }
+
+  /**
+   * An operation ran on the session, which renews its place in the pool when it is idle.
+   */
+  void touch(GattSession session) {
+    if (mIdle.isEmpty() || mIdle.get(session.identifier) != session) {
+      return;
+    }
+    session.idleSince = SystemClock.uptimeMillis();
+    scheduleExpiry();
+  }
+
+  /**
+   * The session's link went away by itself.
+   */
+  void remove(GattSession session) {
+    mIdle.remove(session.identifier, session);
+  }
+
+  /**
+   * Free a link for a new connection by evicting the least recently used idle session.
+   */
+  boolean evictEldest() {
+    for (Iterator<GattSession> iterator = mIdle.values().iterator(); iterator.hasNext(); ) {
+      GattSession session = iterator.next();
+      if (!isPinned(session.identifier)) {
+        iterator.remove();
+        mEvictor.evict(session);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  void clear() {
+    mIdle.clear();
+    mHandler.removeCallbacks(mExpiryRunnable);
+    mExpiryAt = 0;
+  }
+
+  int size() {
+    return mIdle.size();
+  }
+
+  private void trim() {
+    int unpinned = 0;
+    for (GattSession session : mIdle.values()) {
+      if (!isPinned(session.identifier)) {
+        unpinned++;
+      }
+    }
+    while (unpinned > mMaxIdle && evictEldest()) {
+      unpinned--;
+    }
+  }
+
+  private void expire() {
+    mExpiryAt = 0;
+    if (mIdleTimeout <= 0) {
+      mHandler.removeCallbacks(mExpiryRunnable);
+      return;
+    }
+    long deadline = SystemClock.uptimeMillis() - mIdleTimeout;
+    for (Iterator<GattSession> iterator = mIdle.values().iterator(); iterator.hasNext(); ) {
+      GattSession session = iterator.next();
+      if (isPinned(session.identifier)) {
+        continue;
+      }
+      if (session.idleSince > deadline) {
+        // touched sessions move to the end, so everything after this one expires later
+        break;
+      }
+      iterator.remove();
+      mEvictor.evict(session);
+    }
+    scheduleExpiry();
+  }
+
+  private void scheduleExpiry() {
+    if (mIdleTimeout <= 0) {
+      return;
+    }
+    long next = 0;
+    for (GattSession session : mIdle.values()) {
+      if (!isPinned(session.identifier)) {
+        next = session.idleSince + mIdleTimeout;
+        break;
+      }
+    }
+    if (next == 0 || next == mExpiryAt) {
+      return;
+    }
+    mHandler.removeCallbacks(mExpiryRunnable);
+    mExpiryAt = next;
+    mHandler.postAtTime(mExpiryRunnable, next);
+  }
+}
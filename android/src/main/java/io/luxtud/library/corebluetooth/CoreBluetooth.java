@@ -4,578 +4,2303 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
-import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
+import android.util.Log;
 import android.content.Context;
 import android.os.Build;
-import android.util.Base64;
-import android.util.SparseArray;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.widget.Toast;
 
-import androidx.annotation.NonNull;
-import androidx.annotation.RequiresApi;
+import androidx.annotation.Nullable;
 import androidx.collection.LongSparseArray;
 import androidx.core.app.ActivityCompat;
 
 import com.facebook.react.bridge.Arguments;
-import com.facebook.react.bridge.Callback;
 import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.PromiseImpl;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Android implementation of the module.
+ * <p>
+ * All mutable state of scanning and of every connection is owned by one dedicated {@link HandlerThread}.
+ * Calls from js are posted to it, GATT callbacks are delivered on it (or handed over to it on releases before
+ * Android 8.0) and scan results are handed over through a lock-free {@link CallbackInbox}. The radio itself is
+ * a {@link BluetoothTransport}, the platform adapter or a simulated one. Only what other
+ * threads must touch directly is shared: the connection map and subscription maps are concurrent, and
+ * notification values are copied into their subscription's ring on the callback thread.
+ */
 public class CoreBluetooth extends ICoreBluetooth {
   public static final int PERMISSION_SCAN_RESULT_CODE = 5001;
   public static final int PERMISSION_ADVERTISE_RESULT_CODE = 5002;
 
+  private static final String TAG = "CoreBluetooth";
+
+  private static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+  private static final UUID GENERIC_ATTRIBUTE_SERVICE = UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+  private static final UUID DATABASE_HASH = UUID.fromString("00002b2a-0000-1000-8000-00805f9b34fb");
+  private static final UUID DEVICE_INFORMATION_SERVICE = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
+  private static final UUID FIRMWARE_REVISION = UUID.fromString("00002a26-0000-1000-8000-00805f9b34fb");
+
+  private static final String GATT_DATABASE_CACHE_FILE = "corebluetooth-gatt.cache";
+  private static final String TRAFFIC_LOG_PREFIX = "corebluetooth-";
+  private static final String TRAFFIC_LOG_SUFFIX = ".cbtl";
+
+  private static final long WRITE_PROGRESS_INTERVAL_MS = 100;
+  private static final long WRITE_BUSY_DELAY_MS = 5;
+  // before a pinned device's failed background connection is issued again
+  private static final long PINNED_RECONNECT_DELAY_MS = 1000;
+
   private final Context mContext;
 
-  private BluetoothGatt mGatt;
-  private final BluetoothGattCallback mBluetoothGattCallback;
-  private final ScanCallback mScanCallback;
+  private final ConnectionManager mConnections;
+  private final ConnectionPool mPool;
+  private final ReconnectSupervisor mSupervisor;
+  private final BluetoothTransport.ScanListener mScanListener;
 
-  private Map<String, BluetoothDevice> devices;
-  private Map<String, Callback> callbacks;
-  private List<Integer> companyIds;
-  private DeviceEventManagerModule.RCTDeviceEventEmitter mEmitter;
+  private final DeviceRegistry mDeviceRegistry;
+  private final ScanBatcher mScanBatcher;
+  private final ScanChangeFilter mScanChangeFilter;
+  private final NotificationDispatcher mNotificationDispatcher;
+  private final AtomicInteger mNextSubscriptionId;
+  private int mNotificationCapacity;
+  private int mNotificationPolicy;
+  private final ScanFilterEngine mScanFilterEngine;
+  // only used while building scan events, which all happens on the bluetooth thread
+  private final AdvertisingCursor mAdvertisingCursor;
+  private int mAdvertisingFields;
+  private AdvertisingDecoder[] mDecoders;
+  private boolean mBeaconDecoders;
+  private AdvertisingDecoder[] mLayoutDecoders;
+  private final List<AdvertisingDecoder> mCustomDecoders;
+  private final ScanScheduler mScanScheduler;
+  // profile, callback type, match mode and number of matches
+  private int[] mScanOptions;
+  private List<ScanFilter> mScanFilters;
+  // what the running scan was started with
+  private int[] mActiveScanOptions;
+  private List<ScanFilter> mActiveScanFilters;
+  private final CallbackInbox<ScanResult> mScanResults;
+  private final BluetoothStats mStats;
+  private final Runnable mStatsRunnable;
+  private long mStatsInterval;
+  private volatile DeviceEventManagerModule.RCTDeviceEventEmitter mEmitter;
 
-  private Promise mConnectPromise;
-  private Promise mDisconnectPromise;
-  private Promise mDiscoverServicesPromise;
-  private Promise mReadCharacteristicPromise;
-  private Promise mWriteCharacteristicPromise;
-  private Promise mReadDescriptorPromise;
-  private Promise mWriteDescriptorPromise;
+  private final HandlerThread mThread;
+  private final Handler mHandler;
+  // Toasts need a looper thread that stays around, the main one
+  private final Handler mMainHandler;
+  private long mGattTimeout;
+  private int mGattRetries;
+  private boolean mThroughputProfile;
+  @Nullable
+  private volatile GattDatabaseCache mDatabaseCache;
 
   CoreBluetooth(Context context) {
-    super(context);
+    this(context, null);
+  }
+
+  /**
+   * Run on the given transport, or on the platform adapter when it is null.
+   */
+  CoreBluetooth(Context context, @Nullable BluetoothTransport transport) {
+    super(context, transport);
 
     mContext = context;
-    devices = new HashMap<>();
-    callbacks = new HashMap<>();
-    companyIds = new ArrayList<>();
-    mBluetoothGattCallback = createBluetoothGattCallback();
-    mScanCallback = createBluetoothScanCallback();
-    mReadCharacteristicPromise = null;
-    mWriteCharacteristicPromise = null;
-    mReadDescriptorPromise = null;
-    mWriteDescriptorPromise = null;
+    mThread = new HandlerThread(TAG);
+    mThread.start();
+    mHandler = new Handler(mThread.getLooper());
+    mMainHandler = new Handler(Looper.getMainLooper());
+    mGattTimeout = GattQueue.DEFAULT_TIMEOUT_MS;
+    mGattRetries = GattQueue.DEFAULT_RETRIES;
+    mDeviceRegistry = new DeviceRegistry();
+    mScanBatcher = new ScanBatcher(mHandler, this::emitDevices);
+    mScanChangeFilter = new ScanChangeFilter();
+    mNotificationDispatcher = new NotificationDispatcher(mHandler, this::emitNotifications);
+    mNextSubscriptionId = new AtomicInteger();
+    mNotificationCapacity = NotificationSubscription.DEFAULT_CAPACITY;
+    mNotificationPolicy = NotificationSubscription.POLICY_DROP_OLDEST;
+    mConnections = new ConnectionManager();
+    mPool = new ConnectionPool(mHandler, this::evict);
+    mSupervisor = new ReconnectSupervisor(mHandler, this::reconnect);
+    mScanFilterEngine = new ScanFilterEngine();
+    mAdvertisingCursor = new AdvertisingCursor();
+    mAdvertisingFields = AdvertisingCursor.DEFAULT_FIELDS;
+    mDecoders = new AdvertisingDecoder[0];
+    mLayoutDecoders = new AdvertisingDecoder[0];
+    mCustomDecoders = new ArrayList<>();
+    mScanOptions = new int[] {
+      ScanScheduler.PROFILE_LOW_POWER,
+      ScanSettings.CALLBACK_TYPE_ALL_MATCHES,
+      ScanSettings.MATCH_MODE_AGGRESSIVE,
+      ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT
+    };
+    mScanFilters = new ArrayList<>();
+    mScanResults = new CallbackInbox<>(mHandler, this::onScanResult);
+    mStats = new BluetoothStats();
+    mStatsRunnable = this::emitStats;
+    mScanListener = createScanListener();
+    mScanScheduler = new ScanScheduler(mHandler, new ScanScheduler.Scanner() {
+      @Override
+      public boolean startScan() {
+        return startLeScan();
+      }
+
+      @Override
+      public void stopScan() {
+        stopLeScan();
+      }
+    });
+  }
+
+  /**
+   * Stop scanning, close every connection and end the bluetooth thread. The instance is unusable afterwards.
+   */
+  @SuppressLint("MissingPermission")
+  public void destroy() {
+    execute(() -> {
+      if (mScanScheduler.stop() && mScanScheduler.isScanning()) {
+        stopLeScan();
+      }
+      mScanResults.clear();
+      mPool.clear();
+      mSupervisor.clear();
+      for (GattSession session : mConnections.getSessions()) {
+        session.state = GattSession.STATE_DISCONNECTED;
+        session.closeQueue("E_BLUETOOTH_DISCONNECTED", "Bluetooth disconnected.");
+        if (session.gatt != null) {
+          session.gatt.close();
+        }
+        mConnections.remove(session);
+      }
+      closeRecorder();
+      GattDatabaseCache cache = mDatabaseCache;
+      if (cache != null) {
+        mDatabaseCache = null;
+        cache.close();
+      }
+      mThread.quitSafely();
+    });
+  }
+
+  /**
+   * Run the task on the bluetooth thread, right away when already on it so callers keep their order.
+   */
+  private void execute(Runnable task) {
+    if (Looper.myLooper() == mThread.getLooper()) {
+      task.run();
+    } else {
+      mHandler.post(task);
+    }
+  }
+
+  /**
+   * Looper of the bluetooth thread, for tests that run it under Robolectric's paused clock.
+   */
+  Looper getLooper() {
+    return mThread.getLooper();
   }
 
   public void setCompanyIds(List<Integer> companyIds) {
-    this.companyIds = companyIds;
+    List<ScanFilterEngine.Rule> rules = new ArrayList<>(companyIds.size());
+    for (int i = 0; i < companyIds.size(); i++) {
+      ScanFilterEngine.Rule rule = new ScanFilterEngine.Rule();
+      rule.companyId = companyIds.get(i);
+      rules.add(rule);
+    }
+    mScanFilterEngine.setRules(rules);
+  }
+
+  /**
+   * Replace the scan filter with rules sent from js. Each rule is a map with the optional keys
+   * 'companyId', 'offset', 'prefix', 'mask', 'serviceUuid', 'serviceDataUuid', 'serviceData',
+   * 'serviceDataMask', 'namePrefix' and 'rssiFloor', where byte values are Base64.
+   * A device is reported when any rule matches, and a rule matches when all of its keys do.
+   * Takes effect on the next startScan.
+   */
+  public void setScanRules(ReadableArray rules) {
+    List<ScanFilterEngine.Rule> compiled = new ArrayList<>(rules.size());
+    for (int i = 0; i < rules.size(); i++) {
+      ReadableMap map = rules.getMap(i);
+      ScanFilterEngine.Rule rule = new ScanFilterEngine.Rule();
+      if (map.hasKey("companyId")) {
+        rule.companyId = map.getInt("companyId");
+      }
+      if (map.hasKey("offset")) {
+        rule.offset = map.getInt("offset");
+      }
+      rule.prefix = getBytes(map, "prefix");
+      rule.mask = getBytes(map, "mask");
+      if (map.hasKey("serviceUuid")) {
+        rule.serviceUuid = UUID.fromString(map.getString("serviceUuid"));
+      }
+      if (map.hasKey("serviceDataUuid")) {
+        rule.serviceDataUuid = UUID.fromString(map.getString("serviceDataUuid"));
+      }
+      rule.serviceData = getBytes(map, "serviceData");
+      rule.serviceDataMask = getBytes(map, "serviceDataMask");
+      if (map.hasKey("namePrefix")) {
+        rule.namePrefix = map.getString("namePrefix");
+      }
+      if (map.hasKey("rssiFloor")) {
+        rule.rssiFloor = map.getInt("rssiFloor");
+      }
+      compiled.add(rule);
+    }
+    mScanFilterEngine.setRules(compiled);
+  }
+
+  @Nullable
+  private static byte[] getBytes(ReadableMap map, String key) {
+    return map.hasKey(key) && !map.isNull(key) ? PayloadCodec.decode(map.getString(key)) : null;
   }
 
   public void setEmitter(DeviceEventManagerModule.RCTDeviceEventEmitter emitter) {
     mEmitter = emitter;
   }
 
-  public BluetoothDevice getDevice(String identifier) {
-    return devices.get(identifier);
+  /**
+   * Limit how many discovered devices are remembered and for how long (ms) after they were last seen.
+   * A ttl of zero or less keeps devices until they are pushed out by capacity.
+   */
+  public void setDeviceRegistryLimits(int capacity, long ttl) {
+    mDeviceRegistry.setLimits(capacity, ttl);
   }
 
-  private void clearDevices() {
-    devices = new HashMap<>();
+  /**
+   * Deliver scan results as 'FoundBLEDevices' batches holding the latest state of each device,
+   * once per interval (ms). Zero restores one 'FoundBLEDevice' event per advertisement.
+   * Takes effect on the next startScan.
+   */
+  public void setScanBatchInterval(long interval) {
+    execute(() -> mScanBatcher.setInterval(interval));
   }
 
-  private void clearCallbacks() {
-    callbacks = new HashMap<>();
+  /**
+   * Only forward a device when its name or manufacturer data changed, its RSSI moved by at least
+   * rssiDelta dBm (after EWMA smoothing with weight rssiSmoothing, 1 = raw) or heartbeat ms elapsed
+   * since it was last forwarded.
+   */
+  public void setScanChangeFilter(boolean enabled, int rssiDelta, double rssiSmoothing, long heartbeat) {
+    // fail the caller, not the bluetooth thread
+    if (rssiSmoothing <= 0 || rssiSmoothing > 1) {
+      throw new IllegalArgumentException("rssiSmoothing must be in (0, 1]");
+    }
+    execute(() -> mScanChangeFilter.configure(enabled, rssiDelta, rssiSmoothing, heartbeat));
   }
 
-  @Override
-  @SuppressLint("MissingPermission")
-  void startScan(List<ScanFilter> filters, Promise promise) {
-    if (getBluetoothAdapter() == null) {
-      promise.reject("E_BLUETOOTH_ADAPTER_NOT_INITIALIZED", "Unable to initialize BluetoothAdapter.");
+  /**
+   * Advertisement fields that scan events carry and whose change counts for the change filter,
+   * a bit set of 1 name, 2 tx power, 4 manufacturer data, 8 service data and 16 flags.
+   * Defaults to name, tx power and manufacturer data.
+   */
+  public void setAdvertisingFields(int fields) {
+    int subscribed = fields & AdvertisingCursor.FIELD_ALL;
+    execute(() -> {
+      mAdvertisingFields = subscribed;
+      mScanChangeFilter.setFields(subscribed);
+    });
+  }
+
+  /**
+   * Timeout (ms) of a single GATT operation and how many times it is retried on timeout
+   * or when the stack is busy before its promise is rejected.
+   */
+  public void setGattRetryPolicy(long timeout, int retries) {
+    // fail the caller, not the bluetooth thread
+    if (timeout <= 0) {
+      throw new IllegalArgumentException("timeout must be positive");
     }
+    if (retries < 0) {
+      throw new IllegalArgumentException("retries must not be negative");
+    }
+    execute(() -> {
+      mGattTimeout = timeout;
+      mGattRetries = retries;
+      for (GattSession session : mConnections.getSessions()) {
+        GattQueue queue = session.queue;
+        if (queue != null) {
+          queue.setRetryPolicy(timeout, retries);
+        }
+      }
+    });
+  }
 
-    if (checkScanPermission()) {
-      if (getBluetoothAdapter().isDiscovering()) {
-        promise.reject("E_BLUETOOTH_HAS_SCANNED", "Bluetooth already scanned.");
+  /**
+   * Decode iBeacon and Eddystone UID, URL and TLM advertisements natively into 'DecodedData' entries
+   * of scan events, in place of their raw Base64 data.
+   */
+  public void setBeaconDecoders(boolean enabled) {
+    execute(() -> {
+      mBeaconDecoders = enabled;
+      rebuildDecoders();
+    });
+  }
+
+  /**
+   * Decode manufacturer data of the given companies by declarative layouts. Each layout is a map with
+   * 'companyId', 'type' and 'fields', and each field a map with 'name', 'offset' (after the company id),
+   * 'length' (1 to 4 bytes) and the optional 'bigEndian', 'signed' and 'scale'.
+   */
+  public void setManufacturerLayouts(ReadableArray layouts) {
+    // compiled here, so a bad layout fails the caller, not the bluetooth thread
+    AdvertisingDecoder[] decoders = new AdvertisingDecoder[layouts.size()];
+    for (int i = 0; i < layouts.size(); i++) {
+      ReadableMap layout = layouts.getMap(i);
+      ReadableArray fields = layout.getArray("fields");
+      ManufacturerLayoutDecoder.Field[] compiled = new ManufacturerLayoutDecoder.Field[fields.size()];
+      for (int j = 0; j < fields.size(); j++) {
+        ReadableMap field = fields.getMap(j);
+        compiled[j] = new ManufacturerLayoutDecoder.Field(
+          field.getString("name"),
+          field.getInt("offset"),
+          field.getInt("length"),
+          field.hasKey("bigEndian") && field.getBoolean("bigEndian"),
+          field.hasKey("signed") && field.getBoolean("signed"),
+          field.hasKey("scale") ? field.getDouble("scale") : 1
+        );
       }
+      decoders[i] = new ManufacturerLayoutDecoder(layout.getInt("companyId"), layout.getString("type"), compiled);
+    }
+    execute(() -> {
+      mLayoutDecoders = decoders;
+      rebuildDecoders();
+    });
+  }
 
-      ScanSettings scanSettings = new ScanSettings.Builder()
-        .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
-        .build();
-      if (companyIds.size() > 0) {
-        for (Integer companyId : companyIds) {
-          filters.add(new ScanFilter.Builder().setManufacturerData(companyId, new byte[] {}, new byte[] {}).build());
-        }
+  /**
+   * Plug in a decoder for an advertisement format that is neither a beacon nor a fixed layout.
+   */
+  void addAdvertisingDecoder(AdvertisingDecoder decoder) {
+    if (decoder == null) {
+      throw new IllegalArgumentException("decoder must not be null");
+    }
+    execute(() -> {
+      mCustomDecoders.add(decoder);
+      rebuildDecoders();
+    });
+  }
+
+  private void rebuildDecoders() {
+    List<AdvertisingDecoder> decoders = new ArrayList<>();
+    if (mBeaconDecoders) {
+      decoders.add(BeaconDecoders.IBEACON);
+      decoders.add(BeaconDecoders.EDDYSTONE);
+    }
+    decoders.addAll(Arrays.asList(mLayoutDecoders));
+    decoders.addAll(mCustomDecoders);
+    mDecoders = decoders.toArray(new AdvertisingDecoder[0]);
+  }
+
+  /**
+   * Select the scan profile (0 low power, 1 balanced, 2 low latency, 3 opportunistic) and the
+   * ScanSettings callback type, match mode and number of matches. First match and match lost
+   * callback types need scan rules the controller can run, set before. A running scan restarts on the next startScan.
+   */
+  public void setScanProfile(int profile, int callbackType, int matchMode, int numOfMatches) {
+    // fail the caller, not the bluetooth thread, where ScanSettings.Builder would throw
+    ScanScheduler.toScanMode(profile);
+    ScanScheduler.checkScanSettings(callbackType, matchMode, numOfMatches);
+    if (callbackType != ScanSettings.CALLBACK_TYPE_ALL_MATCHES && mScanFilterEngine.getHardwareFilters() == null) {
+      throw new IllegalArgumentException("callback type " + callbackType + " needs scan rules the controller can run");
+    }
+    int[] options = {profile, callbackType, matchMode, numOfMatches};
+    execute(() -> mScanOptions = options);
+  }
+
+  /**
+   * Scan for onDuration ms of every period ms instead of continuously, e.g. a 2000 ms burst every 10000 ms
+   * with the low latency profile. Zero for either disables duty cycling.
+   */
+  public void setScanDutyCycle(long onDuration, long period) {
+    // the scheduler is synchronized, and setting it here rejects a bad cycle on the caller's thread
+    mScanScheduler.setDutyCycle(onDuration, period);
+  }
+
+  /**
+   * Maximum number of peripherals connected at the same time, bounded in practice by the controller.
+   */
+  public void setMaxConnections(int maxConnections) {
+    // the limit is volatile, and setting it here rejects a bad one on the caller's thread
+    mConnections.setMaxConnections(maxConnections);
+  }
+
+  /**
+   * Keep up to maxIdle links open after js disconnects them, for up to idleTimeout ms each (zero or less for no
+   * timeout), so the next connect to the same device resolves right away with its services and subscriptions still
+   * in place. The least recently used idle link is closed first when the limit or the connection limit is reached.
+   * Zero turns pooling off, which is the default.
+   */
+  public void setConnectionPool(int maxIdle, long idleTimeout) {
+    // fail the caller, not the bluetooth thread
+    if (maxIdle < 0) {
+      throw new IllegalArgumentException("maxIdle must not be negative");
+    }
+    execute(() -> mPool.configure(maxIdle, idleTimeout));
+  }
+
+  /**
+   * Keep the device's link however long it is idle, and when it is lost reconnect in the background with
+   * autoConnect, which lets the controller wait for the device at low power.
+   */
+  public void setPinnedDevice(String identifier, boolean pinned) {
+    execute(() -> mPool.setPinned(identifier, pinned));
+  }
+
+  /**
+   * Reconnect links that are lost unexpectedly, waiting initialDelay ms doubling up to maxDelay ms with jitter
+   * between at most maxAttempts attempts. Once a link is back its MTU, PHY, connection priority and notification
+   * subscriptions are restored, under their old subscription ids, and a 'Restored' event is emitted.
+   * 'ReconnectFailed' is emitted when the attempts are used up. Off by default.
+   */
+  public void setReconnectPolicy(boolean enabled, long initialDelay, long maxDelay, int maxAttempts) {
+    // fail the caller, not the bluetooth thread
+    if (initialDelay <= 0 || maxDelay < initialDelay) {
+      throw new IllegalArgumentException("delays must be positive and maxDelay at least initialDelay");
+    }
+    if (maxAttempts <= 0) {
+      throw new IllegalArgumentException("maxAttempts must be positive");
+    }
+    execute(() -> mSupervisor.configure(enabled, initialDelay, maxDelay, maxAttempts));
+  }
+
+  /**
+   * Deliver notifications as 'CharacteristicValueChanged' batches once per interval (ms).
+   */
+  public void setNotificationBatchInterval(long interval) {
+    // the dispatcher is synchronized, it is fed from the binder threads as well
+    mNotificationDispatcher.setInterval(interval);
+  }
+
+  /**
+   * Bound the values buffered per subscription while js is not draining them.
+   * When the buffer is full policy 0 drops the oldest value, 1 drops the incoming one
+   * and 2 only ever keeps the latest value. Applies to subscriptions created afterwards.
+   */
+  public void setNotificationBufferPolicy(int capacity, int policy) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    if (policy < NotificationSubscription.POLICY_DROP_OLDEST || policy > NotificationSubscription.POLICY_COALESCE_LATEST) {
+      throw new IllegalArgumentException("unknown policy " + policy);
+    }
+    execute(() -> {
+      mNotificationCapacity = capacity;
+      mNotificationPolicy = policy;
+    });
+  }
+
+  /**
+   * Right after connecting, request high connection priority, the maximum MTU and the 2M PHY
+   * (where supported) before any other GATT operation runs.
+   */
+  public void setThroughputProfile(boolean enabled) {
+    execute(() -> mThroughputProfile = enabled);
+  }
+
+  /**
+   * Emit the stats as a 'BluetoothStats' event once per interval (ms), zero stops the event.
+   */
+  public void setStatsInterval(long interval) {
+    execute(() -> {
+      mStatsInterval = Math.max(0, interval);
+      mHandler.removeCallbacks(mStatsRunnable);
+      if (mStatsInterval > 0) {
+        mHandler.postDelayed(mStatsRunnable, mStatsInterval);
       }
+    });
+  }
+
+  private void emitStats() {
+    // send event 'BluetoothStats' to react native, same map as getStats resolves
+    if (mEmitter != null) {
+      mEmitter.emit("BluetoothStats", mStats.toMap());
+    }
+    if (mStatsInterval > 0) {
+      mHandler.postDelayed(mStatsRunnable, mStatsInterval);
+    }
+  }
 
-      getBluetoothAdapter().getBluetoothLeScanner().startScan(filters, scanSettings, mScanCallback);
+  /**
+   * Remember the GATT layout of every peripheral on disk so discoverServices resolves right away on the next
+   * connection while the real discovery revalidates it in the background. Disabling it deletes nothing,
+   * it only stops using the file.
+   */
+  public void setGattDatabaseCache(boolean enabled) {
+    execute(() -> {
+      GattDatabaseCache cache = mDatabaseCache;
+      if (enabled && cache == null) {
+        // the file is read on the cache's own thread, lookups miss until it is
+        cache = new GattDatabaseCache(new File(mContext.getNoBackupFilesDir(), GATT_DATABASE_CACHE_FILE));
+        cache.load();
+        mDatabaseCache = cache;
+      } else if (!enabled && cache != null) {
+        mDatabaseCache = null;
+        cache.close();
+      }
+    });
+  }
 
-      promise.resolve(null);
-    } else {
-      promise.reject("E_BLUETOOTH_PERMISSION", "Scan permission not granted.");
+  public BluetoothDevice getDevice(String identifier) {
+    return mDeviceRegistry.getDevice(identifier);
+  }
+
+  @Nullable
+  private GattSession getConnectedSession(String identifier) {
+    GattSession session = mConnections.get(identifier);
+    if (session == null || !session.isConnected()) {
+      return null;
     }
+    mPool.touch(session);
+    return session;
+  }
+
+  @Override
+  @SuppressLint("MissingPermission")
+  void startScan(List<ScanFilter> filters, Promise promise) {
+    execute(() -> {
+      if (!getTransport().isAvailable()) {
+        promise.reject("E_BLUETOOTH_ADAPTER_NOT_INITIALIZED", "Unable to initialize BluetoothAdapter.");
+      }
+
+      if (checkScanPermission()) {
+        if (getTransport().isDiscovering()) {
+          promise.reject("E_BLUETOOTH_HAS_SCANNED", "Bluetooth already scanned.");
+        }
+
+        // rules the controller can express keep unrelated advertisements from waking us up at all,
+        // everything that reaches the callback is checked again in software
+        List<ScanFilter> scanFilters = new ArrayList<>(filters);
+        List<ScanFilter> hardwareFilters = mScanFilterEngine.getHardwareFilters();
+        if (hardwareFilters != null) {
+          scanFilters.addAll(hardwareFilters);
+        }
+        if (scanFilters.isEmpty() && mScanOptions[1] != ScanSettings.CALLBACK_TYPE_ALL_MATCHES) {
+          // the scan rules were replaced by ones the controller cannot run since the profile was set
+          promise.reject("E_BLUETOOTH_SCAN_FILTER_REQUIRED", "Callback type needs scan filters.");
+          return;
+        }
+        mScanFilters = scanFilters;
+
+        if (!mScanScheduler.isRequested()) {
+          // let the controller batch results when it can, otherwise coalesce them on our side
+          mScanBatcher.cancel();
+          mScanBatcher.setOffloaded(
+            mScanBatcher.isEnabled()
+              && mScanOptions[1] == ScanSettings.CALLBACK_TYPE_ALL_MATCHES
+              && getTransport().isOffloadedScanBatchingSupported()
+          );
+        }
+        // repeated calls only cost a restart when they changed what the scanner runs with
+        mScanScheduler.start();
+        if (mScanScheduler.isScanning()
+          && !(Arrays.equals(mScanOptions, mActiveScanOptions) && scanFilters.equals(mActiveScanFilters))) {
+          mScanScheduler.restart();
+        }
+
+        promise.resolve(null);
+      } else {
+        promise.reject("E_BLUETOOTH_PERMISSION", "Scan permission not granted.");
+      }
+    });
   }
 
   @Override
   @SuppressLint("MissingPermission")
   boolean isDiscovering() {
-    if (getBluetoothAdapter() != null) {
-      return getBluetoothAdapter().isDiscovering();
-    }
-    return false;
+    return getTransport().isDiscovering();
   }
 
   @Override
   @SuppressLint("MissingPermission")
   void stopScan(Promise promise) {
-    if (getBluetoothAdapter() == null) {
-      promise.reject("E_BLUETOOTH_ADAPTER_NOT_INITIALIZED", "Unable to initialize BluetoothAdapter.");
-    }
+    execute(() -> {
+      if (!getTransport().isAvailable()) {
+        promise.reject("E_BLUETOOTH_ADAPTER_NOT_INITIALIZED", "Unable to initialize BluetoothAdapter.");
+      }
 
-    if (checkScanPermission()) {
-      getBluetoothAdapter().getBluetoothLeScanner().stopScan(mScanCallback);
-      Toast.makeText(mContext, "블루투스 스캔이 중지되었습니다.", Toast.LENGTH_SHORT).show();
-      clearDevices();
+      if (checkScanPermission()) {
+        if (!mScanScheduler.stop()) {
+          promise.resolve(null);
+          return;
+        }
+        mScanBatcher.flush();
+        mMainHandler.post(() -> Toast.makeText(mContext, "블루투스 스캔이 중지되었습니다.", Toast.LENGTH_SHORT).show());
+        // keep discovered devices so identifiers stay valid for connect after the scan stops,
+        // the registry bounds itself by capacity and ttl
+        mDeviceRegistry.evictExpired(SystemClock.elapsedRealtime());
 
-      promise.resolve(null);
-    } else {
-      promise.reject("E_BLUETOOTH_PERMISSION", "Scan permission not granted.");
-    }
+        promise.resolve(null);
+      } else {
+        promise.reject("E_BLUETOOTH_PERMISSION", "Scan permission not granted.");
+      }
+    });
   }
 
-  @Override
+  /**
+   * Start the LE scanner with the current profile and filters, called by the scan scheduler.
+   */
   @SuppressLint("MissingPermission")
-  void connect(BluetoothDevice device, Promise promise) {
+  private boolean startLeScan() {
     if (!checkScanPermission()) {
-      promise.reject("E_BLUETOOTH_PERMISSION", "Scan permission not granted.");
-      return;
+      return false;
     }
 
-    mConnectPromise = promise;
-    device.connectGatt(mContext, false, mBluetoothGattCallback);
+    int[] options = mScanOptions;
+    List<ScanFilter> filters = mScanFilters;
+    ScanSettings.Builder scanSettingsBuilder = new ScanSettings.Builder()
+      .setScanMode(ScanScheduler.toScanMode(options[0]));
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+      scanSettingsBuilder
+        .setCallbackType(options[1])
+        .setMatchMode(options[2])
+        .setNumOfMatches(options[3]);
+    }
+    if (mScanBatcher.isOffloaded()) {
+      scanSettingsBuilder.setReportDelay(mScanBatcher.getInterval());
+    }
+    if (!getTransport().startScan(filters, scanSettingsBuilder.build(), mScanListener)) {
+      return false;
+    }
+    mActiveScanOptions = options;
+    mActiveScanFilters = filters;
+    return true;
   }
 
-  @Override
   @SuppressLint("MissingPermission")
-  void disconnect(Promise promise) {
-    if (checkScanPermission() && mGatt != null) {
-      mDisconnectPromise = promise;
-      mGatt.disconnect();
-    } else {
-      promise.reject("E_BLUETOOTH_DISCONNECT", "Bluetooth not connected.");
+  private void stopLeScan() {
+    if (checkScanPermission()) {
+      if (mScanBatcher.isOffloaded()) {
+        getTransport().flushPendingScanResults();
+      }
+      getTransport().stopScan();
     }
+    mActiveScanOptions = null;
+    mActiveScanFilters = null;
   }
 
   @Override
   @SuppressLint("MissingPermission")
-  void discoverServices(Promise promise) {
-    if (checkScanPermission() && mGatt != null) {
-      mDiscoverServicesPromise = promise;
-      mGatt.discoverServices();
-    } else {
-      promise.reject("E_BLUETOOTH_DISCOVER", "Bluetooth not connected.");
-    }
+  void connect(String identifier, Promise promise) {
+    execute(() -> {
+      if (!checkScanPermission()) {
+        promise.reject("E_BLUETOOTH_PERMISSION", "Scan permission not granted.");
+        return;
+      }
+
+      GattSession session = mConnections.get(identifier);
+      if (session == null && mSupervisor.connectNow(identifier)) {
+        // lost and waiting for the next attempt, which is made right away instead
+        session = mConnections.get(identifier);
+      }
+      if (session != null) {
+        mPool.acquire(identifier);
+        if (session.isConnected()) {
+          promise.resolve(null);
+        } else if (session.state == GattSession.STATE_CONNECTING && session.connectPromise == null) {
+          // a pinned device's background connection or a reconnect, which now has someone waiting for it
+          session.connectPromise = promise;
+        } else {
+          promise.reject("E_BLUETOOTH_CONNECTION_IN_PROGRESS", "Connection already in progress.");
+        }
+        return;
+      }
+
+      BluetoothDevice device = getDevice(identifier);
+      if (device == null) {
+        promise.reject("E_BLUETOOTH_DEVICE_NOT_FOUND", "Device not found.");
+        return;
+      }
+      if (mConnections.isFull() && !mPool.evictEldest()) {
+        promise.reject("E_BLUETOOTH_CONNECTION_LIMIT", "Too many connected devices.");
+        return;
+      }
+
+      session = new GattSession(identifier, device);
+      session.state = GattSession.STATE_CONNECTING;
+      session.connectPromise = promise;
+      session.metrics = mStats.device(identifier);
+      session.connectStartedAt = System.nanoTime();
+      mConnections.add(session);
+
+      GattConnection gatt = getTransport().connect(device, createGattListener(session), mHandler, false);
+      if (gatt == null) {
+        mConnections.remove(session);
+        session.state = GattSession.STATE_DISCONNECTED;
+        session.connectPromise = null;
+        promise.reject("E_BLUETOOTH_CONNECTION_ERROR", "Connection error.");
+        return;
+      }
+      session.gatt = gatt;
+    });
   }
 
   @Override
   @SuppressLint("MissingPermission")
-  void writeCharacteristic(UUID serviceId, UUID uuid, byte[] data, Promise promise) {
-    if (checkScanPermission() && mGatt != null) {
-      BluetoothGattService service = mGatt.getService(serviceId);
-      if (service != null) {
-        BluetoothGattCharacteristic characteristic = service.getCharacteristic(uuid);
-        if (characteristic != null) {
-          if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-            mGatt.writeCharacteristic(characteristic, data, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-          } else {
-            characteristic.setValue(data);
-            mGatt.writeCharacteristic(characteristic);
+  void disconnect(String identifier, Promise promise) {
+    execute(() -> {
+      GattSession session = mConnections.get(identifier);
+      ReconnectSupervisor.Plan plan = mSupervisor.cancel(identifier);
+      if (plan != null) {
+        // js gives up on the lost link, an attempt in progress is abandoned
+        if (session == null || !session.isConnected()) {
+          if (session != null) {
+            evict(session);
           }
-          mWriteCharacteristicPromise = promise;
-        } else {
-          promise.reject("E_BLUETOOTH_CHARACTERISTIC_NOT_FOUND", "Characteristic not found.");
+          promise.resolve(null);
+          return;
         }
+        session.restore = null;
+      }
+      if (checkScanPermission() && session != null && session.isConnected() && mPool.park(session)) {
+        // js is done with it, the link stays for the next connect
+        promise.resolve(null);
+      } else if (checkScanPermission() && session != null && session.gatt != null) {
+        session.state = GattSession.STATE_DISCONNECTING;
+        session.disconnectPromise = promise;
+        session.gatt.disconnect();
       } else {
-        promise.reject("E_BLUETOOTH_SERVICE_NOT_FOUND", "Service not found.");
+        promise.reject("E_BLUETOOTH_DISCONNECT", "Bluetooth not connected.");
       }
-    }
+    });
   }
 
   @Override
   @SuppressLint("MissingPermission")
-  void readCharacteristic(UUID serviceId, UUID uuid, Promise promise) {
-    if (checkScanPermission() && mGatt != null) {
-      BluetoothGattService service = mGatt.getService(serviceId);
-      if (service != null) {
-        BluetoothGattCharacteristic characteristic = service.getCharacteristic(uuid);
-        if (characteristic != null) {
-          mGatt.readCharacteristic(characteristic);
-          mReadCharacteristicPromise = promise;
-        } else {
-          promise.reject("E_BLUETOOTH_CHARACTERISTIC_NOT_FOUND", "Characteristic not found.");
+  void discoverServices(String identifier, Promise promise) {
+    execute(() -> {
+      GattSession session = getConnectedSession(identifier);
+      if (checkScanPermission() && session != null) {
+        // the database only changes with a Service Changed indication, which drops the layout
+        GattLayout layout = session.layout;
+        if (layout != null && session.attributes != null) {
+          promise.resolve(createServicesResult(layout));
+          return;
+        }
+        if (session.awaitingDiscovery != null) {
+          // answered from disk before, that discovery is still running
+          promise.resolve(createServicesResult(session.cachedLayout));
+          return;
+        }
+
+        GattDatabaseCache cache = mDatabaseCache;
+        GattDatabaseCache.Entry entry = cache != null && session.attributes == null
+          ? cache.get(DeviceRegistry.parseAddress(session.device.getAddress()))
+          : null;
+        Promise discoveryPromise = promise;
+        if (entry != null) {
+          // answer from disk while the real discovery runs, operations js issues meanwhile are held until it
+          // completed, as their attributes do not exist before
+          session.cachedLayout = entry.layout;
+          session.awaitingDiscovery = new ArrayList<>();
+          promise.resolve(createServicesResult(entry.layout));
+          discoveryPromise = new PromiseImpl(
+            args -> releaseHeldOperations(session),
+            error -> {
+              Log.i(TAG, "Service revalidation failed for " + identifier + ": " + error[0]);
+              releaseHeldOperations(session);
+            }
+          );
         }
+        session.queue.enqueue(new GattCommand(
+          GattCommand.DISCOVER_SERVICES, null, discoveryPromise,
+          GattConnection::discoverServices,
+          "E_BLUETOOTH_DISCOVER_SERVICES_FAILED", "Discover services failed."
+        ));
       } else {
-        promise.reject("E_BLUETOOTH_SERVICE_NOT_FOUND", "Service not found.");
+        promise.reject("E_BLUETOOTH_DISCOVER", "Bluetooth not connected.");
       }
-    }
+    });
   }
 
   @Override
   @SuppressLint("MissingPermission")
-  void setNotifyCharacteristic(UUID serviceId, UUID uuid, boolean enable, Callback callback) {
-    if (checkScanPermission() && mGatt != null) {
-      BluetoothGattService service = mGatt.getService(serviceId);
-      if (service != null) {
-        BluetoothGattCharacteristic characteristic = service.getCharacteristic(uuid);
+  void writeCharacteristic(String identifier, UUID serviceId, UUID uuid, byte[] data, Promise promise) {
+    execute(() -> {
+      GattSession session = getConnectedSession(identifier);
+      if (checkScanPermission() && session != null) {
+        if (holdUntilDiscovered(session, () -> writeCharacteristic(identifier, serviceId, uuid, data, promise))) {
+          return;
+        }
+        BluetoothGattCharacteristic characteristic = resolveCharacteristic(session, serviceId, uuid, promise);
         if (characteristic != null) {
-          mGatt.setCharacteristicNotification(characteristic, enable);
-          if (enable) {
-            callbacks.put(uuid.toString(), callback);
-          } else {
-            callbacks.remove(uuid.toString());
-          }
+          enqueueWriteCharacteristic(session, characteristic, data, promise);
         }
+      } else {
+        promise.reject("E_BLUETOOTH_WRITE", "Bluetooth not connected.");
       }
-    }
+    });
   }
 
   @Override
   @SuppressLint("MissingPermission")
-  void writeDescriptor(UUID serviceId, UUID characteristicId, UUID uuid, byte[] data, Promise promise) {
-    if (checkScanPermission() && mGatt != null) {
-      BluetoothGattService service = mGatt.getService(serviceId);
-      if (service != null) {
-        BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicId);
+  void writeCharacteristic(String identifier, int handle, byte[] data, Promise promise) {
+    execute(() -> {
+      GattSession session = getConnectedSession(identifier);
+      if (checkScanPermission() && session != null) {
+        if (holdUntilDiscovered(session, () -> writeCharacteristic(identifier, handle, data, promise))) {
+          return;
+        }
+        BluetoothGattCharacteristic characteristic = resolveCharacteristic(session, handle, promise);
         if (characteristic != null) {
-          BluetoothGattDescriptor descriptor = characteristic.getDescriptor(uuid);
-          if (descriptor != null) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-              mGatt.writeDescriptor(descriptor, data);
-            } else {
-              descriptor.setValue(data);
-              mGatt.writeDescriptor(descriptor);
-            }
-            mWriteDescriptorPromise = promise;
-          } else {
-            promise.reject("E_BLUETOOTH_DESCRIPTOR_NOT_FOUND", "Descriptor not found.");
-          }
-        } else {
-          promise.reject("E_BLUETOOTH_CHARACTERISTIC_NOT_FOUND", "Characteristic not found.");
+          enqueueWriteCharacteristic(session, characteristic, data, promise);
         }
       } else {
-        promise.reject("E_BLUETOOTH_SERVICE_NOT_FOUND", "Service not found.");
+        promise.reject("E_BLUETOOTH_WRITE", "Bluetooth not connected.");
       }
-    }
+    });
+  }
+
+  private void enqueueWriteCharacteristic(GattSession session, BluetoothGattCharacteristic characteristic, byte[] data, Promise promise) {
+    session.queue.enqueue(new GattCommand(
+      GattCommand.WRITE_CHARACTERISTIC, characteristic, promise,
+      gatt -> gatt.writeCharacteristic(characteristic, data, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT),
+      "E_BLUETOOTH_WRITE_CHARACTERISTIC_FAILED", "Write characteristic failed."
+    ));
   }
 
   @Override
   @SuppressLint("MissingPermission")
-  void readDescriptor(UUID serviceId, UUID characteristicId, UUID uuid, Promise promise) {
-    if (checkScanPermission() && mGatt != null) {
-      BluetoothGattService service = mGatt.getService(serviceId);
-      if (service != null) {
-        BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicId);
-        if (characteristic != null) {
-          BluetoothGattDescriptor descriptor = characteristic.getDescriptor(uuid);
-          if (descriptor != null) {
-            mGatt.readDescriptor(descriptor);
-            mReadDescriptorPromise = promise;
-          } else {
-            promise.reject("E_BLUETOOTH_DESCRIPTOR_NOT_FOUND", "Descriptor not found.");
-          }
-        } else {
-          promise.reject("E_BLUETOOTH_CHARACTERISTIC_NOT_FOUND", "Characteristic not found.");
+  void writeCharacteristicStream(String identifier, UUID serviceId, UUID uuid, List<byte[]> payloads, Promise promise) {
+    execute(() -> {
+      GattSession session = getConnectedSession(identifier);
+      if (checkScanPermission() && session != null) {
+        if (holdUntilDiscovered(session, () -> writeCharacteristicStream(identifier, serviceId, uuid, payloads, promise))) {
+          return;
         }
+        BluetoothGattCharacteristic characteristic = resolveCharacteristic(session, serviceId, uuid, promise);
+        if (characteristic == null) {
+          return;
+        }
+        if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0) {
+          // the stream writes without response only, every chunk would be refused until the busy retries ran out
+          promise.reject("E_BLUETOOTH_WRITE_NO_RESPONSE_UNSUPPORTED", "Characteristic does not support write without response.");
+          return;
+        }
+        GattWriteStream stream = new GattWriteStream(characteristic, payloads, session.mtu);
+        if (stream.isDone()) {
+          promise.resolve(createWriteStreamResult(stream));
+          return;
+        }
+        session.queue.enqueue(new GattCommand(
+          GattCommand.WRITE_STREAM, characteristic, promise, stream,
+          "E_BLUETOOTH_WRITE_CHARACTERISTIC_FAILED", "Write characteristic failed."
+        ));
       } else {
-        promise.reject("E_BLUETOOTH_SERVICE_NOT_FOUND", "Service not found.");
+        promise.reject("E_BLUETOOTH_WRITE", "Bluetooth not connected.");
       }
-    }
+    });
   }
 
   @Override
-  void requestAdvertisePermission(Activity activity) {
-    if (!checkAdvertisePermission()) {
-      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-        ActivityCompat.requestPermissions(
-          activity,
-          getAdvertisePermissions(),
-          PERMISSION_ADVERTISE_RESULT_CODE
-        );
+  @SuppressLint("MissingPermission")
+  void readCharacteristic(String identifier, UUID serviceId, UUID uuid, Promise promise) {
+    execute(() -> {
+      GattSession session = getConnectedSession(identifier);
+      if (checkScanPermission() && session != null) {
+        if (holdUntilDiscovered(session, () -> readCharacteristic(identifier, serviceId, uuid, promise))) {
+          return;
+        }
+        BluetoothGattCharacteristic characteristic = resolveCharacteristic(session, serviceId, uuid, promise);
+        if (characteristic != null) {
+          enqueueReadCharacteristic(session, characteristic, promise);
+        }
+      } else {
+        promise.reject("E_BLUETOOTH_READ", "Bluetooth not connected.");
       }
-    }
+    });
   }
 
   @Override
-  void requestScanPermission(Activity activity) {
-    if (!checkScanPermission()) {
-      ActivityCompat.requestPermissions(
-        activity,
-        getScanPermissions(),
-        PERMISSION_SCAN_RESULT_CODE
-      );
-    }
+  @SuppressLint("MissingPermission")
+  void readCharacteristic(String identifier, int handle, Promise promise) {
+    execute(() -> {
+      GattSession session = getConnectedSession(identifier);
+      if (checkScanPermission() && session != null) {
+        if (holdUntilDiscovered(session, () -> readCharacteristic(identifier, handle, promise))) {
+          return;
+        }
+        BluetoothGattCharacteristic characteristic = resolveCharacteristic(session, handle, promise);
+        if (characteristic != null) {
+          enqueueReadCharacteristic(session, characteristic, promise);
+        }
+      } else {
+        promise.reject("E_BLUETOOTH_READ", "Bluetooth not connected.");
+      }
+    });
   }
 
-  protected BluetoothGattCallback createBluetoothGattCallback() {
-    return new BluetoothGattCallback() {
-      @Override
-      public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-        switch (newState) {
-          case BluetoothProfile.STATE_CONNECTED:
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-              mGatt = gatt;
-              if (mConnectPromise != null) {
-                mConnectPromise.resolve(null);
-              }
-            } else {
-              mGatt = null;
-              clearCallbacks();
-              if (mConnectPromise != null) {
-                mConnectPromise.reject("E_BLUETOOTH_CONNECTION_ERROR", "Connection error.");
-              }
-            }
-            mConnectPromise = null;
-            break;
-          case BluetoothProfile.STATE_DISCONNECTED:
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-              mGatt = null;
-              clearCallbacks();
-              if (mDisconnectPromise != null) {
-                mDisconnectPromise.resolve(null);
-              }
-            } else {
-              if (mDisconnectPromise != null) {
-                mDisconnectPromise.reject("E_BLUETOOTH_DISCONNECT_ERROR", "Disconnect error.");
-              }
-            }
-            mDisconnectPromise = null;
-            break;
+  @SuppressLint("MissingPermission")
+  private void enqueueReadCharacteristic(GattSession session, BluetoothGattCharacteristic characteristic, Promise promise) {
+    session.queue.enqueue(new GattCommand(
+      GattCommand.READ_CHARACTERISTIC, characteristic, promise,
+      gatt -> gatt.readCharacteristic(characteristic),
+      "E_BLUETOOTH_READ_CHARACTERISTIC_FAILED", "Read characteristic failed."
+    ));
+  }
+
+  @Override
+  @SuppressLint("MissingPermission")
+  void setNotifyCharacteristic(String identifier, UUID serviceId, UUID uuid, boolean enable, Promise promise) {
+    execute(() -> {
+      GattSession session = getConnectedSession(identifier);
+      if (checkScanPermission() && session != null) {
+        if (holdUntilDiscovered(session, () -> setNotifyCharacteristic(identifier, serviceId, uuid, enable, promise))) {
+          return;
+        }
+        BluetoothGattCharacteristic characteristic = resolveCharacteristic(session, serviceId, uuid, promise);
+        if (characteristic == null) {
+          return;
+        }
+        if (!session.gatt.setCharacteristicNotification(characteristic, enable)) {
+          promise.reject("E_BLUETOOTH_SET_NOTIFY_FAILED", "Set notify characteristic failed.");
+          return;
         }
-      }
 
-      @Override
-      public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-        super.onServicesDiscovered(gatt, status);
-        if (status == BluetoothGatt.GATT_SUCCESS) {
-          // resolve promise within data is map of params
-          // params is map with key 'serviceIds' and 'characteristics' and 'descriptors'
-          // uuid is service uuid and characteristics is array of characteristics
-          // each characteristic is characteristic uuid string
-          // each descriptor is descriptor uuid string
-          // MUST BE check if promise is not null
-          if (mDiscoverServicesPromise != null) {
-            WritableMap params = Arguments.createMap();
-            WritableArray serviceIds = Arguments.createArray();
-            WritableArray characteristics = Arguments.createArray();
-            WritableArray descriptors = Arguments.createArray();
-            for (BluetoothGattService service : gatt.getServices()) {
-              serviceIds.pushString(service.getUuid().toString());
-              for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
-                characteristics.pushString(characteristic.getUuid().toString());
-                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
-                  descriptors.pushString(descriptor.getUuid().toString());
-                }
-              }
-            }
-            params.putArray("serviceIds", serviceIds);
-            params.putArray("characteristics", characteristics);
-            params.putArray("descriptors", descriptors);
-            mDiscoverServicesPromise.resolve(params);
-            mDiscoverServicesPromise = null;
+        // resolve promise with the subscription id that 'CharacteristicValueChanged' events carry
+        Object result = null;
+        if (enable) {
+          NotificationSubscription subscription = session.subscriptions.get(characteristic);
+          if (subscription == null) {
+            subscription = new NotificationSubscription(
+              mNextSubscriptionId.incrementAndGet(), identifier, characteristic,
+              mNotificationCapacity, mNotificationPolicy
+            );
+            session.subscriptions.put(characteristic, subscription);
           }
+          result = subscription.id;
         } else {
-          // MUST BE check if promise is not null
-          if (mDiscoverServicesPromise != null) {
-            mDiscoverServicesPromise.reject("E_BLUETOOTH_DISCOVER_SERVICES_FAILED", "Discover services failed.");
-            mDiscoverServicesPromise = null;
-          }
+          session.subscriptions.remove(characteristic);
         }
-      }
 
-      @Override
-      @RequiresApi(api = Build.VERSION_CODES.TIRAMISU)
-      public void onCharacteristicRead(@NonNull BluetoothGatt gatt, @NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] value, int status) {
-        if (status == BluetoothGatt.GATT_SUCCESS) {
-          // resolve promise data is map
-          // with key 'uuid' and 'data'
-          // and uuid is characteristic uuid and data is characteristic value
-          WritableMap map = Arguments.createMap();
-          map.putString("uuid", characteristic.getUuid().toString());
-          map.putString("data", Base64.encodeToString(value, Base64.DEFAULT));
-          mReadCharacteristicPromise.resolve(map);
-        } else {
-          mReadCharacteristicPromise.reject("E_BLUETOOTH_READ_CHARACTERISTIC_FAILED", "Read characteristic failed.");
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+        if (descriptor == null) {
+          promise.resolve(result);
+          return;
         }
+        byte[] value = getNotificationValue(characteristic, enable);
+        GattCommand command = new GattCommand(
+          GattCommand.WRITE_DESCRIPTOR, descriptor, promise,
+          gatt -> gatt.writeDescriptor(descriptor, value),
+          "E_BLUETOOTH_SET_NOTIFY_FAILED", "Set notify characteristic failed."
+        );
+        command.result = result;
+        session.queue.enqueue(command);
+      } else {
+        promise.reject("E_BLUETOOTH_SET_NOTIFY", "Bluetooth not connected.");
       }
+    });
+  }
 
-      @Override
-      public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-        if (status == BluetoothGatt.GATT_SUCCESS) {
-          // resolve promise data is map
-          // with key 'uuid' and 'data'
-          // and uuid is characteristic uuid and data is characteristic value
-          WritableMap map = Arguments.createMap();
-          map.putString("uuid", characteristic.getUuid().toString());
-          map.putString("data", Base64.encodeToString(characteristic.getValue(), Base64.DEFAULT));
-          mReadCharacteristicPromise.resolve(map);
-        } else {
-          mReadCharacteristicPromise.reject("E_BLUETOOTH_READ_CHARACTERISTIC_FAILED", "Read characteristic failed.");
+  /**
+   * Client Characteristic Configuration value, notifications where the characteristic has them, else indications.
+   */
+  private static byte[] getNotificationValue(BluetoothGattCharacteristic characteristic, boolean enable) {
+    if (!enable) {
+      return BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+    } else if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+      return BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+    } else {
+      return BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+    }
+  }
+
+  @Override
+  @SuppressLint("MissingPermission")
+  void writeDescriptor(String identifier, UUID serviceId, UUID characteristicId, UUID uuid, byte[] data, Promise promise) {
+    execute(() -> {
+      GattSession session = getConnectedSession(identifier);
+      if (checkScanPermission() && session != null) {
+        if (holdUntilDiscovered(session, () -> writeDescriptor(identifier, serviceId, characteristicId, uuid, data, promise))) {
+          return;
+        }
+        BluetoothGattDescriptor descriptor = resolveDescriptor(session, serviceId, characteristicId, uuid, promise);
+        if (descriptor != null) {
+          enqueueWriteDescriptor(session, descriptor, data, promise);
         }
-        mReadCharacteristicPromise = null;
+      } else {
+        promise.reject("E_BLUETOOTH_WRITE", "Bluetooth not connected.");
       }
+    });
+  }
 
-      @Override
-      public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-        if (status == BluetoothGatt.GATT_SUCCESS) {
-          mWriteCharacteristicPromise.resolve(null);
-        } else {
-          mWriteCharacteristicPromise.reject("E_BLUETOOTH_WRITE_CHARACTERISTIC_FAILED", "Write characteristic failed.");
+  @Override
+  @SuppressLint("MissingPermission")
+  void readDescriptor(String identifier, UUID serviceId, UUID characteristicId, UUID uuid, Promise promise) {
+    execute(() -> {
+      GattSession session = getConnectedSession(identifier);
+      if (checkScanPermission() && session != null) {
+        if (holdUntilDiscovered(session, () -> readDescriptor(identifier, serviceId, characteristicId, uuid, promise))) {
+          return;
         }
-        mWriteCharacteristicPromise = null;
+        BluetoothGattDescriptor descriptor = resolveDescriptor(session, serviceId, characteristicId, uuid, promise);
+        if (descriptor != null) {
+          enqueueReadDescriptor(session, descriptor, promise);
+        }
+      } else {
+        promise.reject("E_BLUETOOTH_READ", "Bluetooth not connected.");
       }
+    });
+  }
 
-      @Override
-      @RequiresApi(api = Build.VERSION_CODES.TIRAMISU)
-      public void onCharacteristicChanged(@NonNull BluetoothGatt gatt, @NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] value) {
-        // send event 'CharacteristicChanged' with data is map to react native
-        // with key 'uuid' and 'data'
-        // and uuid is characteristic uuid and data is characteristic value
-        WritableMap map = Arguments.createMap();
-        map.putString("uuid", characteristic.getUuid().toString());
-        map.putString("data", Base64.encodeToString(value, Base64.DEFAULT));
+  private void enqueueWriteDescriptor(GattSession session, BluetoothGattDescriptor descriptor, byte[] data, Promise promise) {
+    session.queue.enqueue(new GattCommand(
+      GattCommand.WRITE_DESCRIPTOR, descriptor, promise,
+      gatt -> gatt.writeDescriptor(descriptor, data),
+      "E_BLUETOOTH_WRITE_DESCRIPTOR_FAILED", "Write descriptor failed."
+    ));
+  }
+
+  private void enqueueReadDescriptor(GattSession session, BluetoothGattDescriptor descriptor, Promise promise) {
+    session.queue.enqueue(new GattCommand(
+      GattCommand.READ_DESCRIPTOR, descriptor, promise,
+      gatt -> gatt.readDescriptor(descriptor),
+      "E_BLUETOOTH_READ_DESCRIPTOR_FAILED", "Read descriptor failed."
+    ));
+  }
 
-        Callback callback = callbacks.get(characteristic.getUuid().toString());
-        if (callback != null) {
-          callback.invoke(map);
+  @Override
+  @SuppressLint("MissingPermission")
+  void readMany(String identifier, List<GattTarget> targets, Promise promise) {
+    execute(() -> {
+      GattSession session = getConnectedSession(identifier);
+      if (checkScanPermission() && session != null) {
+        if (holdUntilDiscovered(session, () -> readMany(identifier, targets, promise))) {
+          return;
         }
+        enqueueMany(session, targets, false, promise);
+      } else {
+        promise.reject("E_BLUETOOTH_READ", "Bluetooth not connected.");
       }
+    });
+  }
 
-      @Override
-      public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-        // send event 'CharacteristicChanged' with data is map to react native
-        // with key 'uuid' and 'data'
-        // and uuid is characteristic uuid and data is characteristic value
-        WritableMap map = Arguments.createMap();
-        map.putString("uuid", characteristic.getUuid().toString());
-        map.putString("data", Base64.encodeToString(characteristic.getValue(), Base64.DEFAULT));
-
-        Callback callback = callbacks.get(characteristic.getUuid().toString());
-        if (callback != null) {
-          callback.invoke(map);
+  @Override
+  @SuppressLint("MissingPermission")
+  void writeMany(String identifier, List<GattTarget> targets, Promise promise) {
+    execute(() -> {
+      GattSession session = getConnectedSession(identifier);
+      if (checkScanPermission() && session != null) {
+        if (holdUntilDiscovered(session, () -> writeMany(identifier, targets, promise))) {
+          return;
         }
+        enqueueMany(session, targets, true, promise);
+      } else {
+        promise.reject("E_BLUETOOTH_WRITE", "Bluetooth not connected.");
       }
+    });
+  }
 
-      @Override
-      @RequiresApi(api = Build.VERSION_CODES.TIRAMISU)
-      public void onDescriptorRead(@NonNull BluetoothGatt gatt, @NonNull BluetoothGattDescriptor descriptor, int status, @NonNull byte[] value) {
-        if (status == BluetoothGatt.GATT_SUCCESS) {
-          // resolve promise data is map
-          // with key 'uuid' and 'data'
-          // and uuid is descriptor uuid and data is descriptor value
-          WritableMap map = Arguments.createMap();
-          map.putString("uuid", descriptor.getUuid().toString());
-          map.putString("data", Base64.encodeToString(value, Base64.DEFAULT));
-          mReadDescriptorPromise.resolve(map);
+  /**
+   * Queue the operations of all targets at once, so each starts the moment the previous one completes
+   * instead of after a bridge round trip. Targets that do not resolve fail on their own.
+   */
+  private void enqueueMany(GattSession session, List<GattTarget> targets, boolean write, Promise promise) {
+    GattBatch batch = new GattBatch(targets, promise);
+    for (int i = 0; i < targets.size(); i++) {
+      GattTarget target = targets.get(i);
+      Promise item = batch.item(i);
+      if (write && target.value == null) {
+        item.reject("E_BLUETOOTH_WRITE", "No data to write.");
+        continue;
+      }
+      if (target.descriptorId != null) {
+        BluetoothGattDescriptor descriptor =
+          resolveDescriptor(session, target.serviceId, target.characteristicId, target.descriptorId, item);
+        if (descriptor == null) {
+          continue;
+        }
+        if (write) {
+          enqueueWriteDescriptor(session, descriptor, target.value, item);
         } else {
-          mReadDescriptorPromise.reject("E_BLUETOOTH_READ_DESCRIPTOR_FAILED", "Read descriptor failed.");
+          enqueueReadDescriptor(session, descriptor, item);
         }
-        mReadDescriptorPromise = null;
+        continue;
+      }
+      BluetoothGattCharacteristic characteristic =
+        resolveCharacteristic(session, target.serviceId, target.characteristicId, item);
+      if (characteristic == null) {
+        continue;
+      }
+      if (write) {
+        enqueueWriteCharacteristic(session, characteristic, target.value, item);
+      } else {
+        enqueueReadCharacteristic(session, characteristic, item);
+      }
+    }
+  }
+
+  /**
+   * Hold an operation that looks up attributes while the discovery behind an answer from the GATT database cache
+   * runs, the gatt has none to find before. Returns true when held, the operation is issued again afterwards.
+   */
+  private boolean holdUntilDiscovered(GattSession session, Runnable operation) {
+    if (session.awaitingDiscovery == null) {
+      return false;
+    }
+    session.awaitingDiscovery.add(operation);
+    return true;
+  }
+
+  /**
+   * Issue the held operations again in their order, once the discovery completed, failed or the link went down.
+   */
+  private void releaseHeldOperations(GattSession session) {
+    List<Runnable> operations = session.awaitingDiscovery;
+    session.awaitingDiscovery = null;
+    if (operations != null) {
+      for (Runnable operation : operations) {
+        operation.run();
       }
+    }
+  }
 
-      @Override
-      public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-        if (status == BluetoothGatt.GATT_SUCCESS) {
-          // resolve promise data is map
-          // with key 'uuid' and 'data'
-          // and uuid is descriptor uuid and data is descriptor value
-          WritableMap map = Arguments.createMap();
-          map.putString("uuid", descriptor.getUuid().toString());
-          map.putString("data", Base64.encodeToString(descriptor.getValue(), Base64.DEFAULT));
-          mReadDescriptorPromise.resolve(map);
+  /**
+   * Find a characteristic through the attribute cache, falling back to the services of the gatt
+   * while no cache is built. Rejects the promise and returns null when it does not exist.
+   */
+  @Nullable
+  private BluetoothGattCharacteristic resolveCharacteristic(GattSession session, UUID serviceId, UUID uuid, Promise promise) {
+    AttributeCache attributes = session.attributes;
+    BluetoothGattCharacteristic characteristic = attributes != null ? attributes.getCharacteristic(serviceId, uuid) : null;
+    if (characteristic != null) {
+      return characteristic;
+    }
+
+    BluetoothGattService service = session.gatt.getService(serviceId);
+    if (service == null) {
+      promise.reject("E_BLUETOOTH_SERVICE_NOT_FOUND", "Service not found.");
+      return null;
+    }
+    characteristic = service.getCharacteristic(uuid);
+    if (characteristic == null) {
+      promise.reject("E_BLUETOOTH_CHARACTERISTIC_NOT_FOUND", "Characteristic not found.");
+    }
+    return characteristic;
+  }
+
+  /**
+   * Find a characteristic by the handle discoverServices reported for it.
+   * Handles are only valid until the connection ends or the remote database changes.
+   */
+  @Nullable
+  private BluetoothGattCharacteristic resolveCharacteristic(GattSession session, int handle, Promise promise) {
+    AttributeCache attributes = session.attributes;
+    BluetoothGattCharacteristic characteristic = attributes != null ? attributes.getCharacteristic(handle) : null;
+    if (characteristic == null) {
+      promise.reject("E_BLUETOOTH_CHARACTERISTIC_NOT_FOUND", "Characteristic not found.");
+    }
+    return characteristic;
+  }
+
+  @Nullable
+  private BluetoothGattDescriptor resolveDescriptor(GattSession session, UUID serviceId, UUID characteristicId, UUID uuid, Promise promise) {
+    BluetoothGattCharacteristic characteristic = resolveCharacteristic(session, serviceId, characteristicId, promise);
+    if (characteristic == null) {
+      return null;
+    }
+
+    AttributeCache attributes = session.attributes;
+    BluetoothGattDescriptor descriptor = attributes != null
+      ? attributes.getDescriptor(serviceId, characteristicId, uuid)
+      : characteristic.getDescriptor(uuid);
+    if (descriptor == null) {
+      promise.reject("E_BLUETOOTH_DESCRIPTOR_NOT_FOUND", "Descriptor not found.");
+    }
+    return descriptor;
+  }
+
+  @Override
+  @SuppressLint("MissingPermission")
+  void requestMtu(String identifier, int mtu, Promise promise) {
+    execute(() -> {
+      GattSession session = getConnectedSession(identifier);
+      if (checkScanPermission() && session != null) {
+        session.queue.enqueue(new GattCommand(
+          GattCommand.REQUEST_MTU, null, promise,
+          gatt -> gatt.requestMtu(mtu),
+          "E_BLUETOOTH_REQUEST_MTU_FAILED", "Request MTU failed."
+        ));
+      } else {
+        promise.reject("E_BLUETOOTH_REQUEST_MTU", "Bluetooth not connected.");
+      }
+    });
+  }
+
+  @Override
+  @SuppressLint("MissingPermission")
+  void requestConnectionPriority(String identifier, int priority, Promise promise) {
+    execute(() -> {
+      GattSession session = getConnectedSession(identifier);
+      if (checkScanPermission() && session != null) {
+        // the stack reports no completion for this request, so it does not go through the queue
+        if (session.gatt.requestConnectionPriority(priority)) {
+          session.connectionPriority = priority;
+          promise.resolve(null);
         } else {
-          mReadDescriptorPromise.reject("E_BLUETOOTH_READ_DESCRIPTOR_FAILED", "Read descriptor failed.");
+          promise.reject("E_BLUETOOTH_REQUEST_CONNECTION_PRIORITY_FAILED", "Request connection priority failed.");
         }
-        mReadDescriptorPromise = null;
+      } else {
+        promise.reject("E_BLUETOOTH_REQUEST_CONNECTION_PRIORITY", "Bluetooth not connected.");
       }
+    });
+  }
 
-      @Override
-      public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-        if (status == BluetoothGatt.GATT_SUCCESS) {
-          mWriteDescriptorPromise.resolve(null);
-        } else {
-          mWriteDescriptorPromise.reject("E_BLUETOOTH_WRITE_DESCRIPTOR_FAILED", "Write descriptor failed.");
+  @Override
+  @SuppressLint("MissingPermission")
+  void setPreferredPhy(String identifier, int txPhy, int rxPhy, int phyOptions, Promise promise) {
+    execute(() -> {
+      if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+        promise.reject("E_BLUETOOTH_UNSUPPORTED", "Preferred PHY requires Android 8.0.");
+        return;
+      }
+
+      GattSession session = getConnectedSession(identifier);
+      if (checkScanPermission() && session != null) {
+        session.queue.enqueue(new GattCommand(
+          GattCommand.SET_PREFERRED_PHY, null, promise,
+          gatt -> {
+            gatt.setPreferredPhy(txPhy, rxPhy, phyOptions);
+            return true;
+          },
+          "E_BLUETOOTH_SET_PREFERRED_PHY_FAILED", "Set preferred PHY failed."
+        ));
+      } else {
+        promise.reject("E_BLUETOOTH_SET_PREFERRED_PHY", "Bluetooth not connected.");
+      }
+    });
+  }
+
+  @Override
+  void getStats(Promise promise) {
+    // resolve promise data is map
+    // with key 'elapsed', 'scan', 'total' and 'devices'
+    // and latencies are summaries with key 'count', 'min', 'mean', 'p50', 'p90', 'p99', 'p999' and 'max' in ms
+    execute(() -> promise.resolve(mStats.toMap()));
+  }
+
+  @Override
+  void resetStats(Promise promise) {
+    execute(() -> {
+      mStats.reset();
+      promise.resolve(null);
+    });
+  }
+
+  @Override
+  void startRecording(Promise promise) {
+    // resolve promise data is the path of the traffic log in the cache directory
+    execute(() -> {
+      closeRecorder();
+      File file = new File(mContext.getCacheDir(), TRAFFIC_LOG_PREFIX + System.currentTimeMillis() + TRAFFIC_LOG_SUFFIX);
+      try {
+        getRecordingTransport().setRecorder(new TrafficRecorder(file));
+      } catch (IOException e) {
+        promise.reject("E_BLUETOOTH_RECORDING", "Unable to create traffic log.", e);
+        return;
+      }
+      promise.resolve(file.getAbsolutePath());
+    });
+  }
+
+  @Override
+  void stopRecording(Promise promise) {
+    // resolve promise data is map
+    // with key 'path', 'records', 'bytes' and 'dropped'
+    execute(() -> {
+      TrafficRecorder recorder = closeRecorder();
+      if (recorder == null) {
+        promise.reject("E_BLUETOOTH_RECORDING", "Not recording.");
+        return;
+      }
+      WritableMap map = Arguments.createMap();
+      map.putString("path", recorder.getFile().getAbsolutePath());
+      map.putDouble("records", recorder.getRecords());
+      map.putDouble("bytes", recorder.getBytes());
+      map.putDouble("dropped", recorder.getDropped());
+      promise.resolve(map);
+    });
+  }
+
+  @Nullable
+  private TrafficRecorder closeRecorder() {
+    TrafficRecorder recorder = getRecordingTransport().getRecorder();
+    if (recorder != null) {
+      getRecordingTransport().setRecorder(null);
+      recorder.close();
+    }
+    return recorder;
+  }
+
+  @Override
+  void requestAdvertisePermission(Activity activity) {
+    if (!checkAdvertisePermission()) {
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+        ActivityCompat.requestPermissions(
+          activity,
+          getAdvertisePermissions(),
+          PERMISSION_ADVERTISE_RESULT_CODE
+        );
+      }
+    }
+  }
+
+  @Override
+  void requestScanPermission(Activity activity) {
+    if (!checkScanPermission()) {
+      ActivityCompat.requestPermissions(
+        activity,
+        getScanPermissions(),
+        PERMISSION_SCAN_RESULT_CODE
+      );
+    }
+  }
+
+  private void onConnected(GattSession session) {
+    session.openQueue(session.gatt, mHandler, mGattTimeout, mGattRetries);
+    session.state = GattSession.STATE_CONNECTED;
+    ReconnectSupervisor.Plan plan = session.restore;
+    if (plan != null) {
+      restore(session, plan);
+    } else if (mThroughputProfile) {
+      applyThroughputProfile(session);
+    }
+    if (session.connectPromise != null) {
+      session.metrics.recordConnect(System.nanoTime() - session.connectStartedAt);
+      session.connectPromise.resolve(null);
+      session.connectPromise = null;
+    } else if (plan == null || plan.parked) {
+      // a pinned device came back by itself, it waits in the pool until js connects
+      mPool.park(session);
+    }
+  }
+
+  /**
+   * Queue what the lost connection had ahead of anything js sends next: discovery first, since the
+   * subscriptions need the new characteristic instances, then MTU, priority and PHY, then the subscriptions.
+   */
+  @SuppressLint("MissingPermission")
+  private void restore(GattSession session, ReconnectSupervisor.Plan plan) {
+    String identifier = session.identifier;
+    plan.pending = 1;
+    plan.failures = 0;
+    plan.restored = 0;
+    session.queue.enqueue(new GattCommand(
+      GattCommand.DISCOVER_SERVICES, null, new PromiseImpl(
+        args -> {
+          restoreSubscriptions(session, plan);
+          onRestoreStep(session, plan, true);
+        },
+        error -> onRestoreStep(session, plan, false)
+      ),
+      GattConnection::discoverServices,
+      "E_BLUETOOTH_DISCOVER_SERVICES_FAILED", "Discover services failed."
+    ));
+    if (plan.mtu > GattSession.DEFAULT_MTU) {
+      plan.pending++;
+      requestMtu(identifier, plan.mtu, createRestorePromise(session, plan));
+    }
+    if (plan.connectionPriority != BluetoothGatt.CONNECTION_PRIORITY_BALANCED) {
+      plan.pending++;
+      requestConnectionPriority(identifier, plan.connectionPriority, createRestorePromise(session, plan));
+    }
+    if (plan.txPhy != BluetoothDevice.PHY_LE_1M || plan.rxPhy != BluetoothDevice.PHY_LE_1M) {
+      plan.pending++;
+      // the PHY values are 1, 2 and 3, their mask bits 1, 2 and 4
+      setPreferredPhy(
+        identifier, 1 << (plan.txPhy - 1), 1 << (plan.rxPhy - 1), BluetoothDevice.PHY_OPTION_NO_PREFERRED,
+        createRestorePromise(session, plan)
+      );
+    }
+  }
+
+  @SuppressLint("MissingPermission")
+  private void restoreSubscriptions(GattSession session, ReconnectSupervisor.Plan plan) {
+    AttributeCache attributes = session.attributes;
+    for (NotificationSubscription subscription : plan.subscriptions) {
+      BluetoothGattCharacteristic characteristic = attributes != null
+        ? attributes.getCharacteristic(UUID.fromString(subscription.serviceUuid), UUID.fromString(subscription.uuid))
+        : null;
+      if (characteristic == null || !session.gatt.setCharacteristicNotification(characteristic, true)) {
+        plan.failures++;
+        continue;
+      }
+      session.subscriptions.put(characteristic, subscription.rebind(characteristic));
+      plan.restored++;
+      BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+      if (descriptor == null) {
+        continue;
+      }
+      byte[] value = getNotificationValue(characteristic, true);
+      plan.pending++;
+      session.queue.enqueue(new GattCommand(
+        GattCommand.WRITE_DESCRIPTOR, descriptor, createRestorePromise(session, plan),
+        gatt -> gatt.writeDescriptor(descriptor, value),
+        "E_BLUETOOTH_SET_NOTIFY_FAILED", "Set notify characteristic failed."
+      ));
+    }
+  }
+
+  private Promise createRestorePromise(GattSession session, ReconnectSupervisor.Plan plan) {
+    return new PromiseImpl(
+      args -> onRestoreStep(session, plan, true),
+      error -> {
+        Log.i(TAG, "Restore step failed for " + session.identifier + ": " + error[0]);
+        onRestoreStep(session, plan, false);
+      }
+    );
+  }
+
+  private void onRestoreStep(GattSession session, ReconnectSupervisor.Plan plan, boolean succeeded) {
+    if (!succeeded) {
+      plan.failures++;
+    }
+    if (--plan.pending > 0 || session.restore != plan) {
+      return;
+    }
+    session.restore = null;
+    mSupervisor.finish(plan);
+
+    // send event 'Restored' to react native
+    // with key 'identifier', 'attempts', 'duration' (ms since the link was lost), 'mtu', 'txPhy', 'rxPhy',
+    // 'subscriptions' (restored) and 'failures' (steps that did not go through)
+    if (mEmitter != null) {
+      WritableMap params = Arguments.createMap();
+      params.putString("identifier", session.identifier);
+      params.putInt("attempts", plan.attempts);
+      params.putDouble("duration", (System.nanoTime() - plan.lostAt) / 1e6);
+      params.putInt("mtu", session.mtu);
+      params.putInt("txPhy", session.txPhy);
+      params.putInt("rxPhy", session.rxPhy);
+      params.putInt("subscriptions", plan.restored);
+      params.putInt("failures", plan.failures);
+      mEmitter.emit("Restored", params);
+    }
+  }
+
+  /**
+   * An attempt of the supervisor: connect directly, a lost link is usually back within a few seconds.
+   */
+  @SuppressLint("MissingPermission")
+  private void reconnect(ReconnectSupervisor.Plan plan) {
+    GattSession existing = mConnections.get(plan.identifier);
+    if (existing != null) {
+      // js connected by itself in the meantime, or this attempt is already under way
+      if (existing.restore != plan) {
+        mSupervisor.finish(plan);
+      }
+      return;
+    }
+    if (!checkScanPermission() || (mConnections.isFull() && !mPool.evictEldest())) {
+      onReconnectAttemptFailed(plan, BluetoothGatt.GATT_FAILURE);
+      return;
+    }
+    GattSession session = new GattSession(plan.identifier, plan.device);
+    session.state = GattSession.STATE_CONNECTING;
+    session.restore = plan;
+    session.metrics = mStats.device(plan.identifier);
+    session.connectStartedAt = System.nanoTime();
+    mConnections.add(session);
+    GattConnection gatt = getTransport().connect(plan.device, createGattListener(session), mHandler, false);
+    if (gatt == null) {
+      mConnections.remove(session);
+      session.state = GattSession.STATE_DISCONNECTED;
+      onReconnectAttemptFailed(plan, ReconnectSupervisor.GATT_ERROR);
+      return;
+    }
+    session.gatt = gatt;
+  }
+
+  private void onReconnectAttemptFailed(ReconnectSupervisor.Plan plan, int status) {
+    if (mSupervisor.schedule(plan, status)) {
+      return;
+    }
+    // send event 'ReconnectFailed' to react native
+    // with key 'identifier', 'attempts' and 'status' of the last attempt
+    if (mEmitter != null) {
+      WritableMap params = Arguments.createMap();
+      params.putString("identifier", plan.identifier);
+      params.putInt("attempts", plan.attempts);
+      params.putInt("status", status);
+      mEmitter.emit("ReconnectFailed", params);
+    }
+    // a pinned device is still waited for in the background
+    if (mPool.isPinned(plan.identifier)) {
+      reconnectPinned(plan.identifier, plan.device);
+    }
+  }
+
+  /**
+   * Queue the throughput settings ahead of anything js sends after connect resolves.
+   * Failures only mean the link keeps running with the defaults.
+   */
+  private void applyThroughputProfile(GattSession session) {
+    String identifier = session.identifier;
+    requestConnectionPriority(identifier, BluetoothGatt.CONNECTION_PRIORITY_HIGH, createProfilePromise(identifier));
+    requestMtu(identifier, GattSession.MAX_MTU, createProfilePromise(identifier));
+    if (getTransport().isLe2MPhySupported()) {
+      setPreferredPhy(
+        identifier,
+        BluetoothDevice.PHY_LE_2M_MASK,
+        BluetoothDevice.PHY_LE_2M_MASK,
+        BluetoothDevice.PHY_OPTION_NO_PREFERRED,
+        createProfilePromise(identifier)
+      );
+    }
+  }
+
+  private Promise createProfilePromise(String identifier) {
+    return createBackgroundPromise(identifier, "Throughput profile step");
+  }
+
+  private void onMtuChanged(GattSession session, int mtu, int status) {
+    if (status == BluetoothGatt.GATT_SUCCESS) {
+      session.mtu = mtu;
+    }
+
+    GattQueue queue = session.queue;
+    GattCommand command = queue != null ? queue.complete(GattCommand.REQUEST_MTU, null) : null;
+    if (command == null) {
+      return;
+    }
+
+    if (status == BluetoothGatt.GATT_SUCCESS) {
+      command.promise.resolve(mtu);
+    } else {
+      command.reject();
+    }
+  }
+
+  private void onPhyUpdate(GattSession session, int txPhy, int rxPhy, int status) {
+    if (status == BluetoothGatt.GATT_SUCCESS) {
+      session.txPhy = txPhy;
+      session.rxPhy = rxPhy;
+    }
+
+    GattQueue queue = session.queue;
+    GattCommand command = queue != null ? queue.complete(GattCommand.SET_PREFERRED_PHY, null) : null;
+    if (command == null) {
+      return;
+    }
+
+    if (status == BluetoothGatt.GATT_SUCCESS) {
+      // resolve promise data is map
+      // with key 'txPhy' and 'rxPhy'
+      WritableMap map = Arguments.createMap();
+      map.putInt("txPhy", txPhy);
+      map.putInt("rxPhy", rxPhy);
+      command.promise.resolve(map);
+    } else {
+      command.reject();
+    }
+  }
+
+  @SuppressLint("MissingPermission")
+  private void onDisconnected(GattSession session, int status) {
+    // neither asked for by js nor the end of a connect js waits for
+    boolean lost = session.state != GattSession.STATE_DISCONNECTING && session.connectPromise == null;
+    boolean wasConnected = session.state == GattSession.STATE_CONNECTED;
+    // an attempt of the supervisor carries on with its plan, a fresh loss starts one while the subscriptions are known
+    ReconnectSupervisor.Plan plan = session.restore;
+    if (plan == null && lost && wasConnected && mSupervisor.isEnabled()) {
+      plan = new ReconnectSupervisor.Plan(session, mPool.isIdle(session));
+    }
+    session.restore = null;
+    session.state = GattSession.STATE_DISCONNECTED;
+    mPool.remove(session);
+    // the link is gone either way, fail pending operations instead of letting them time out
+    session.closeQueue("E_BLUETOOTH_DISCONNECTED", "Bluetooth disconnected.");
+    // deliver what already arrived before the subscriptions go away
+    mNotificationDispatcher.flush();
+    session.subscriptions.clear();
+    session.attributes = null;
+    session.layout = null;
+    mConnections.remove(session);
+    // release the client interface, otherwise it keeps counting against the controller limit
+    if (session.gatt != null) {
+      session.gatt.close();
+    }
+
+    if (session.connectPromise != null) {
+      session.metrics.recordConnectFailure();
+      session.connectPromise.reject("E_BLUETOOTH_CONNECTION_ERROR", "Connection error.");
+      session.connectPromise = null;
+    }
+    if (session.disconnectPromise != null) {
+      if (status == BluetoothGatt.GATT_SUCCESS) {
+        session.disconnectPromise.resolve(null);
+      } else {
+        session.disconnectPromise.reject("E_BLUETOOTH_DISCONNECT_ERROR", "Disconnect error.");
+      }
+      session.disconnectPromise = null;
+    }
+
+    if (plan != null) {
+      onReconnectAttemptFailed(plan, status);
+    } else if (lost && mPool.isPinned(session.identifier)) {
+      // a background connection that failed is issued again after a pause rather than in a loop
+      long delay = wasConnected ? 0 : PINNED_RECONNECT_DELAY_MS;
+      mHandler.postDelayed(() -> reconnectPinned(session.identifier, session.device), delay);
+    }
+  }
+
+  /**
+   * Connect to a pinned device in the background, with autoConnect so the controller waits for it to show up.
+   */
+  @SuppressLint("MissingPermission")
+  private void reconnectPinned(String identifier, BluetoothDevice device) {
+    if (!mPool.isPinned(identifier) || mConnections.get(identifier) != null || !checkScanPermission()) {
+      return;
+    }
+    if (mConnections.isFull() && !mPool.evictEldest()) {
+      Log.i(TAG, "No link free to reconnect pinned device " + identifier);
+      return;
+    }
+    GattSession session = new GattSession(identifier, device);
+    session.state = GattSession.STATE_CONNECTING;
+    session.metrics = mStats.device(identifier);
+    session.connectStartedAt = System.nanoTime();
+    mConnections.add(session);
+    GattConnection gatt = getTransport().connect(device, createGattListener(session), mHandler, true);
+    if (gatt == null) {
+      mConnections.remove(session);
+      session.state = GattSession.STATE_DISCONNECTED;
+      return;
+    }
+    session.gatt = gatt;
+  }
+
+  /**
+   * Close an idle link the pool gave up on. Closing the client interface ends the link without a callback.
+   */
+  @SuppressLint("MissingPermission")
+  private void evict(GattSession session) {
+    session.state = GattSession.STATE_DISCONNECTED;
+    session.closeQueue("E_BLUETOOTH_DISCONNECTED", "Bluetooth disconnected.");
+    mNotificationDispatcher.flush();
+    session.subscriptions.clear();
+    session.attributes = null;
+    session.layout = null;
+    mConnections.remove(session);
+    if (session.gatt != null) {
+      session.gatt.disconnect();
+      session.gatt.close();
+    }
+  }
+
+  private void onServicesDiscovered(GattSession session, int status) {
+    GattQueue queue = session.queue;
+    GattCommand command = queue != null ? queue.complete(GattCommand.DISCOVER_SERVICES, null) : null;
+    if (command == null) {
+      return;
+    }
+
+    if (status == BluetoothGatt.GATT_SUCCESS) {
+      List<BluetoothGattService> services = session.gatt.getServices();
+      session.attributes = new AttributeCache(services);
+      GattLayout layout = GattLayout.from(services);
+      session.layout = layout;
+      if (session.cachedLayout == null) {
+        command.promise.resolve(createServicesResult(layout));
+      } else {
+        command.promise.resolve(null);
+      }
+      if (mDatabaseCache != null) {
+        revalidateLayout(session, layout);
+      } else {
+        session.cachedLayout = null;
+      }
+    } else {
+      session.cachedLayout = null;
+      command.reject();
+    }
+  }
+
+  private WritableMap createServicesResult(GattLayout layout) {
+    // resolve promise within data is map with key 'services'
+    // each service is map with key 'uuid', 'instanceId', 'isPrimary' and 'characteristics'
+    // each characteristic is map with key 'uuid', 'instanceId', 'handle', 'properties', 'permissions' and 'descriptors'
+    // and handle is the number accepted in place of the uuids by read and write
+    // and properties and permissions are the BluetoothGattCharacteristic bit flags
+    // each descriptor is descriptor uuid string
+    WritableArray services = Arguments.createArray();
+    int handle = 0;
+    for (GattLayout.Service service : layout.services) {
+      WritableArray characteristics = Arguments.createArray();
+      for (GattLayout.Characteristic characteristic : service.characteristics) {
+        WritableArray descriptors = Arguments.createArray();
+        for (UUID descriptor : characteristic.descriptors) {
+          descriptors.pushString(descriptor.toString());
         }
-        mWriteDescriptorPromise = null;
+        WritableMap characteristicMap = Arguments.createMap();
+        characteristicMap.putString("uuid", characteristic.uuid.toString());
+        characteristicMap.putInt("instanceId", characteristic.instanceId);
+        characteristicMap.putInt("handle", handle++);
+        characteristicMap.putInt("properties", characteristic.properties);
+        characteristicMap.putInt("permissions", characteristic.permissions);
+        characteristicMap.putArray("descriptors", descriptors);
+        characteristics.pushMap(characteristicMap);
       }
-    };
+      WritableMap serviceMap = Arguments.createMap();
+      serviceMap.putString("uuid", service.uuid.toString());
+      serviceMap.putInt("instanceId", service.instanceId);
+      serviceMap.putBoolean("isPrimary", service.type == BluetoothGattService.SERVICE_TYPE_PRIMARY);
+      serviceMap.putArray("characteristics", characteristics);
+      services.pushMap(serviceMap);
+    }
+
+    WritableMap params = Arguments.createMap();
+    params.putArray("services", services);
+    return params;
+  }
+
+  /**
+   * Read the fingerprint of a freshly discovered database and store it with its layout.
+   * The Database Hash is preferred, the firmware revision is the fallback for peripherals without one.
+   */
+  private void revalidateLayout(GattSession session, GattLayout layout) {
+    AttributeCache attributes = session.attributes;
+    BluetoothGattCharacteristic fingerprint = attributes.getCharacteristic(GENERIC_ATTRIBUTE_SERVICE, DATABASE_HASH);
+    if (fingerprint == null) {
+      fingerprint = attributes.getCharacteristic(DEVICE_INFORMATION_SERVICE, FIRMWARE_REVISION);
+    }
+    if (fingerprint == null || session.queue == null) {
+      storeLayout(session, layout, new byte[0]);
+      return;
+    }
+    enqueueReadCharacteristic(session, fingerprint, new PromiseImpl(
+      args -> storeLayout(session, layout, PayloadCodec.decode(((ReadableMap) args[0]).getString("data"))),
+      error -> storeLayout(session, layout, new byte[0])
+    ));
+  }
+
+  private void storeLayout(GattSession session, GattLayout layout, byte[] fingerprint) {
+    GattDatabaseCache cache = mDatabaseCache;
+    if (cache == null) {
+      session.cachedLayout = null;
+      return;
+    }
+    long address = DeviceRegistry.parseAddress(session.device.getAddress());
+    GattDatabaseCache.Entry entry = cache.get(address);
+    boolean changed = entry == null
+      || !entry.layout.equals(layout)
+      || (fingerprint.length > 0 && !Arrays.equals(entry.fingerprint, fingerprint));
+
+    // js was answered from disk, tell it when that answer turned out to be stale
+    if (session.cachedLayout != null && changed) {
+      emitServicesChanged(session);
+    }
+    session.cachedLayout = null;
+    if (changed) {
+      cache.put(address, fingerprint, layout);
+    }
+  }
+
+  private Promise createBackgroundPromise(String identifier, String step) {
+    return new PromiseImpl(
+      null,
+      error -> Log.i(TAG, step + " failed for " + identifier + ": " + error[0])
+    );
+  }
+
+  /**
+   * The peripheral indicated Service Changed, so cached attributes and handles may point at stale objects.
+   */
+  private void onServiceChanged(GattSession session) {
+    session.attributes = null;
+    session.layout = null;
+    GattDatabaseCache cache = mDatabaseCache;
+    if (cache != null) {
+      cache.remove(DeviceRegistry.parseAddress(session.device.getAddress()));
+    }
+    emitServicesChanged(session);
+  }
+
+  private void emitServicesChanged(GattSession session) {
+    // send event 'ServicesChanged' to react native
+    // with key 'identifier', js has to call discoverServices again before using handles
+    if (mEmitter != null) {
+      WritableMap params = Arguments.createMap();
+      params.putString("identifier", session.identifier);
+      mEmitter.emit("ServicesChanged", params);
+    }
+  }
+
+  private void onCharacteristicRead(GattSession session, BluetoothGattCharacteristic characteristic, byte[] value, int status) {
+    GattQueue queue = session.queue;
+    GattCommand command = queue != null ? queue.complete(GattCommand.READ_CHARACTERISTIC, characteristic) : null;
+    if (command == null) {
+      return;
+    }
+
+    if (status == BluetoothGatt.GATT_SUCCESS) {
+      // resolve promise data is map
+      // with key 'uuid' and 'data'
+      // and uuid is characteristic uuid and data is characteristic value
+      WritableMap map = Arguments.createMap();
+      map.putString("uuid", characteristic.getUuid().toString());
+      map.putString("data", PayloadCodec.encode(value));
+      command.promise.resolve(map);
+    } else {
+      command.reject();
+    }
+  }
+
+  private void onCharacteristicWrite(GattSession session, BluetoothGattCharacteristic characteristic, int status) {
+    GattQueue queue = session.queue;
+    GattCommand current = queue != null ? queue.current() : null;
+    if (current != null && current.matches(GattCommand.WRITE_STREAM, characteristic)) {
+      onWriteStreamChunk(session, queue, current, status);
+      return;
+    }
+
+    GattCommand command = queue != null ? queue.complete(GattCommand.WRITE_CHARACTERISTIC, characteristic) : null;
+    if (command == null) {
+      return;
+    }
+
+    if (status == BluetoothGatt.GATT_SUCCESS) {
+      command.promise.resolve(null);
+    } else {
+      command.reject();
+    }
+  }
+
+  private void onWriteStreamChunk(GattSession session, GattQueue queue, GattCommand command, int status) {
+    GattWriteStream stream = (GattWriteStream) command.operation;
+    if (status != BluetoothGatt.GATT_SUCCESS) {
+      if (queue.complete(GattCommand.WRITE_STREAM, stream.characteristic) != null) {
+        command.reject();
+      }
+      return;
+    }
+
+    if (stream.onChunkWritten()) {
+      if (queue.complete(GattCommand.WRITE_STREAM, stream.characteristic) != null) {
+        emitWriteStreamProgress(session, stream);
+        command.promise.resolve(createWriteStreamResult(stream));
+      }
+      return;
+    }
+
+    long now = SystemClock.elapsedRealtime();
+    if (now - session.lastWriteProgressAt >= WRITE_PROGRESS_INTERVAL_MS) {
+      session.lastWriteProgressAt = now;
+      emitWriteStreamProgress(session, stream);
+    }
+    queue.touch(command);
+    continueWriteStream(session, queue, command);
+  }
+
+  @SuppressLint("MissingPermission")
+  private void continueWriteStream(GattSession session, GattQueue queue, GattCommand command) {
+    GattWriteStream stream = (GattWriteStream) command.operation;
+    if (queue.current() != command || session.gatt == null) {
+      return;
+    }
+    if (stream.writeNext(session.gatt)) {
+      return;
+    }
+    // the controller buffer is full, back off briefly and hand the same chunk over again
+    if (stream.onBusy()) {
+      mHandler.postDelayed(() -> continueWriteStream(session, queue, command), WRITE_BUSY_DELAY_MS);
+    } else if (queue.complete(GattCommand.WRITE_STREAM, stream.characteristic) != null) {
+      command.reject();
+    }
   }
 
-  protected ScanCallback createBluetoothScanCallback() {
-    return new ScanCallback() {
+  private void emitWriteStreamProgress(GattSession session, GattWriteStream stream) {
+    // send event 'CharacteristicWriteProgress' to react native
+    // with key 'identifier', 'uuid', 'bytesWritten', 'totalBytes' and 'bytesPerSecond'
+    if (mEmitter != null) {
+      WritableMap params = createWriteStreamResult(stream);
+      params.putString("identifier", session.identifier);
+      params.putString("uuid", stream.characteristic.getUuid().toString());
+      mEmitter.emit("CharacteristicWriteProgress", params);
+    }
+  }
+
+  private WritableMap createWriteStreamResult(GattWriteStream stream) {
+    WritableMap map = Arguments.createMap();
+    map.putDouble("bytesWritten", stream.getBytesWritten());
+    map.putDouble("totalBytes", stream.getTotalBytes());
+    map.putDouble("duration", stream.getElapsed());
+    map.putDouble("bytesPerSecond", stream.getBytesPerSecond());
+    return map;
+  }
+
+  private void onDescriptorRead(GattSession session, BluetoothGattDescriptor descriptor, byte[] value, int status) {
+    GattQueue queue = session.queue;
+    GattCommand command = queue != null ? queue.complete(GattCommand.READ_DESCRIPTOR, descriptor) : null;
+    if (command == null) {
+      return;
+    }
+
+    if (status == BluetoothGatt.GATT_SUCCESS) {
+      // resolve promise data is map
+      // with key 'uuid' and 'data'
+      // and uuid is descriptor uuid and data is descriptor value
+      WritableMap map = Arguments.createMap();
+      map.putString("uuid", descriptor.getUuid().toString());
+      map.putString("data", PayloadCodec.encode(value));
+      command.promise.resolve(map);
+    } else {
+      command.reject();
+    }
+  }
+
+  private void onDescriptorWrite(GattSession session, BluetoothGattDescriptor descriptor, int status) {
+    GattQueue queue = session.queue;
+    GattCommand command = queue != null ? queue.complete(GattCommand.WRITE_DESCRIPTOR, descriptor) : null;
+    if (command == null) {
+      return;
+    }
+
+    if (status == BluetoothGatt.GATT_SUCCESS) {
+      command.promise.resolve(command.result);
+    } else {
+      command.reject();
+    }
+  }
+
+  private void onCharacteristicChanged(GattSession session, BluetoothGattCharacteristic characteristic, byte[] value) {
+    session.metrics.recordNotification();
+    NotificationSubscription subscription = session.subscriptions.get(characteristic);
+    if (subscription != null && value != null) {
+      // the value is copied into the subscription's ring before this returns,
+      // so the characteristic's own buffer of the legacy callback can be passed as is
+      mNotificationDispatcher.onValue(subscription, System.currentTimeMillis(), value);
+    }
+  }
+
+  private void emitNotifications(List<NotificationSubscription> subscriptions) {
+    // send event 'CharacteristicValueChanged' with data is array of maps to react native
+    // with key 'subscriptionId', 'identifier', 'serviceUuid', 'uuid', 'timestamps', 'values',
+    // 'dropped', 'totalDelivered' and 'totalDropped'
+    // and timestamps and values are parallel arrays of everything buffered since the last event
+    WritableArray batch = Arguments.createArray();
+    for (int i = 0; i < subscriptions.size(); i++) {
+      NotificationSubscription subscription = subscriptions.get(i);
+      WritableArray timestamps = Arguments.createArray();
+      WritableArray values = Arguments.createArray();
+      int count = subscription.drain((timestamp, value, length) -> {
+        timestamps.pushDouble(timestamp);
+        values.pushString(PayloadCodec.encode(value, 0, length));
+      });
+      if (count == 0) {
+        continue;
+      }
+
+      WritableMap map = Arguments.createMap();
+      map.putInt("subscriptionId", subscription.id);
+      map.putString("identifier", subscription.identifier);
+      map.putString("serviceUuid", subscription.serviceUuid);
+      map.putString("uuid", subscription.uuid);
+      map.putArray("timestamps", timestamps);
+      map.putArray("values", values);
+      map.putDouble("dropped", subscription.getDroppedBeforeDrain());
+      map.putDouble("totalDelivered", subscription.getDelivered());
+      map.putDouble("totalDropped", subscription.getDropped());
+      batch.pushMap(map);
+    }
+
+    // emit event check if not null
+    if (mEmitter != null && batch.size() > 0) {
+      mEmitter.emit("CharacteristicValueChanged", batch);
+    }
+  }
+
+  /**
+   * Callbacks of one connection. They may arrive on other threads, e.g. binder threads before Android 8.0,
+   * and are handed over to the bluetooth thread. Notifications never wait for the bluetooth thread,
+   * their values are buffered right away.
+   */
+  protected GattConnection.Listener createGattListener(GattSession session) {
+    return new GattConnection.Listener() {
       @Override
-      public void onScanResult(int callbackType, ScanResult result) {
-        BluetoothDevice newDevice = result.getDevice();
-        ScanRecord record = result.getScanRecord();
-        String identifier = UUID.randomUUID().toString();
-        String deviceName = record.getDeviceName();
-        int RSSI = result.getRssi();
-        int TxPowerLevel = record.getTxPowerLevel() == Integer.MIN_VALUE ? 0 : record.getTxPowerLevel();
-
-        boolean is_duplicated = false;
-        for (Map.Entry<String, BluetoothDevice> entry : devices.entrySet()) {
-          if (entry.getValue().getAddress().equals(newDevice.getAddress())) {
-            is_duplicated = true;
-            identifier = entry.getKey();
-            break;
+      public void onConnectionStateChange(int status, int newState) {
+        execute(() -> {
+          switch (newState) {
+            case BluetoothProfile.STATE_CONNECTED:
+              if (status == BluetoothGatt.GATT_SUCCESS) {
+                onConnected(session);
+              } else {
+                onDisconnected(session, status);
+              }
+              break;
+            case BluetoothProfile.STATE_DISCONNECTED:
+              onDisconnected(session, status);
+              break;
           }
-        }
+        });
+      }
 
-        if (!is_duplicated) {
-          devices.put(identifier, newDevice);
-        }
-
-        WritableMap params = Arguments.createMap();
-        params.putString("identifier", identifier);
-        params.putString("name", deviceName);
-        params.putInt("RSSI", RSSI);
-        params.putInt("TxPowerLevel", TxPowerLevel);
-        params.putNull("ManufacturerSpecificData");
-
-        // get ManufacturerSpecificData if not null with company identifier as companyId
-        // and base64 encoded data as bytes if not null
-        // SparseArray to React Native Map
-        SparseArray<byte[]> manufacturerData = record.getManufacturerSpecificData();
-        if (manufacturerData != null) {
-          WritableMap manufacturerDataMap = Arguments.createMap();
-          for (int i = 0; i < manufacturerData.size(); i++) {
-            int companyId = manufacturerData.keyAt(i);
-            byte[] bytes = manufacturerData.get(companyId);
-            if (companyIds != null) {
-              if (companyIds.contains(companyId) && bytes != null) {
-                manufacturerDataMap.putString(String.valueOf(companyId), Base64.encodeToString(bytes, Base64.DEFAULT));
-              }
-            } else {
-              if (bytes != null) {
-                manufacturerDataMap.putString(String.valueOf(companyId), Base64.encodeToString(bytes, Base64.DEFAULT));
-              }
-            }
+      @Override
+      public void onServicesDiscovered(int status) {
+        execute(() -> CoreBluetooth.this.onServicesDiscovered(session, status));
+      }
+
+      @Override
+      public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, byte[] value, int status) {
+        execute(() -> CoreBluetooth.this.onCharacteristicRead(session, characteristic, value, status));
+      }
+
+      @Override
+      public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+        execute(() -> CoreBluetooth.this.onCharacteristicWrite(session, characteristic, status));
+      }
+
+      @Override
+      public void onCharacteristicChanged(BluetoothGattCharacteristic characteristic, byte[] value) {
+        CoreBluetooth.this.onCharacteristicChanged(session, characteristic, value);
+      }
+
+      @Override
+      public void onDescriptorRead(BluetoothGattDescriptor descriptor, byte[] value, int status) {
+        execute(() -> CoreBluetooth.this.onDescriptorRead(session, descriptor, value, status));
+      }
+
+      @Override
+      public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        execute(() -> CoreBluetooth.this.onDescriptorWrite(session, descriptor, status));
+      }
+
+      @Override
+      public void onMtuChanged(int mtu, int status) {
+        execute(() -> CoreBluetooth.this.onMtuChanged(session, mtu, status));
+      }
+
+      @Override
+      public void onPhyUpdate(int txPhy, int rxPhy, int status) {
+        execute(() -> CoreBluetooth.this.onPhyUpdate(session, txPhy, rxPhy, status));
+      }
+
+      @Override
+      public void onServiceChanged() {
+        execute(() -> CoreBluetooth.this.onServiceChanged(session));
+      }
+    };
+  }
+
+  private void emitDevices(List<DeviceRegistry.Entry> entries, List<ScanResult> results) {
+    WritableArray devices = Arguments.createArray();
+    for (int i = 0; i < entries.size(); i++) {
+      devices.pushMap(createDeviceParams(entries.get(i).identifier, results.get(i)));
+    }
+
+    // emit event check if not null
+    if (mEmitter != null) {
+      mEmitter.emit("FoundBLEDevices", devices);
+    }
+  }
+
+  private WritableMap createDeviceParams(String identifier, ScanResult result) {
+    ScanRecord record = result.getScanRecord();
+    int fields = mAdvertisingFields;
+
+    WritableMap params = Arguments.createMap();
+    params.putString("identifier", identifier);
+    params.putInt("RSSI", result.getRssi());
+    if ((fields & AdvertisingCursor.FIELD_NAME) != 0) {
+      // the stack already decoded the name into a String, reuse it instead of decoding again
+      params.putString("name", record != null ? record.getDeviceName() : null);
+    }
+
+    // walk the raw AD structures once and pick out the subscribed fields
+    // ManufacturerSpecificData is map with company identifier as key and base64 encoded data as value
+    // ServiceData is map with service uuid as key and base64 encoded data as value
+    // DecodedData is array of maps produced by the advertising decoders, each with at least key 'type'
+    AdvertisingDecoder[] decoders = mDecoders;
+    int decodable = decoders.length > 0 ? AdvertisingCursor.FIELD_MANUFACTURER_DATA | AdvertisingCursor.FIELD_SERVICE_DATA : 0;
+    WritableArray decodedData = null;
+    int txPowerLevel = 0;
+    int flags = 0;
+    WritableMap manufacturerDataMap = (fields & AdvertisingCursor.FIELD_MANUFACTURER_DATA) != 0 ? Arguments.createMap() : null;
+    WritableMap serviceDataMap = (fields & AdvertisingCursor.FIELD_SERVICE_DATA) != 0 ? Arguments.createMap() : null;
+    AdvertisingCursor cursor = mAdvertisingCursor.reset(record != null ? record.getBytes() : null);
+    while (cursor.next(fields | decodable)) {
+      int field = AdvertisingCursor.fieldOf(cursor.type);
+      if ((field & decodable) != 0) {
+        WritableMap decoded = decode(decoders, cursor);
+        if (decoded != null) {
+          // decoded structures are not repeated as raw data
+          if (decodedData == null) {
+            decodedData = Arguments.createArray();
+          }
+          decodedData.pushMap(decoded);
+          continue;
+        }
+        if ((field & fields) == 0) {
+          continue;
+        }
+      }
+      switch (cursor.type) {
+        case AdvertisingCursor.TYPE_TX_POWER:
+          txPowerLevel = cursor.length > 0 ? cursor.getInt8(0) : 0;
+          break;
+        case AdvertisingCursor.TYPE_FLAGS:
+          flags = cursor.length > 0 ? cursor.getUint8(0) : 0;
+          break;
+        case AdvertisingCursor.TYPE_MANUFACTURER_DATA:
+          int companyId = cursor.getCompanyId();
+          if (companyId >= 0 && mScanFilterEngine.isReportedCompany(companyId)) {
+            manufacturerDataMap.putString(
+              String.valueOf(companyId),
+              PayloadCodec.encode(cursor.bytes(), cursor.offset + 2, cursor.length - 2)
+            );
           }
-          params.putMap("ManufacturerSpecificData", manufacturerDataMap);
+          break;
+        case AdvertisingCursor.TYPE_SERVICE_DATA_16:
+        case AdvertisingCursor.TYPE_SERVICE_DATA_32:
+        case AdvertisingCursor.TYPE_SERVICE_DATA_128:
+          UUID serviceUuid = cursor.getServiceDataUuid();
+          if (serviceUuid != null) {
+            int uuidLength = cursor.getServiceUuidLength();
+            serviceDataMap.putString(
+              serviceUuid.toString(),
+              PayloadCodec.encode(cursor.bytes(), cursor.offset + uuidLength, cursor.length - uuidLength)
+            );
+          }
+          break;
+      }
+    }
+
+    if ((fields & AdvertisingCursor.FIELD_TX_POWER) != 0) {
+      params.putInt("TxPowerLevel", txPowerLevel);
+    }
+    if ((fields & AdvertisingCursor.FIELD_FLAGS) != 0) {
+      params.putInt("Flags", flags);
+    }
+    if (manufacturerDataMap != null) {
+      params.putMap("ManufacturerSpecificData", manufacturerDataMap);
+    }
+    if (serviceDataMap != null) {
+      params.putMap("ServiceData", serviceDataMap);
+    }
+    if (decodedData != null) {
+      params.putArray("DecodedData", decodedData);
+    }
+    return params;
+  }
+
+  @Nullable
+  private static WritableMap decode(AdvertisingDecoder[] decoders, AdvertisingCursor cursor) {
+    for (AdvertisingDecoder decoder : decoders) {
+      WritableMap decoded = decoder.decode(cursor);
+      if (decoded != null) {
+        return decoded;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Register the device of a result that passed the scan filter and return its entry,
+   * or null when the result should not be forwarded.
+   */
+  @Nullable
+  private DeviceRegistry.Entry register(ScanResult result) {
+    BluetoothDevice newDevice = result.getDevice();
+    long address = DeviceRegistry.parseAddress(newDevice.getAddress());
+    if (address == DeviceRegistry.INVALID_ADDRESS) {
+      return null;
+    }
+    long now = SystemClock.elapsedRealtime();
+    DeviceRegistry.Entry entry = mDeviceRegistry.obtain(address, newDevice, now);
+    if (!mScanChangeFilter.accept(entry, result, now)) {
+      mStats.scanSuppressed++;
+      return null;
+    }
+    mStats.scanForwarded++;
+    return entry;
+  }
+
+  private void onScanResult(ScanResult result) {
+    DeviceRegistry.Entry entry = register(result);
+    if (entry == null) {
+      return;
+    }
+
+    if (mScanBatcher.isEnabled()) {
+      mScanBatcher.add(entry, result);
+      return;
+    }
+
+    // emit event check if not null
+    if (mEmitter != null) {
+      mEmitter.emit("FoundBLEDevice", createDeviceParams(entry.identifier, result));
+    }
+  }
+
+  private void onBatchScanResults(List<ScanResult> results) {
+    // results were already held back by the controller, keep the latest per device and deliver now
+    for (int i = 0; i < results.size(); i++) {
+      ScanResult result = results.get(i);
+      DeviceRegistry.Entry entry = register(result);
+      if (entry != null) {
+        mScanBatcher.add(entry, result);
+      }
+    }
+    mScanBatcher.flush();
+  }
+
+  /**
+   * Scan callbacks arrive on the transport's thread, the main thread on Android. The immutable scan filter runs
+   * right there, so rejected advertisements never cross threads, and everything else is handed over to the
+   * bluetooth thread.
+   */
+  protected BluetoothTransport.ScanListener createScanListener() {
+    return new BluetoothTransport.ScanListener() {
+      @Override
+      public void onScanResult(ScanResult result) {
+        mStats.scanResults.incrementAndGet();
+        if (mScanFilterEngine.accept(result)) {
+          mScanResults.offer(result);
+        } else {
+          mStats.scanFiltered.incrementAndGet();
         }
+      }
 
-        // emit event check if not null
-        if (mEmitter != null) {
-          mEmitter.emit("FoundBLEDevice", params);
+      @Override
+      public void onScanFailed(int errorCode) {
+        Log.w(TAG, "Scan failed with error " + errorCode);
+        execute(() -> mScanScheduler.onScanFailed(errorCode));
+      }
+
+      @Override
+      public void onBatchScanResults(List<ScanResult> results) {
+        List<ScanResult> accepted = new ArrayList<>(results.size());
+        for (int i = 0; i < results.size(); i++) {
+          ScanResult result = results.get(i);
+          if (mScanFilterEngine.accept(result)) {
+            accepted.add(result);
+          }
         }
+        mStats.scanResults.addAndGet(results.size());
+        mStats.scanFiltered.addAndGet(results.size() - accepted.size());
+        execute(() -> CoreBluetooth.this.onBatchScanResults(accepted));
       }
     };
   }
@@ -0,0 +1,301 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanResult;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Registry of discovered devices keyed by the 48-bit MAC address packed into a primitive long.
+ * <p>
+ * Lookups by address go through an open-addressing table so the scan path never compares
+ * address strings. Entries are kept in least-recently-seen order and evicted once they are
+ * older than the configured TTL or the registry grows beyond its capacity.
+ */
+class DeviceRegistry {
+  static final int DEFAULT_CAPACITY = 1024;
+  static final long DEFAULT_TTL_MS = 10 * 60 * 1000;
+
+  static final long INVALID_ADDRESS = -1L;
+
+  static class Entry {
+    final long address;
+    final String identifier;
+    BluetoothDevice device;
+    long lastSeen;
+
+    // latest result waiting in a scan batch, guarded by the ScanBatcher
+    ScanResult latestResult;
+    boolean pending;
+
+    // last state forwarded to js, see ScanChangeFilter
+    boolean emitted;
+    long lastEmittedAt;
+    double smoothedRssi;
+    double lastEmittedRssi;
+    // subscribed AD structures of the last emitted packet, copied back to back into a reused buffer
+    byte[] lastEmittedFields;
+    int lastEmittedFieldsLength;
+
+    // least-recently-seen list, head is the most recently seen entry
+    Entry prev;
+    Entry next;
+
+    Entry(long address, String identifier, BluetoothDevice device) {
+      this.address = address;
+      this.identifier = identifier;
+      this.device = device;
+    }
+  }
+
+  private Entry[] table;
+  private int mask;
+  private int size;
+  private int capacity;
+  private long ttlMs;
+
+  private Entry head;
+  private Entry tail;
+
+  private final Map<String, Entry> identifiers;
+
+  DeviceRegistry() {
+    this(DEFAULT_CAPACITY, DEFAULT_TTL_MS);
+  }
+
+  DeviceRegistry(int capacity, long ttlMs) {
+    identifiers = new HashMap<>();
+    setLimits(capacity, ttlMs);
+  }
+
+  /**
+   * Change the capacity and TTL. A TTL of zero or less disables age based eviction.
+   */
+  synchronized void setLimits(int capacity, long ttlMs) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.capacity = capacity;
+    this.ttlMs = ttlMs;
+    while (size > capacity) {
+      remove(tail);
+    }
+    rehash(tableSizeFor(capacity));
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Return the entry for the address, registering the device if it has not been seen yet,
+   * and mark it as seen at {@code now}.
+   */
+  synchronized Entry obtain(long address, BluetoothDevice device, long now) {
+    evictExpired(now);
+
+    Entry entry = find(address);
+    if (entry == null) {
+      if (size >= capacity) {
+        remove(tail);
+      }
+      entry = new Entry(address, UUID.randomUUID().toString(), device);
+      insert(entry);
+      identifiers.put(entry.identifier, entry);
+    } else {
+      entry.device = device;
+      unlink(entry);
+    }
+    entry.lastSeen = now;
+    linkFirst(entry);
+    return entry;
+  }
+
+  @Nullable
+  synchronized Entry get(long address) {
+    return find(address);
+  }
+
+  @Nullable
+  synchronized Entry get(String identifier) {
+    return identifiers.get(identifier);
+  }
+
+  @Nullable
+  synchronized BluetoothDevice getDevice(String identifier) {
+    Entry entry = identifiers.get(identifier);
+    return entry != null ? entry.device : null;
+  }
+
+  /**
+   * Drop every entry that has not been seen since {@code now - ttl}.
+   */
+  synchronized void evictExpired(long now) {
+    if (ttlMs <= 0) {
+      return;
+    }
+    long deadline = now - ttlMs;
+    while (tail != null && tail.lastSeen < deadline) {
+      remove(tail);
+    }
+  }
+
+  synchronized void clear() {
+    for (int i = 0; i < table.length; i++) {
+      table[i] = null;
+    }
+    identifiers.clear();
+    head = null;
+    tail = null;
+    size = 0;
+  }
+
+  /**
+   * Pack a "AA:BB:CC:DD:EE:FF" address into the low 48 bits of a long without allocating.
+   * Returns {@link #INVALID_ADDRESS} when the string is not a valid address.
+   */
+  static long parseAddress(@Nullable String address) {
+    if (address == null || address.length() != 17) {
+      return INVALID_ADDRESS;
+    }
+    long value = 0;
+    for (int i = 0; i < 17; i++) {
+      char c = address.charAt(i);
+      if (i % 3 == 2) {
+        if (c != ':') {
+          return INVALID_ADDRESS;
+        }
+        continue;
+      }
+      int digit = Character.digit(c, 16);
+      if (digit < 0) {
+        return INVALID_ADDRESS;
+      }
+      value = (value << 4) | digit;
+    }
+    return value;
+  }
+
+  /**
+   * The "AA:BB:CC:DD:EE:FF" form of an address packed by {@link #parseAddress(String)}.
+   */
+  static String formatAddress(long address) {
+    char[] chars = new char[17];
+    for (int i = 0; i < 6; i++) {
+      int octet = (int) (address >>> ((5 - i) * 8)) & 0xff;
+      chars[i * 3] = Character.toUpperCase(Character.forDigit(octet >>> 4, 16));
+      chars[i * 3 + 1] = Character.toUpperCase(Character.forDigit(octet & 0xf, 16));
+      if (i < 5) {
+        chars[i * 3 + 2] = ':';
+      }
+    }
+    return new String(chars);
+  }
+
+  private static int tableSizeFor(int capacity) {
+    // keep the load factor at or below 0.5 so probe sequences stay short
+    int n = Integer.highestOneBit(Math.max(capacity, 8) - 1) << 2;
+    return n > 0 ? n : 1 << 30;
+  }
+
+  private static int hash(long address) {
+    long h = address * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private void rehash(int tableSize) {
+    Entry[] old = table;
+    table = new Entry[tableSize];
+    mask = tableSize - 1;
+    size = 0;
+    if (old != null) {
+      for (Entry entry : old) {
+        if (entry != null) {
+          insert(entry);
+        }
+      }
+    }
+  }
+
+  @Nullable
+  private Entry find(long address) {
+    int i = hash(address) & mask;
+    Entry entry;
+    while ((entry = table[i]) != null) {
+      if (entry.address == address) {
+        return entry;
+      }
+      i = (i + 1) & mask;
+    }
+    return null;
+  }
+
+  private void insert(Entry entry) {
+    int i = hash(entry.address) & mask;
+    while (table[i] != null) {
+      i = (i + 1) & mask;
+    }
+    table[i] = entry;
+    size++;
+  }
+
+  private void remove(Entry entry) {
+    int i = hash(entry.address) & mask;
+    while (table[i] != entry) {
+      i = (i + 1) & mask;
+    }
+    table[i] = null;
+    size--;
+
+    // backward shift deletion keeps linear probing free of tombstones
+    int j = i;
+    while (true) {
+      j = (j + 1) & mask;
+      Entry moved = table[j];
+      if (moved == null) {
+        break;
+      }
+      int k = hash(moved.address) & mask;
+      boolean reachable = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+      if (!reachable) {
+        table[i] = moved;
+        table[j] = null;
+        i = j;
+      }
+    }
+
+    unlink(entry);
+    identifiers.remove(entry.identifier);
+  }
+
+  private void linkFirst(Entry entry) {
+    entry.prev = null;
+    entry.next = head;
+    if (head != null) {
+      head.prev = entry;
+    }
+    head = entry;
+    if (tail == null) {
+      tail = entry;
+    }
+  }
+
+  private void unlink(Entry entry) {
+    if (entry.prev != null) {
+      entry.prev.next = entry.next;
+    } else if (head == entry) {
+      head = entry.next;
+    }
+    if (entry.next != null) {
+      entry.next.prev = entry.prev;
+    } else if (tail == entry) {
+      tail = entry.prev;
+    }
+    entry.prev = null;
+    entry.next = null;
+  }
+}
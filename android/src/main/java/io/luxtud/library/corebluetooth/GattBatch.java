@@ -0,0 +1,104 @@
+package io.luxtud.library.corebluetooth;
+
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.PromiseImpl;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.List;
+
+/**
+ * Collects the outcomes of a readMany or writeMany, whose operations run back to back on the GATT queue, and
+ * resolves them as one map once the last one completed. An item failing does not fail the batch.
+ * Owned by the bluetooth thread.
+ */
+class GattBatch {
+  private final List<GattTarget> mTargets;
+  private final Promise mPromise;
+  private final WritableMap[] mResults;
+  private final long mStartedAt;
+  private int mPending;
+  private int mFailed;
+
+  GattBatch(List<GattTarget> targets, Promise promise) {
+    mTargets = targets;
+    mPromise = promise;
+    mResults = new WritableMap[targets.size()];
+    mStartedAt = System.nanoTime();
+    mPending = targets.size();
+    if (mPending == 0) {
+      resolve();
+    }
+  }
+
+  /**
+   * The promise the operation of the given item settles.
+   */
+  Promise item(int index) {
+    return new PromiseImpl(
+      args -> onSucceeded(index, args.length > 0 ? args[0] : null),
+      error -> onFailed(index, (ReadableMap) error[0])
+    );
+  }
+
+  private void onSucceeded(int index, @Nullable Object value) {
+    WritableMap result = createResult(index);
+    result.putBoolean("ok", true);
+    // reads resolve with 'uuid' and 'data', writes with nothing
+    if (value instanceof ReadableMap) {
+      result.putString("data", ((ReadableMap) value).getString("data"));
+    }
+    complete(index, result);
+  }
+
+  private void onFailed(int index, ReadableMap error) {
+    WritableMap result = createResult(index);
+    result.putBoolean("ok", false);
+    result.putString("code", error.getString("code"));
+    result.putString("message", error.getString("message"));
+    mFailed++;
+    complete(index, result);
+  }
+
+  private WritableMap createResult(int index) {
+    GattTarget target = mTargets.get(index);
+    WritableMap result = Arguments.createMap();
+    result.putString("serviceId", target.serviceId.toString());
+    result.putString("characteristicId", target.characteristicId.toString());
+    if (target.descriptorId != null) {
+      result.putString("descriptorId", target.descriptorId.toString());
+    }
+    return result;
+  }
+
+  private void complete(int index, WritableMap result) {
+    if (mResults[index] != null) {
+      return;
+    }
+    mResults[index] = result;
+    if (--mPending == 0) {
+      resolve();
+    }
+  }
+
+  private void resolve() {
+    // resolve promise data is map
+    // with key 'results', 'succeeded', 'failed' and 'duration' (ms)
+    // and results are maps in the order of the targets with key 'serviceId', 'characteristicId', 'descriptorId',
+    // 'ok' and either 'data' of a read or 'code' and 'message' of a failure
+    WritableArray results = Arguments.createArray();
+    for (WritableMap result : mResults) {
+      results.pushMap(result);
+    }
+    WritableMap map = Arguments.createMap();
+    map.putArray("results", results);
+    map.putInt("succeeded", mResults.length - mFailed);
+    map.putInt("failed", mFailed);
+    map.putDouble("duration", (System.nanoTime() - mStartedAt) / 1e6);
+    mPromise.resolve(map);
+  }
+}
@@ -0,0 +1,64 @@
+package io.luxtud.library.corebluetooth;
+
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.Promise;
+
+/**
+ * A single GATT operation waiting in a {@link GattQueue}, carrying its own promise, timeout and retry budget.
+ */
+class GattCommand {
+  static final int DISCOVER_SERVICES = 1;
+  static final int READ_CHARACTERISTIC = 2;
+  static final int WRITE_CHARACTERISTIC = 3;
+  static final int READ_DESCRIPTOR = 4;
+  static final int WRITE_DESCRIPTOR = 5;
+  static final int WRITE_STREAM = 6;
+  static final int REQUEST_MTU = 7;
+  static final int SET_PREFERRED_PHY = 8;
+
+  interface Operation {
+    /**
+     * Start the operation, return false when the stack refused to start it.
+     */
+    boolean run(GattConnection gatt);
+  }
+
+  final int type;
+  @Nullable
+  final Object target;
+  final Promise promise;
+  final Operation operation;
+  final String errorCode;
+  final String errorMessage;
+
+  long timeout;
+  int retries;
+  // System.nanoTime() when the command was queued and when it was last started, zero until then
+  long enqueuedAt;
+  long startedAt;
+
+  // value resolved on success by commands whose completion carries no data of its own
+  @Nullable
+  Object result;
+
+  GattCommand(int type, @Nullable Object target, Promise promise, Operation operation, String errorCode, String errorMessage) {
+    this.type = type;
+    this.target = target;
+    this.promise = promise;
+    this.operation = operation;
+    this.errorCode = errorCode;
+    this.errorMessage = errorMessage;
+  }
+
+  /**
+   * Whether a completion callback for the given type and attribute belongs to this command.
+   */
+  boolean matches(int type, @Nullable Object target) {
+    return this.type == type && (this.target == null || this.target == target);
+  }
+
+  void reject() {
+    promise.reject(errorCode, errorMessage);
+  }
+}
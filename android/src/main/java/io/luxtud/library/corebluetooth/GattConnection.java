@@ -0,0 +1,84 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import androidx.annotation.Nullable;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * One GATT client connection of a {@link BluetoothTransport}, the operations of
+ * {@link android.bluetooth.BluetoothGatt} that the module uses.
+ * <p>
+ * Operations only start a request and return false when it could not be started, the outcome arrives on the
+ * {@link Listener}. Values travel as arguments on every API level, implementations take care of the legacy
+ * value-on-attribute calls.
+ */
+interface GattConnection {
+  /**
+   * Completion and event callbacks of a connection, statuses are the {@link android.bluetooth.BluetoothGatt} ones.
+   */
+  interface Listener {
+    void onConnectionStateChange(int status, int newState);
+
+    void onServicesDiscovered(int status);
+
+    void onCharacteristicRead(BluetoothGattCharacteristic characteristic, byte[] value, int status);
+
+    void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status);
+
+    /**
+     * A notification or indication. May arrive on any thread, the value must be consumed before returning.
+     */
+    void onCharacteristicChanged(BluetoothGattCharacteristic characteristic, byte[] value);
+
+    void onDescriptorRead(BluetoothGattDescriptor descriptor, byte[] value, int status);
+
+    void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status);
+
+    void onMtuChanged(int mtu, int status);
+
+    void onPhyUpdate(int txPhy, int rxPhy, int status);
+
+    void onServiceChanged();
+  }
+
+  boolean discoverServices();
+
+  List<BluetoothGattService> getServices();
+
+  @Nullable
+  BluetoothGattService getService(UUID uuid);
+
+  boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+  boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, int writeType);
+
+  boolean readDescriptor(BluetoothGattDescriptor descriptor);
+
+  boolean writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value);
+
+  /**
+   * Register locally for notifications of a characteristic, the peripheral is told through its CCC descriptor.
+   */
+  boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable);
+
+  boolean requestMtu(int mtu);
+
+  /**
+   * Takes effect without a completion callback.
+   */
+  boolean requestConnectionPriority(int priority);
+
+  void setPreferredPhy(int txPhy, int rxPhy, int phyOptions);
+
+  void disconnect();
+
+  /**
+   * Release the connection, no callback arrives afterwards.
+   */
+  void close();
+}
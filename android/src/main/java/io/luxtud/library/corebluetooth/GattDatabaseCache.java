@@ -0,0 +1,217 @@
+package io.luxtud.library.corebluetooth;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.collection.LongSparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * GATT layouts of previously connected peripherals, kept in a compact binary file so service discovery
+ * can be answered before the stack finished it.
+ * <p>
+ * Entries are keyed by device address and carry the fingerprint (Database Hash or firmware revision)
+ * the layout was discovered with. The file is read once on a background thread after the cache is created
+ * and rewritten there after every change; until it is read every lookup misses. Close the cache to end the thread.
+ */
+class GattDatabaseCache {
+  static final int DEFAULT_MAX_ENTRIES = 256;
+
+  private static final String TAG = "GattDatabaseCache";
+  private static final int MAGIC = 0x43424744;
+  private static final int VERSION = 1;
+
+  static final class Entry {
+    final byte[] fingerprint;
+    final GattLayout layout;
+    final long savedAt;
+
+    Entry(byte[] fingerprint, GattLayout layout, long savedAt) {
+      this.fingerprint = fingerprint;
+      this.layout = layout;
+      this.savedAt = savedAt;
+    }
+  }
+
+  private final File mFile;
+  private final ExecutorService mExecutor;
+  private final LongSparseArray<Entry> mEntries;
+  private int mMaxEntries;
+  // addresses put or removed before the file was read, whose entries in the file are stale; null once read
+  @Nullable
+  private LongSparseArray<Boolean> mChangedWhileLoading;
+  private boolean mClosed;
+
+  GattDatabaseCache(File file) {
+    mFile = file;
+    mExecutor = Executors.newSingleThreadExecutor();
+    mEntries = new LongSparseArray<>();
+    mMaxEntries = DEFAULT_MAX_ENTRIES;
+  }
+
+  synchronized void setMaxEntries(int maxEntries) {
+    mMaxEntries = maxEntries;
+  }
+
+  /**
+   * Read the file into memory in the background, starting empty when it is missing, from an older version
+   * or corrupt. Entries put or removed in the meantime win over the ones read.
+   */
+  synchronized void load() {
+    mChangedWhileLoading = new LongSparseArray<>();
+    mExecutor.execute(this::read);
+  }
+
+  /**
+   * Stop using the file. Writes already issued still finish, later changes are only kept in memory.
+   */
+  synchronized void close() {
+    mClosed = true;
+    mExecutor.shutdown();
+  }
+
+  private void read() {
+    LongSparseArray<Entry> entries = new LongSparseArray<>();
+    if (mFile.exists()) {
+      readFile(entries);
+    }
+    synchronized (this) {
+      LongSparseArray<Boolean> changed = mChangedWhileLoading;
+      mChangedWhileLoading = null;
+      if (changed == null || entries.size() == 0) {
+        return;
+      }
+      for (int i = 0; i < entries.size(); i++) {
+        long address = entries.keyAt(i);
+        if (changed.get(address) == null) {
+          mEntries.put(address, entries.valueAt(i));
+        }
+      }
+      while (mEntries.size() > mMaxEntries) {
+        evictOldest();
+      }
+      if (changed.size() > 0) {
+        // what was written in the meantime lacks the entries read
+        persist();
+      }
+    }
+  }
+
+  private void readFile(LongSparseArray<Entry> entries) {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+      if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+        return;
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        long address = in.readLong();
+        long savedAt = in.readLong();
+        byte[] fingerprint = new byte[in.readUnsignedByte()];
+        in.readFully(fingerprint);
+        GattLayout layout = GattLayout.read(in);
+        entries.put(address, new Entry(fingerprint, layout, savedAt));
+      }
+    } catch (IOException | RuntimeException e) {
+      Log.w(TAG, "Discarding unreadable GATT cache", e);
+      entries.clear();
+    }
+  }
+
+  @Nullable
+  synchronized Entry get(long address) {
+    return mEntries.get(address);
+  }
+
+  synchronized void put(long address, byte[] fingerprint, GattLayout layout) {
+    if (fingerprint.length > 255) {
+      fingerprint = Arrays.copyOf(fingerprint, 255);
+    }
+    mEntries.put(address, new Entry(fingerprint, layout, System.currentTimeMillis()));
+    if (mChangedWhileLoading != null) {
+      mChangedWhileLoading.put(address, Boolean.TRUE);
+    }
+    while (mEntries.size() > mMaxEntries) {
+      evictOldest();
+    }
+    persist();
+  }
+
+  synchronized void remove(long address) {
+    if (mChangedWhileLoading != null) {
+      mChangedWhileLoading.put(address, Boolean.TRUE);
+    }
+    if (mEntries.get(address) != null) {
+      mEntries.remove(address);
+      persist();
+    }
+  }
+
+  synchronized void clear() {
+    mEntries.clear();
+    // nothing of the file is wanted anymore
+    mChangedWhileLoading = null;
+    persist();
+  }
+
+  private void evictOldest() {
+    int oldest = 0;
+    for (int i = 1; i < mEntries.size(); i++) {
+      if (mEntries.valueAt(i).savedAt < mEntries.valueAt(oldest).savedAt) {
+        oldest = i;
+      }
+    }
+    mEntries.removeAt(oldest);
+  }
+
+  private void persist() {
+    if (mClosed) {
+      return;
+    }
+    // entries are immutable, so a shallow snapshot is safe to write off the caller's thread
+    int count = mEntries.size();
+    long[] addresses = new long[count];
+    Entry[] entries = new Entry[count];
+    for (int i = 0; i < count; i++) {
+      addresses[i] = mEntries.keyAt(i);
+      entries[i] = mEntries.valueAt(i);
+    }
+    mExecutor.execute(() -> write(addresses, entries));
+  }
+
+  private void write(long[] addresses, Entry[] entries) {
+    // write next to the file and rename, so a crash never leaves a truncated cache behind
+    File temp = new File(mFile.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeInt(addresses.length);
+      for (int i = 0; i < addresses.length; i++) {
+        Entry entry = entries[i];
+        out.writeLong(addresses[i]);
+        out.writeLong(entry.savedAt);
+        out.writeByte(entry.fingerprint.length);
+        out.write(entry.fingerprint);
+        entry.layout.write(out);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to write GATT cache", e);
+      temp.delete();
+      return;
+    }
+    if (!temp.renameTo(mFile)) {
+      Log.w(TAG, "Unable to replace GATT cache");
+      temp.delete();
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Immutable snapshot of a remote GATT database: services, their characteristics and descriptors,
+ * in discovery order. Characteristic handles are their index in that order, as in {@link AttributeCache}.
+ * <p>
+ * Unlike the {@link BluetoothGattService} objects it is taken from, a layout outlives the connection
+ * and can be written to and read back from a {@link GattDatabaseCache} file.
+ */
+final class GattLayout {
+  static final class Service {
+    final UUID uuid;
+    final int instanceId;
+    final int type;
+    final Characteristic[] characteristics;
+
+    Service(UUID uuid, int instanceId, int type, Characteristic[] characteristics) {
+      this.uuid = uuid;
+      this.instanceId = instanceId;
+      this.type = type;
+      this.characteristics = characteristics;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Service)) return false;
+      Service other = (Service) o;
+      return instanceId == other.instanceId && type == other.type && uuid.equals(other.uuid)
+        && Arrays.equals(characteristics, other.characteristics);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * uuid.hashCode() + Arrays.hashCode(characteristics);
+    }
+  }
+
+  static final class Characteristic {
+    final UUID uuid;
+    final int instanceId;
+    final int properties;
+    final int permissions;
+    final UUID[] descriptors;
+
+    Characteristic(UUID uuid, int instanceId, int properties, int permissions, UUID[] descriptors) {
+      this.uuid = uuid;
+      this.instanceId = instanceId;
+      this.properties = properties;
+      this.permissions = permissions;
+      this.descriptors = descriptors;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Characteristic)) return false;
+      Characteristic other = (Characteristic) o;
+      return instanceId == other.instanceId && properties == other.properties && permissions == other.permissions
+        && uuid.equals(other.uuid) && Arrays.equals(descriptors, other.descriptors);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * uuid.hashCode() + properties;
+    }
+  }
+
+  final Service[] services;
+
+  GattLayout(Service[] services) {
+    this.services = services;
+  }
+
+  static GattLayout from(List<BluetoothGattService> gattServices) {
+    Service[] services = new Service[gattServices.size()];
+    for (int i = 0; i < services.length; i++) {
+      BluetoothGattService service = gattServices.get(i);
+      List<BluetoothGattCharacteristic> gattCharacteristics = service.getCharacteristics();
+      Characteristic[] characteristics = new Characteristic[gattCharacteristics.size()];
+      for (int j = 0; j < characteristics.length; j++) {
+        BluetoothGattCharacteristic characteristic = gattCharacteristics.get(j);
+        List<BluetoothGattDescriptor> gattDescriptors = characteristic.getDescriptors();
+        UUID[] descriptors = new UUID[gattDescriptors.size()];
+        for (int k = 0; k < descriptors.length; k++) {
+          descriptors[k] = gattDescriptors.get(k).getUuid();
+        }
+        characteristics[j] = new Characteristic(
+          characteristic.getUuid(), characteristic.getInstanceId(),
+          characteristic.getProperties(), characteristic.getPermissions(), descriptors
+        );
+      }
+      services[i] = new Service(service.getUuid(), service.getInstanceId(), service.getType(), characteristics);
+    }
+    return new GattLayout(services);
+  }
+
+  void write(DataOutput out) throws IOException {
+    out.writeShort(services.length);
+    for (Service service : services) {
+      writeUuid(out, service.uuid);
+      out.writeShort(service.instanceId);
+      out.writeByte(service.type);
+      out.writeShort(service.characteristics.length);
+      for (Characteristic characteristic : service.characteristics) {
+        writeUuid(out, characteristic.uuid);
+        out.writeShort(characteristic.instanceId);
+        out.writeByte(characteristic.properties);
+        out.writeShort(characteristic.permissions);
+        out.writeByte(characteristic.descriptors.length);
+        for (UUID descriptor : characteristic.descriptors) {
+          writeUuid(out, descriptor);
+        }
+      }
+    }
+  }
+
+  static GattLayout read(DataInput in) throws IOException {
+    Service[] services = new Service[in.readUnsignedShort()];
+    for (int i = 0; i < services.length; i++) {
+      UUID serviceUuid = readUuid(in);
+      int serviceInstanceId = in.readUnsignedShort();
+      int type = in.readUnsignedByte();
+      Characteristic[] characteristics = new Characteristic[in.readUnsignedShort()];
+      for (int j = 0; j < characteristics.length; j++) {
+        UUID uuid = readUuid(in);
+        int instanceId = in.readUnsignedShort();
+        int properties = in.readUnsignedByte();
+        int permissions = in.readUnsignedShort();
+        UUID[] descriptors = new UUID[in.readUnsignedByte()];
+        for (int k = 0; k < descriptors.length; k++) {
+          descriptors[k] = readUuid(in);
+        }
+        characteristics[j] = new Characteristic(uuid, instanceId, properties, permissions, descriptors);
+      }
+      services[i] = new Service(serviceUuid, serviceInstanceId, type, characteristics);
+    }
+    return new GattLayout(services);
+  }
+
+  private static void writeUuid(DataOutput out, UUID uuid) throws IOException {
+    out.writeLong(uuid.getMostSignificantBits());
+    out.writeLong(uuid.getLeastSignificantBits());
+  }
+
+  private static UUID readUuid(DataInput in) throws IOException {
+    return new UUID(in.readLong(), in.readLong());
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof GattLayout)) return false;
+    return Arrays.equals(services, ((GattLayout) o).services);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(services);
+  }
+}
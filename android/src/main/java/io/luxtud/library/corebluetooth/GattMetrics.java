@@ -0,0 +1,155 @@
+package io.luxtud.library.corebluetooth;
+
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of GATT traffic, for one device or for all of them.
+ * <p>
+ * A device's metrics also record into their parent, the aggregate. Everything except the notification
+ * counter is recorded on the bluetooth thread, histograms of operation types are only allocated once used.
+ */
+final class GattMetrics {
+  private static final String[] OPERATION_NAMES = {
+    null,
+    "discoverServices",
+    "readCharacteristic",
+    "writeCharacteristic",
+    "readDescriptor",
+    "writeDescriptor",
+    "writeStream",
+    "requestMtu",
+    "setPreferredPhy"
+  };
+
+  @Nullable
+  private final GattMetrics mParent;
+  private final LatencyHistogram mConnect;
+  private final LatencyHistogram mQueueWait;
+  // indexed by GattCommand type
+  private final LatencyHistogram[] mOperations;
+  // notifications arrive on binder threads before Android 8.0
+  private final AtomicLong mNotifications;
+
+  private long mConnects;
+  private long mConnectFailures;
+  private long mRefused;
+  private long mTimeouts;
+
+  GattMetrics(@Nullable GattMetrics parent) {
+    mParent = parent;
+    mConnect = new LatencyHistogram();
+    mQueueWait = new LatencyHistogram();
+    mOperations = new LatencyHistogram[OPERATION_NAMES.length];
+    mNotifications = new AtomicLong();
+  }
+
+  void recordConnect(long nanos) {
+    mConnects++;
+    mConnect.record(nanos / 1000);
+    if (mParent != null) {
+      mParent.recordConnect(nanos);
+    }
+  }
+
+  void recordConnectFailure() {
+    mConnectFailures++;
+    if (mParent != null) {
+      mParent.recordConnectFailure();
+    }
+  }
+
+  /**
+   * Time a command spent queued until it was started for the first time.
+   */
+  void recordQueueWait(long nanos) {
+    mQueueWait.record(nanos / 1000);
+    if (mParent != null) {
+      mParent.recordQueueWait(nanos);
+    }
+  }
+
+  /**
+   * Time from the last start of a command to its completion callback, whatever the status.
+   */
+  void recordOperation(int type, long nanos) {
+    LatencyHistogram histogram = mOperations[type];
+    if (histogram == null) {
+      histogram = new LatencyHistogram();
+      mOperations[type] = histogram;
+    }
+    histogram.record(nanos / 1000);
+    if (mParent != null) {
+      mParent.recordOperation(type, nanos);
+    }
+  }
+
+  /**
+   * The stack refused to start a command after all retries.
+   */
+  void recordRefused() {
+    mRefused++;
+    if (mParent != null) {
+      mParent.recordRefused();
+    }
+  }
+
+  void recordTimeout() {
+    mTimeouts++;
+    if (mParent != null) {
+      mParent.recordTimeout();
+    }
+  }
+
+  void recordNotification() {
+    mNotifications.incrementAndGet();
+    if (mParent != null) {
+      mParent.recordNotification();
+    }
+  }
+
+  void reset() {
+    mConnect.reset();
+    mQueueWait.reset();
+    for (LatencyHistogram histogram : mOperations) {
+      if (histogram != null) {
+        histogram.reset();
+      }
+    }
+    mNotifications.set(0);
+    mConnects = 0;
+    mConnectFailures = 0;
+    mRefused = 0;
+    mTimeouts = 0;
+  }
+
+  /**
+   * Map with 'connects', 'connectFailures', 'refused', 'timeouts', 'notifications', 'notificationsPerSecond'
+   * and 'latency', which holds a histogram summary for 'connect', 'queueWait' and each operation type used.
+   */
+  WritableMap toMap(long elapsedMs) {
+    long notifications = mNotifications.get();
+    WritableMap latency = Arguments.createMap();
+    latency.putMap("connect", mConnect.toMap());
+    latency.putMap("queueWait", mQueueWait.toMap());
+    for (int type = 1; type < mOperations.length; type++) {
+      if (mOperations[type] != null) {
+        latency.putMap(OPERATION_NAMES[type], mOperations[type].toMap());
+      }
+    }
+
+    WritableMap map = Arguments.createMap();
+    map.putDouble("connects", mConnects);
+    map.putDouble("connectFailures", mConnectFailures);
+    map.putDouble("refused", mRefused);
+    map.putDouble("timeouts", mTimeouts);
+    map.putDouble("notifications", notifications);
+    map.putDouble("notificationsPerSecond", elapsedMs > 0 ? notifications * 1000.0 / elapsedMs : 0);
+    map.putMap("latency", latency);
+    return map;
+  }
+}
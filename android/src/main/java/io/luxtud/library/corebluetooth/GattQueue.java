@@ -0,0 +1,184 @@
+package io.luxtud.library.corebluetooth;
+
+import android.os.Handler;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+
+/**
+ * FIFO of GATT operations for one connection.
+ * <p>
+ * Android allows a single outstanding GATT operation per connection, so commands are started one at a time
+ * and the next one is dispatched as soon as the completion callback of the current one arrives. A command
+ * that times out or that the stack refuses to start is retried while it has retries left, then rejected.
+ */
+class GattQueue {
+  static final long DEFAULT_TIMEOUT_MS = 10000;
+  static final int DEFAULT_RETRIES = 1;
+
+  private static final long RETRY_DELAY_MS = 20;
+
+  private final GattConnection mGatt;
+  private final Handler mHandler;
+  @Nullable
+  private final GattMetrics mMetrics;
+  private final ArrayDeque<GattCommand> mCommands;
+  private final Runnable mTimeoutRunnable;
+  private final Runnable mRetryRunnable;
+
+  private long mTimeout;
+  private int mRetries;
+
+  @Nullable
+  private GattCommand mCurrent;
+  private boolean mRetrying;
+  private boolean mClosed;
+
+  GattQueue(GattConnection gatt, Handler handler, @Nullable GattMetrics metrics) {
+    mGatt = gatt;
+    mHandler = handler;
+    mMetrics = metrics;
+    mCommands = new ArrayDeque<>();
+    mTimeoutRunnable = this::onTimeout;
+    mRetryRunnable = this::onRetry;
+    mTimeout = DEFAULT_TIMEOUT_MS;
+    mRetries = DEFAULT_RETRIES;
+  }
+
+  GattConnection getGatt() {
+    return mGatt;
+  }
+
+  /**
+   * Default timeout (ms) and retries for commands that do not set their own.
+   */
+  synchronized void setRetryPolicy(long timeout, int retries) {
+    if (timeout <= 0) {
+      throw new IllegalArgumentException("timeout must be positive");
+    }
+    if (retries < 0) {
+      throw new IllegalArgumentException("retries must not be negative");
+    }
+    mTimeout = timeout;
+    mRetries = retries;
+  }
+
+  synchronized int size() {
+    return mCommands.size() + (mCurrent != null ? 1 : 0);
+  }
+
+  synchronized void enqueue(GattCommand command) {
+    if (mClosed) {
+      command.promise.reject("E_BLUETOOTH_DISCONNECTED", "Bluetooth not connected.");
+      return;
+    }
+    if (command.timeout <= 0) {
+      command.timeout = mTimeout;
+      command.retries = mRetries;
+    }
+    command.enqueuedAt = System.nanoTime();
+    mCommands.add(command);
+    dispatch();
+  }
+
+  @Nullable
+  synchronized GattCommand current() {
+    return mCurrent;
+  }
+
+  /**
+   * Restart the timeout of a running command that made progress, e.g. a stream that wrote a chunk.
+   */
+  synchronized void touch(GattCommand command) {
+    if (mCurrent == command) {
+      mHandler.removeCallbacks(mTimeoutRunnable);
+      mHandler.postDelayed(mTimeoutRunnable, command.timeout);
+    }
+  }
+
+  /**
+   * Take the running command if the completion belongs to it and start the next one.
+   * Returns null for completions that do not match, e.g. late callbacks of a timed out command.
+   */
+  @Nullable
+  synchronized GattCommand complete(int type, @Nullable Object target) {
+    GattCommand command = mCurrent;
+    if (command == null || !command.matches(type, target)) {
+      return null;
+    }
+    mHandler.removeCallbacks(mTimeoutRunnable);
+    mCurrent = null;
+    if (mMetrics != null) {
+      mMetrics.recordOperation(command.type, System.nanoTime() - command.startedAt);
+    }
+    dispatch();
+    return command;
+  }
+
+  /**
+   * Reject the running and all queued commands and refuse new ones.
+   */
+  synchronized void close(String code, String message) {
+    mClosed = true;
+    mHandler.removeCallbacks(mTimeoutRunnable);
+    mHandler.removeCallbacks(mRetryRunnable);
+    if (mCurrent != null) {
+      mCurrent.promise.reject(code, message);
+      mCurrent = null;
+    }
+    GattCommand command;
+    while ((command = mCommands.poll()) != null) {
+      command.promise.reject(code, message);
+    }
+  }
+
+  private void dispatch() {
+    while (mCurrent == null && !mRetrying && !mClosed && !mCommands.isEmpty()) {
+      GattCommand command = mCommands.poll();
+      if (command.operation.run(mGatt)) {
+        long now = System.nanoTime();
+        if (command.startedAt == 0 && mMetrics != null) {
+          mMetrics.recordQueueWait(now - command.enqueuedAt);
+        }
+        command.startedAt = now;
+        mCurrent = command;
+        mHandler.postDelayed(mTimeoutRunnable, command.timeout);
+      } else if (command.retries > 0) {
+        // the stack is busy, give it a moment before trying the same command again
+        command.retries--;
+        mCommands.addFirst(command);
+        mRetrying = true;
+        mHandler.postDelayed(mRetryRunnable, RETRY_DELAY_MS);
+      } else {
+        if (mMetrics != null) {
+          mMetrics.recordRefused();
+        }
+        command.reject();
+      }
+    }
+  }
+
+  private synchronized void onRetry() {
+    mRetrying = false;
+    dispatch();
+  }
+
+  private synchronized void onTimeout() {
+    GattCommand command = mCurrent;
+    if (command == null) {
+      return;
+    }
+    mCurrent = null;
+    if (mMetrics != null) {
+      mMetrics.recordTimeout();
+    }
+    if (command.retries > 0) {
+      command.retries--;
+      mCommands.addFirst(command);
+    } else {
+      command.promise.reject("E_BLUETOOTH_TIMEOUT", "GATT operation timed out.");
+    }
+    dispatch();
+  }
+}
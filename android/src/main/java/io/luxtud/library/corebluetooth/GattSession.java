@@ -0,0 +1,104 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.Promise;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * State of one connection to a peripheral: its {@link GattConnection}, operation queue, attribute cache,
+ * pending connect/disconnect promises and notification subscriptions.
+ * <p>
+ * Everything is owned by the bluetooth thread of {@link CoreBluetooth}, except for the subscriptions,
+ * which notification callbacks read from binder threads, and the state, which other threads may check.
+ */
+class GattSession {
+  static final int STATE_DISCONNECTED = 0;
+  static final int STATE_CONNECTING = 1;
+  static final int STATE_CONNECTED = 2;
+  static final int STATE_DISCONNECTING = 3;
+
+  static final int DEFAULT_MTU = 23;
+  static final int MAX_MTU = 517;
+
+  final String identifier;
+  final BluetoothDevice device;
+
+  @Nullable
+  GattConnection gatt;
+  @Nullable
+  GattQueue queue;
+  // built on service discovery, dropped on disconnect and Service Changed
+  @Nullable
+  volatile AttributeCache attributes;
+  // typed database of this connection, discovered once and answered from until Service Changed
+  @Nullable
+  volatile GattLayout layout;
+  // layout js was answered with from the on-disk cache, until the real discovery confirmed it
+  @Nullable
+  GattLayout cachedLayout;
+  // operations js issued after that answer, waiting for the discovery that builds their attributes
+  @Nullable
+  List<Runnable> awaitingDiscovery;
+  volatile int state;
+  int mtu;
+  int connectionPriority;
+  int txPhy;
+  int rxPhy;
+  long lastWriteProgressAt;
+  // System.nanoTime() of the connect call
+  long connectStartedAt;
+  // uptime ms of the last use while js has it disconnected and the ConnectionPool keeps the link
+  long idleSince;
+
+  @Nullable
+  GattMetrics metrics;
+
+  // what to restore once a reconnect by the ReconnectSupervisor is up, until it is
+  @Nullable
+  ReconnectSupervisor.Plan restore;
+
+  @Nullable
+  Promise connectPromise;
+  @Nullable
+  Promise disconnectPromise;
+
+  // keyed by characteristic instance, which compares by identity
+  final Map<BluetoothGattCharacteristic, NotificationSubscription> subscriptions;
+
+  GattSession(String identifier, BluetoothDevice device) {
+    this.identifier = identifier;
+    this.device = device;
+    this.state = STATE_DISCONNECTED;
+    this.mtu = DEFAULT_MTU;
+    this.connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    this.txPhy = BluetoothDevice.PHY_LE_1M;
+    this.rxPhy = BluetoothDevice.PHY_LE_1M;
+    this.subscriptions = new ConcurrentHashMap<>();
+  }
+
+  boolean isConnected() {
+    return state == STATE_CONNECTED && gatt != null && queue != null;
+  }
+
+  void openQueue(GattConnection gatt, Handler handler, long timeout, int retries) {
+    closeQueue("E_BLUETOOTH_DISCONNECTED", "Bluetooth disconnected.");
+    queue = new GattQueue(gatt, handler, metrics);
+    queue.setRetryPolicy(timeout, retries);
+  }
+
+  void closeQueue(String code, String message) {
+    if (queue != null) {
+      queue.close(code, message);
+      queue = null;
+    }
+  }
+}
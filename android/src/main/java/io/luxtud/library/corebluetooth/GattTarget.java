@@ -0,0 +1,47 @@
+package io.luxtud.library.corebluetooth;
+
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * One characteristic or descriptor of a readMany or writeMany, with the value to write.
+ */
+final class GattTarget {
+  final UUID serviceId;
+  final UUID characteristicId;
+  @Nullable
+  final UUID descriptorId;
+  @Nullable
+  final byte[] value;
+
+  GattTarget(UUID serviceId, UUID characteristicId, @Nullable UUID descriptorId, @Nullable byte[] value) {
+    this.serviceId = serviceId;
+    this.characteristicId = characteristicId;
+    this.descriptorId = descriptorId;
+    this.value = value;
+  }
+
+  /**
+   * Targets as js passes them, maps with 'serviceId', 'characteristicId' and the optional 'descriptorId' and
+   * 'data' (Base64).
+   */
+  static List<GattTarget> fromArray(ReadableArray targets) {
+    List<GattTarget> result = new ArrayList<>(targets.size());
+    for (int i = 0; i < targets.size(); i++) {
+      ReadableMap target = targets.getMap(i);
+      result.add(new GattTarget(
+        UUID.fromString(target.getString("serviceId")),
+        UUID.fromString(target.getString("characteristicId")),
+        target.hasKey("descriptorId") && !target.isNull("descriptorId") ? UUID.fromString(target.getString("descriptorId")) : null,
+        target.hasKey("data") && !target.isNull("data") ? PayloadCodec.decode(target.getString("data")) : null
+      ));
+    }
+    return result;
+  }
+}
@@ -0,0 +1,123 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+
+import java.util.List;
+
+/**
+ * Writes a sequence of payloads to a characteristic as MTU sized write-without-response chunks, so the
+ * characteristic has to support that write type.
+ * <p>
+ * Only one chunk is in flight at a time: the next one is sent from {@code onCharacteristicWrite}, which the
+ * stack reports once the previous packet has been handed to the controller, so its buffer never overflows.
+ * Chunks never span two payloads.
+ */
+class GattWriteStream implements GattCommand.Operation {
+  // attempts to hand a chunk to a busy stack before the stream fails
+  static final int MAX_BUSY_RETRIES = 50;
+
+  final BluetoothGattCharacteristic characteristic;
+  private final List<byte[]> payloads;
+  private final int chunkSize;
+  private final long totalBytes;
+  private final byte[] buffer;
+
+  private int payloadIndex;
+  private int offset;
+  private int inFlight;
+  private long bytesWritten;
+  private long startedAt;
+  private int busyRetries;
+
+  GattWriteStream(BluetoothGattCharacteristic characteristic, List<byte[]> payloads, int mtu) {
+    this.characteristic = characteristic;
+    this.payloads = payloads;
+    // ATT header takes 3 bytes of every packet
+    this.chunkSize = Math.max(1, mtu - 3);
+    this.buffer = new byte[chunkSize];
+    long total = 0;
+    for (byte[] payload : payloads) {
+      total += payload.length;
+    }
+    this.totalBytes = total;
+  }
+
+  @Override
+  public boolean run(GattConnection gatt) {
+    if (startedAt == 0) {
+      startedAt = SystemClock.elapsedRealtime();
+    }
+    return writeNext(gatt);
+  }
+
+  /**
+   * Account the chunk in flight as written, returns true when the whole stream has been written.
+   */
+  boolean onChunkWritten() {
+    bytesWritten += inFlight;
+    offset += inFlight;
+    inFlight = 0;
+    busyRetries = 0;
+    skipCompletedPayloads();
+    return isDone();
+  }
+
+  boolean isDone() {
+    return payloadIndex >= payloads.size();
+  }
+
+  /**
+   * Count a refused write, returns false once the stack stayed busy for too long.
+   */
+  boolean onBusy() {
+    return ++busyRetries <= MAX_BUSY_RETRIES;
+  }
+
+  boolean writeNext(GattConnection gatt) {
+    skipCompletedPayloads();
+    if (isDone()) {
+      return true;
+    }
+
+    byte[] payload = payloads.get(payloadIndex);
+    int length = Math.min(chunkSize, payload.length - offset);
+    byte[] chunk;
+    if (length == chunkSize) {
+      // the previous chunk has left the stack once its write callback arrived, so the buffer can be reused
+      System.arraycopy(payload, offset, buffer, 0, length);
+      chunk = buffer;
+    } else {
+      chunk = new byte[length];
+      System.arraycopy(payload, offset, chunk, 0, length);
+    }
+
+    boolean started = gatt.writeCharacteristic(characteristic, chunk, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+    inFlight = started ? length : 0;
+    return started;
+  }
+
+  long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  long getTotalBytes() {
+    return totalBytes;
+  }
+
+  long getElapsed() {
+    return startedAt == 0 ? 0 : SystemClock.elapsedRealtime() - startedAt;
+  }
+
+  double getBytesPerSecond() {
+    long elapsed = getElapsed();
+    return elapsed > 0 ? bytesWritten * 1000.0 / elapsed : 0;
+  }
+
+  private void skipCompletedPayloads() {
+    while (payloadIndex < payloads.size() && offset >= payloads.get(payloadIndex).length) {
+      payloadIndex++;
+      offset = 0;
+    }
+  }
+}
@@ -2,7 +2,6 @@ package io.luxtud.library.corebluetooth;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.ScanFilter;
 import android.content.Context;
@@ -10,9 +9,9 @@ import android.content.pm.PackageManager;
 import android.os.Build;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
 import androidx.core.app.ActivityCompat;
 
-import com.facebook.react.bridge.Callback;
 import com.facebook.react.bridge.Promise;
 
 import java.util.List;
@@ -26,21 +25,36 @@ abstract class ICoreBluetooth {
 
   private final Context mContext;
 
+  private final RecordingTransport mTransport;
+
   ICoreBluetooth(Context context) {
+    this(context, null);
+  }
+
+  /**
+   * Run on the given transport, e.g. the simulated or replaying one of the unit tests, or on the platform
+   * adapter when it is null.
+   */
+  ICoreBluetooth(Context context, @Nullable BluetoothTransport transport) {
     mContext = context;
-    BluetoothManager mBluetoothManager =
-      (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
-
-    // check if BluetoothManager is null
-    // initialize BluetoothAdapter from BluetoothManager
-    if (mBluetoothManager != null) {
-      mBluetoothAdapter = mBluetoothManager.getAdapter();
-      if (mBluetoothAdapter == null) {
-        Log.i(TAG, "Unable to initialize BluetoothAdapter");
+    if (transport == null) {
+      BluetoothManager mBluetoothManager =
+        (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+
+      // check if BluetoothManager is null
+      // initialize BluetoothAdapter from BluetoothManager
+      if (mBluetoothManager != null) {
+        mBluetoothAdapter = mBluetoothManager.getAdapter();
+        if (mBluetoothAdapter == null) {
+          Log.i(TAG, "Unable to initialize BluetoothAdapter");
+        }
+      } else {
+        Log.i(TAG, "Unable to initialize BluetoothManager");
       }
-    } else {
-      Log.i(TAG, "Unable to initialize BluetoothManager");
+      transport = new AndroidTransport(context, mBluetoothAdapter);
     }
+    // recording is off until asked for, see startRecording
+    mTransport = new RecordingTransport(transport);
   }
 
   abstract void startScan(List<ScanFilter> filters, Promise promise);
@@ -49,21 +63,45 @@ abstract class ICoreBluetooth {
 
   abstract void stopScan(Promise promise);
 
-  abstract void connect(BluetoothDevice device, Promise promise);
+  abstract void connect(String identifier, Promise promise);
+
+  abstract void disconnect(String identifier, Promise promise);
+
+  abstract void discoverServices(String identifier, Promise promise);
+
+  abstract void writeCharacteristic(String identifier, UUID serviceId, UUID uuid, byte[] data, Promise promise);
+
+  abstract void writeCharacteristic(String identifier, int handle, byte[] data, Promise promise);
+
+  abstract void writeCharacteristicStream(String identifier, UUID serviceId, UUID uuid, List<byte[]> payloads, Promise promise);
+
+  abstract void readCharacteristic(String identifier, UUID serviceId, UUID uuid, Promise promise);
+
+  abstract void readCharacteristic(String identifier, int handle, Promise promise);
+
+  abstract void setNotifyCharacteristic(String identifier, UUID serviceId, UUID uuid, boolean enable, Promise promise);
+
+  abstract void writeDescriptor(String identifier, UUID serviceId, UUID characteristicId, UUID uuid, byte[] data, Promise promise);
+
+  abstract void readDescriptor(String identifier, UUID serviceId, UUID characteristicId, UUID uuid, Promise promise);
+
+  abstract void readMany(String identifier, List<GattTarget> targets, Promise promise);
 
-  abstract void disconnect(Promise promise);
+  abstract void writeMany(String identifier, List<GattTarget> targets, Promise promise);
 
-  abstract void discoverServices(Promise promise);
+  abstract void requestMtu(String identifier, int mtu, Promise promise);
 
-  abstract void writeCharacteristic(UUID serviceId, UUID uuid, byte[] data, Promise promise);
+  abstract void requestConnectionPriority(String identifier, int priority, Promise promise);
 
-  abstract void readCharacteristic(UUID serviceId, UUID uuid, Promise promise);
+  abstract void setPreferredPhy(String identifier, int txPhy, int rxPhy, int phyOptions, Promise promise);
 
-  abstract void setNotifyCharacteristic(UUID serviceId, UUID uuid, boolean enable, Callback callback);
+  abstract void getStats(Promise promise);
 
-  abstract void writeDescriptor(UUID serviceId, UUID characteristicId, UUID uuid, byte[] data, Promise promise);
+  abstract void resetStats(Promise promise);
 
-  abstract void readDescriptor(UUID serviceId, UUID characteristicId, UUID uuid, Promise promise);
+  abstract void startRecording(Promise promise);
+
+  abstract void stopRecording(Promise promise);
 
   abstract void requestAdvertisePermission(Activity activity);
 
@@ -84,6 +122,14 @@ abstract class ICoreBluetooth {
     return mBluetoothAdapter;
   }
 
+  protected BluetoothTransport getTransport() {
+    return mTransport;
+  }
+
+  protected RecordingTransport getRecordingTransport() {
+    return mTransport;
+  }
+
   protected String[] getScanPermissions() {
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
       return new String[]{
@@ -110,16 +156,6 @@ abstract class ICoreBluetooth {
   }
 
   protected boolean checkScanPermission() {
-    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-      return ActivityCompat.checkSelfPermission(
-        mContext,
-        android.Manifest.permission.BLUETOOTH_SCAN
-      ) == PackageManager.PERMISSION_GRANTED;
-    } else {
-      return ActivityCompat.checkSelfPermission(
-        mContext,
-        android.Manifest.permission.ACCESS_FINE_LOCATION
-      ) == PackageManager.PERMISSION_GRANTED;
-    }
+    return mTransport.checkScanPermission();
   }
 }
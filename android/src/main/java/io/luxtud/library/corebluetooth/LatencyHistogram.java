@@ -0,0 +1,113 @@
+package io.luxtud.library.corebluetooth;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Latency histogram with log-linear buckets in the style of HdrHistogram.
+ * <p>
+ * Values are microseconds. Each power of two is split into {@link #SUB_BUCKETS} / 2 linear sub-buckets, so a
+ * recorded value is off by less than 1 / 16 of itself, from 1 µs up to {@link #MAX_VALUE}. Recording is a few
+ * shifts and one array increment and never allocates. Not thread safe, a histogram belongs to the thread that
+ * records into it.
+ */
+final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+  // about 12.7 days, anything longer is counted as this
+  static final long MAX_VALUE = (1L << 40) - 1;
+
+  private final long[] mCounts;
+  private long mCount;
+  private long mSum;
+  private long mMin;
+  private long mMax;
+
+  LatencyHistogram() {
+    mCounts = new long[indexOf(MAX_VALUE) + 1];
+    reset();
+  }
+
+  static int indexOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int bucket = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+    return bucket * HALF_SUB_BUCKETS + (int) (value >>> bucket);
+  }
+
+  /**
+   * Lowest value that falls into the bucket at index.
+   */
+  static long valueAt(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int bucket = (index >> (SUB_BUCKET_BITS - 1)) - 1;
+    return (long) (index - bucket * HALF_SUB_BUCKETS) << bucket;
+  }
+
+  void record(long micros) {
+    long value = Math.max(0, Math.min(micros, MAX_VALUE));
+    mCounts[indexOf(value)]++;
+    mCount++;
+    mSum += value;
+    if (value < mMin) {
+      mMin = value;
+    }
+    if (value > mMax) {
+      mMax = value;
+    }
+  }
+
+  long getCount() {
+    return mCount;
+  }
+
+  /**
+   * Value at the given percentile (0 to 100), the middle of its bucket clamped to what was actually recorded.
+   */
+  long getValueAtPercentile(double percentile) {
+    if (mCount == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+    long seen = 0;
+    for (int i = 0; i < mCounts.length; i++) {
+      seen += mCounts[i];
+      if (seen >= rank) {
+        long low = valueAt(i);
+        long high = i + 1 < mCounts.length ? valueAt(i + 1) - 1 : MAX_VALUE;
+        return Math.max(mMin, Math.min(mMax, (low + high) / 2));
+      }
+    }
+    return mMax;
+  }
+
+  void reset() {
+    for (int i = 0; i < mCounts.length; i++) {
+      mCounts[i] = 0;
+    }
+    mCount = 0;
+    mSum = 0;
+    mMin = Long.MAX_VALUE;
+    mMax = 0;
+  }
+
+  /**
+   * Summary for js: 'count' and 'min', 'mean', 'p50', 'p90', 'p99', 'p999' and 'max' in ms.
+   */
+  WritableMap toMap() {
+    WritableMap map = Arguments.createMap();
+    map.putDouble("count", mCount);
+    map.putDouble("min", mCount > 0 ? mMin / 1000.0 : 0);
+    map.putDouble("mean", mCount > 0 ? mSum / 1000.0 / mCount : 0);
+    map.putDouble("p50", getValueAtPercentile(50) / 1000.0);
+    map.putDouble("p90", getValueAtPercentile(90) / 1000.0);
+    map.putDouble("p99", getValueAtPercentile(99) / 1000.0);
+    map.putDouble("p999", getValueAtPercentile(99.9) / 1000.0);
+    map.putDouble("max", mMax / 1000.0);
+    return map;
+  }
+}
@@ -0,0 +1,85 @@
+package io.luxtud.library.corebluetooth;
+
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * {@link AdvertisingDecoder} for a company's own manufacturer data, driven by a declarative field layout.
+ * <p>
+ * Each field reads an unsigned or signed integer of 1 to 4 bytes at an offset into the manufacturer data
+ * (after the company id), in either byte order, and multiplies it by a scale. A packet too short for
+ * any field is not decoded.
+ */
+class ManufacturerLayoutDecoder implements AdvertisingDecoder {
+  static final class Field {
+    final String name;
+    final int offset;
+    final int length;
+    final boolean bigEndian;
+    final boolean signed;
+    final double scale;
+
+    Field(String name, int offset, int length, boolean bigEndian, boolean signed, double scale) {
+      if (offset < 0) {
+        throw new IllegalArgumentException("offset must not be negative");
+      }
+      if (length < 1 || length > 4) {
+        throw new IllegalArgumentException("length must be between 1 and 4");
+      }
+      this.name = name;
+      this.offset = offset;
+      this.length = length;
+      this.bigEndian = bigEndian;
+      this.signed = signed;
+      this.scale = scale;
+    }
+  }
+
+  private final int mCompanyId;
+  private final String mType;
+  private final Field[] mFields;
+  // manufacturer data length, including the company id, that every field fits into
+  private final int mMinLength;
+
+  ManufacturerLayoutDecoder(int companyId, String type, Field[] fields) {
+    mCompanyId = companyId;
+    mType = type;
+    mFields = fields.clone();
+    int minLength = 2;
+    for (Field field : mFields) {
+      minLength = Math.max(minLength, 2 + field.offset + field.length);
+    }
+    mMinLength = minLength;
+  }
+
+  @Nullable
+  @Override
+  public WritableMap decode(AdvertisingCursor cursor) {
+    if (cursor.type != AdvertisingCursor.TYPE_MANUFACTURER_DATA
+      || cursor.length < mMinLength
+      || cursor.getCompanyId() != mCompanyId) {
+      return null;
+    }
+    WritableMap map = Arguments.createMap();
+    map.putString("type", mType);
+    for (Field field : mFields) {
+      map.putDouble(field.name, read(cursor, 2 + field.offset, field) * field.scale);
+    }
+    return map;
+  }
+
+  private static long read(AdvertisingCursor cursor, int index, Field field) {
+    long value = 0;
+    for (int i = 0; i < field.length; i++) {
+      int b = cursor.getUint8(index + (field.bigEndian ? i : field.length - 1 - i));
+      value = value << 8 | b;
+    }
+    if (field.signed) {
+      int shift = 64 - field.length * 8;
+      value = value << shift >> shift;
+    }
+    return value;
+  }
+}
@@ -0,0 +1,81 @@
+package io.luxtud.library.corebluetooth;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects notification values from the GATT callbacks and delivers them per interval,
+ * one batch for all subscriptions that received values in that window.
+ */
+class NotificationDispatcher {
+  static final long DEFAULT_INTERVAL_MS = 20;
+
+  interface Listener {
+    void onNotifications(List<NotificationSubscription> subscriptions);
+  }
+
+  private final Handler mHandler;
+  private final Listener mListener;
+  private final Runnable mFlushRunnable;
+  private final Object mDeliveryLock;
+
+  private ArrayList<NotificationSubscription> mPending;
+  private ArrayList<NotificationSubscription> mDelivering;
+  private long mInterval;
+  private boolean mScheduled;
+
+  NotificationDispatcher(Handler handler, Listener listener) {
+    mHandler = handler;
+    mListener = listener;
+    mFlushRunnable = this::flush;
+    mDeliveryLock = new Object();
+    mPending = new ArrayList<>();
+    mDelivering = new ArrayList<>();
+    mInterval = DEFAULT_INTERVAL_MS;
+  }
+
+  /**
+   * Set the delivery interval in ms, zero delivers on the next handler turn.
+   */
+  synchronized void setInterval(long interval) {
+    mInterval = Math.max(0, interval);
+  }
+
+  void onValue(NotificationSubscription subscription, long timestamp, byte[] value) {
+    subscription.add(timestamp, value);
+    synchronized (this) {
+      if (!subscription.pending) {
+        subscription.pending = true;
+        mPending.add(subscription);
+      }
+      if (!mScheduled) {
+        mScheduled = true;
+        mHandler.postDelayed(mFlushRunnable, mInterval);
+      }
+    }
+  }
+
+  void flush() {
+    synchronized (mDeliveryLock) {
+      ArrayList<NotificationSubscription> batch;
+      synchronized (this) {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mScheduled = false;
+        if (mPending.isEmpty()) {
+          return;
+        }
+        // swap the lists so values arriving during delivery start a new batch
+        batch = mPending;
+        mPending = mDelivering;
+        mDelivering = batch;
+        for (int i = 0; i < batch.size(); i++) {
+          batch.get(i).pending = false;
+        }
+      }
+      mListener.onNotifications(batch);
+      batch.clear();
+    }
+  }
+}
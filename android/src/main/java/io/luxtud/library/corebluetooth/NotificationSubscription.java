@@ -0,0 +1,142 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+/**
+ * An active notification or indication subscription on one characteristic instance.
+ * <p>
+ * Values received between two deliveries are copied into a bounded ring of preallocated slots
+ * until the {@link NotificationDispatcher} drains them into a single event. When the ring is full
+ * the overflow policy decides which value is lost, and every loss is counted.
+ */
+class NotificationSubscription {
+  static final int POLICY_DROP_OLDEST = 0;
+  static final int POLICY_DROP_NEWEST = 1;
+  static final int POLICY_COALESCE_LATEST = 2;
+
+  static final int DEFAULT_CAPACITY = 256;
+
+  interface Visitor {
+    void visit(long timestamp, byte[] value, int length);
+  }
+
+  final int id;
+  final String identifier;
+  final BluetoothGattCharacteristic characteristic;
+  // resolved once so delivery does not format uuids per packet
+  final String serviceUuid;
+  final String uuid;
+  final int policy;
+
+  // guarded by the dispatcher
+  boolean pending;
+
+  private final long[] timestamps;
+  private final byte[][] slots;
+  private final int[] lengths;
+  private int head;
+  private int count;
+
+  private long delivered;
+  private long dropped;
+  private long droppedSinceDrain;
+  private long droppedBeforeDrain;
+
+  NotificationSubscription(int id, String identifier, BluetoothGattCharacteristic characteristic, int capacity, int policy) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.id = id;
+    this.identifier = identifier;
+    this.characteristic = characteristic;
+    this.serviceUuid = characteristic.getService().getUuid().toString();
+    this.uuid = characteristic.getUuid().toString();
+    this.policy = policy;
+
+    // coalescing only ever keeps the latest value
+    int slotCount = policy == POLICY_COALESCE_LATEST ? 1 : capacity;
+    this.timestamps = new long[slotCount];
+    this.slots = new byte[slotCount][];
+    this.lengths = new int[slotCount];
+  }
+
+  /**
+   * The same subscription, id, buffer bounds and totals on the characteristic instance of a new connection.
+   * Values still buffered are not carried over.
+   */
+  synchronized NotificationSubscription rebind(BluetoothGattCharacteristic characteristic) {
+    NotificationSubscription subscription = new NotificationSubscription(id, identifier, characteristic, slots.length, policy);
+    subscription.delivered = delivered;
+    subscription.dropped = dropped;
+    return subscription;
+  }
+
+  /**
+   * Copy the value into the ring, applying the overflow policy when it is full.
+   */
+  synchronized void add(long timestamp, byte[] value) {
+    int capacity = slots.length;
+    int index;
+    if (count < capacity) {
+      index = (head + count) % capacity;
+      count++;
+    } else if (policy == POLICY_DROP_NEWEST) {
+      dropped++;
+      droppedSinceDrain++;
+      return;
+    } else {
+      // drop oldest, and coalescing is drop oldest with a single slot
+      index = head;
+      head = (head + 1) % capacity;
+      dropped++;
+      droppedSinceDrain++;
+    }
+
+    byte[] slot = slots[index];
+    if (slot == null || slot.length < value.length) {
+      slot = new byte[Math.max(value.length, 20)];
+      slots[index] = slot;
+    }
+    System.arraycopy(value, 0, slot, 0, value.length);
+    lengths[index] = value.length;
+    timestamps[index] = timestamp;
+  }
+
+  /**
+   * Hand every buffered value to the visitor in arrival order and empty the ring.
+   * The slot passed to the visitor is only valid during the call. Returns the number of values drained.
+   */
+  synchronized int drain(Visitor visitor) {
+    int capacity = slots.length;
+    int drained = count;
+    for (int i = 0; i < drained; i++) {
+      int index = (head + i) % capacity;
+      visitor.visit(timestamps[index], slots[index], lengths[index]);
+    }
+    head = 0;
+    count = 0;
+    delivered += drained;
+    droppedBeforeDrain = droppedSinceDrain;
+    droppedSinceDrain = 0;
+    return drained;
+  }
+
+  synchronized long getDelivered() {
+    return delivered;
+  }
+
+  synchronized long getDropped() {
+    return dropped;
+  }
+
+  /**
+   * Values lost between the previous and the last drain.
+   */
+  synchronized long getDroppedBeforeDrain() {
+    return droppedBeforeDrain;
+  }
+
+  synchronized int getBuffered() {
+    return count;
+  }
+}
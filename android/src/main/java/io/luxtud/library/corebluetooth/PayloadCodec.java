@@ -0,0 +1,72 @@
+package io.luxtud.library.corebluetooth;
+
+import android.util.Base64;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Converts binary payloads to and from the string form they cross the bridge in.
+ * <p>
+ * Values are Base64 encoded without line wraps. Encoding runs through a per-thread character buffer,
+ * so each payload costs a single String allocation instead of the intermediate byte and char arrays
+ * of {@link Base64#encodeToString(byte[], int)}.
+ */
+final class PayloadCodec {
+  private static final char[] ALPHABET =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+  private static final ThreadLocal<char[]> BUFFER = new ThreadLocal<char[]>() {
+    @Override
+    protected char[] initialValue() {
+      return new char[256];
+    }
+  };
+
+  private PayloadCodec() {
+  }
+
+  @Nullable
+  static String encode(@Nullable byte[] value) {
+    if (value == null) {
+      return null;
+    }
+    return encode(value, 0, value.length);
+  }
+
+  static String encode(byte[] value, int offset, int length) {
+    int encodedLength = (length + 2) / 3 * 4;
+    char[] buffer = BUFFER.get();
+    if (buffer.length < encodedLength) {
+      buffer = new char[Integer.highestOneBit(encodedLength) << 1];
+      BUFFER.set(buffer);
+    }
+
+    int end = offset + length;
+    int i = offset;
+    int o = 0;
+    while (end - i >= 3) {
+      int bits = (value[i] & 0xff) << 16 | (value[i + 1] & 0xff) << 8 | (value[i + 2] & 0xff);
+      buffer[o++] = ALPHABET[bits >>> 18];
+      buffer[o++] = ALPHABET[(bits >>> 12) & 0x3f];
+      buffer[o++] = ALPHABET[(bits >>> 6) & 0x3f];
+      buffer[o++] = ALPHABET[bits & 0x3f];
+      i += 3;
+    }
+    int remaining = end - i;
+    if (remaining > 0) {
+      int bits = (value[i] & 0xff) << 16 | (remaining == 2 ? (value[i + 1] & 0xff) << 8 : 0);
+      buffer[o++] = ALPHABET[bits >>> 18];
+      buffer[o++] = ALPHABET[(bits >>> 12) & 0x3f];
+      buffer[o++] = remaining == 2 ? ALPHABET[(bits >>> 6) & 0x3f] : '=';
+      buffer[o++] = '=';
+    }
+    return new String(buffer, 0, o);
+  }
+
+  /**
+   * Decode a payload sent from js, accepting both wrapped and unwrapped Base64.
+   */
+  static byte[] decode(String value) {
+    return Base64.decode(value, Base64.DEFAULT);
+  }
+}
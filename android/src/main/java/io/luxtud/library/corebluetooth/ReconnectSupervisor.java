@@ -0,0 +1,183 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Brings lost connections back: schedules reconnect attempts with jittered exponential backoff and keeps what
+ * the connection had negotiated and subscribed to, so it can be restored once the link is up again.
+ * <p>
+ * The delay before an attempt doubles from the initial delay up to the maximum, and a random half of it is
+ * taken off so devices that dropped together do not all retry in step. A 133 is mostly the stack tripping over
+ * itself rather than the peripheral being away, so the first 133 of an attempt is retried right away without
+ * counting against the attempts. Owned by the bluetooth thread of {@link CoreBluetooth}.
+ */
+class ReconnectSupervisor {
+  static final long DEFAULT_INITIAL_DELAY_MS = 500;
+  static final long DEFAULT_MAX_DELAY_MS = 30000;
+  static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+  // GATT_ERROR, what the stack reports for nearly everything that goes wrong while connecting
+  static final int GATT_ERROR = 133;
+
+  interface Connector {
+    void reconnect(Plan plan);
+  }
+
+  /**
+   * What a lost connection had, to be restored on the next one.
+   */
+  static final class Plan {
+    final String identifier;
+    final BluetoothDevice device;
+    final int mtu;
+    final int connectionPriority;
+    final int txPhy;
+    final int rxPhy;
+    final List<NotificationSubscription> subscriptions;
+    // the link was idle in the ConnectionPool, so it goes back there
+    final boolean parked;
+    // System.nanoTime() when the link was lost
+    final long lostAt;
+
+    int attempts;
+    // restore steps still running, and how they went
+    int pending;
+    int restored;
+    int failures;
+    private boolean mRetried;
+
+    Plan(GattSession session, boolean parked) {
+      this.identifier = session.identifier;
+      this.device = session.device;
+      this.mtu = session.mtu;
+      this.connectionPriority = session.connectionPriority;
+      this.txPhy = session.txPhy;
+      this.rxPhy = session.rxPhy;
+      this.subscriptions = new ArrayList<>(session.subscriptions.values());
+      this.parked = parked;
+      this.lostAt = System.nanoTime();
+    }
+  }
+
+  private final Handler mHandler;
+  private final Connector mConnector;
+  private final Random mRandom;
+  private final Map<String, Plan> mPlans;
+
+  private boolean mEnabled;
+  private long mInitialDelay;
+  private long mMaxDelay;
+  private int mMaxAttempts;
+
+  ReconnectSupervisor(Handler handler, Connector connector) {
+    mHandler = handler;
+    mConnector = connector;
+    mRandom = new Random();
+    mPlans = new HashMap<>();
+    mInitialDelay = DEFAULT_INITIAL_DELAY_MS;
+    mMaxDelay = DEFAULT_MAX_DELAY_MS;
+    mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+  }
+
+  void configure(boolean enabled, long initialDelay, long maxDelay, int maxAttempts) {
+    if (initialDelay <= 0 || maxDelay < initialDelay) {
+      throw new IllegalArgumentException("delays must be positive and maxDelay at least initialDelay");
+    }
+    if (maxAttempts <= 0) {
+      throw new IllegalArgumentException("maxAttempts must be positive");
+    }
+    mEnabled = enabled;
+    mInitialDelay = initialDelay;
+    mMaxDelay = maxDelay;
+    mMaxAttempts = maxAttempts;
+    if (!enabled) {
+      clear();
+    }
+  }
+
+  boolean isEnabled() {
+    return mEnabled;
+  }
+
+  /**
+   * Schedule the next attempt after the link was lost or an attempt failed with the given status.
+   * Returns false when the attempts are used up, the plan is then dropped.
+   */
+  boolean schedule(Plan plan, int status) {
+    mHandler.removeCallbacksAndMessages(plan);
+    long delay;
+    if (status == GATT_ERROR && plan.attempts > 0 && !plan.mRetried) {
+      plan.mRetried = true;
+      delay = 0;
+    } else if (plan.attempts >= mMaxAttempts) {
+      mPlans.remove(plan.identifier, plan);
+      return false;
+    } else {
+      plan.mRetried = false;
+      plan.attempts++;
+      delay = nextDelay(plan.attempts);
+    }
+    mPlans.put(plan.identifier, plan);
+    mHandler.postAtTime(() -> mConnector.reconnect(plan), plan, SystemClock.uptimeMillis() + delay);
+    return true;
+  }
+
+  /**
+   * Skip the wait before the next attempt, e.g. because js wants the device now.
+   */
+  boolean connectNow(String identifier) {
+    Plan plan = mPlans.get(identifier);
+    if (plan == null) {
+      return false;
+    }
+    mHandler.removeCallbacksAndMessages(plan);
+    mConnector.reconnect(plan);
+    return true;
+  }
+
+  /**
+   * The connection is usable again, or js took over, so the plan is done.
+   */
+  void finish(Plan plan) {
+    mHandler.removeCallbacksAndMessages(plan);
+    mPlans.remove(plan.identifier, plan);
+  }
+
+  @Nullable
+  Plan cancel(String identifier) {
+    Plan plan = mPlans.remove(identifier);
+    if (plan != null) {
+      mHandler.removeCallbacksAndMessages(plan);
+    }
+    return plan;
+  }
+
+  void clear() {
+    for (Plan plan : mPlans.values()) {
+      mHandler.removeCallbacksAndMessages(plan);
+    }
+    mPlans.clear();
+  }
+
+  /**
+   * Equal jitter: half of the exponential delay is fixed, the other half random.
+   */
+  private long nextDelay(int attempt) {
+    long delay = mInitialDelay << Math.min(attempt - 1, 20);
+    if (delay <= 0 || delay > mMaxDelay) {
+      delay = mMaxDelay;
+    }
+    long half = delay / 2;
+    return delay - half + (long) (mRandom.nextDouble() * (half + 1));
+  }
+}
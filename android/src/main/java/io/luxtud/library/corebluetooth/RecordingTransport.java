@@ -0,0 +1,402 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link BluetoothTransport} that passes everything through to another one and, while a {@link TrafficRecorder}
+ * is attached, records it. Without a recorder the cost is a volatile read per call.
+ */
+class RecordingTransport implements BluetoothTransport {
+  private final BluetoothTransport mTransport;
+  private final AtomicInteger mNextConnection;
+  // connections that are open, so a recording started mid-session knows about them
+  private final Set<Connection> mConnections;
+
+  @Nullable
+  private volatile TrafficRecorder mRecorder;
+  private volatile boolean mScanning;
+
+  RecordingTransport(BluetoothTransport transport) {
+    mTransport = transport;
+    mNextConnection = new AtomicInteger();
+    mConnections = ConcurrentHashMap.newKeySet();
+  }
+
+  /**
+   * Record from now on into the given recorder, or stop recording when it is null. The recorder is not closed here.
+   */
+  void setRecorder(@Nullable TrafficRecorder recorder) {
+    mRecorder = recorder;
+    if (recorder == null) {
+      return;
+    }
+    // recordings start out with the state they join in
+    if (mScanning) {
+      recorder.scanStarted();
+    }
+    for (Connection connection : mConnections) {
+      connection.recordState(recorder);
+    }
+  }
+
+  @Nullable
+  TrafficRecorder getRecorder() {
+    return mRecorder;
+  }
+
+  @Override
+  public boolean isAvailable() {
+    return mTransport.isAvailable();
+  }
+
+  @Override
+  public boolean checkScanPermission() {
+    return mTransport.checkScanPermission();
+  }
+
+  @Override
+  public boolean isDiscovering() {
+    return mTransport.isDiscovering();
+  }
+
+  @Override
+  public boolean isOffloadedScanBatchingSupported() {
+    return mTransport.isOffloadedScanBatchingSupported();
+  }
+
+  @Override
+  public boolean isLe2MPhySupported() {
+    return mTransport.isLe2MPhySupported();
+  }
+
+  @Override
+  public boolean startScan(List<ScanFilter> filters, ScanSettings settings, ScanListener listener) {
+    boolean started = mTransport.startScan(filters, settings, new ScanListener() {
+      @Override
+      public void onScanResult(ScanResult result) {
+        TrafficRecorder recorder = mRecorder;
+        if (recorder != null) {
+          recorder.scanResult(result);
+        }
+        listener.onScanResult(result);
+      }
+
+      @Override
+      public void onBatchScanResults(List<ScanResult> results) {
+        TrafficRecorder recorder = mRecorder;
+        if (recorder != null) {
+          recorder.scanBatch(results);
+        }
+        listener.onBatchScanResults(results);
+      }
+
+      @Override
+      public void onScanFailed(int errorCode) {
+        TrafficRecorder recorder = mRecorder;
+        if (recorder != null) {
+          recorder.scanFailed(errorCode);
+        }
+        listener.onScanFailed(errorCode);
+      }
+    });
+    if (started) {
+      mScanning = true;
+      TrafficRecorder recorder = mRecorder;
+      if (recorder != null) {
+        recorder.scanStarted();
+      }
+    }
+    return started;
+  }
+
+  @Override
+  public void flushPendingScanResults() {
+    mTransport.flushPendingScanResults();
+  }
+
+  @Override
+  public void stopScan() {
+    mTransport.stopScan();
+    mScanning = false;
+    TrafficRecorder recorder = mRecorder;
+    if (recorder != null) {
+      recorder.scanStopped();
+    }
+  }
+
+  @Nullable
+  @Override
+  public GattConnection connect(BluetoothDevice device, GattConnection.Listener listener, Handler handler, boolean autoConnect) {
+    Connection connection = new Connection(mNextConnection.incrementAndGet(), DeviceRegistry.parseAddress(device.getAddress()));
+    TrafficRecorder recorder = mRecorder;
+    if (recorder != null) {
+      recorder.connect(connection.mId, connection.mAddress);
+    }
+    GattConnection gatt = mTransport.connect(device, connection.createListener(listener), handler, autoConnect);
+    if (gatt == null) {
+      return null;
+    }
+    connection.mGatt = gatt;
+    mConnections.add(connection);
+    return connection;
+  }
+
+  /**
+   * Records the requests of one connection and the callbacks on its way back.
+   */
+  private final class Connection implements GattConnection {
+    final int mId;
+    final long mAddress;
+    GattConnection mGatt;
+
+    // what a recording started mid-session needs to know
+    private volatile boolean mConnected;
+    private volatile boolean mDiscovered;
+    // table positions of the discovered attributes, built on first use after each discovery
+    @Nullable
+    private Map<Object, Integer> mAttributes;
+
+    Connection(int id, long address) {
+      mId = id;
+      mAddress = address;
+    }
+
+    void recordState(TrafficRecorder recorder) {
+      recorder.connect(mId, mAddress);
+      if (mConnected) {
+        recorder.connectionState(mId, 0, BluetoothProfile.STATE_CONNECTED);
+      }
+      if (mDiscovered) {
+        recorder.services(mId, 0, mGatt.getServices());
+      }
+    }
+
+    private synchronized int indexOf(Object attribute) {
+      if (mAttributes == null) {
+        mAttributes = new IdentityHashMap<>();
+        if (mGatt != null) {
+          List<Object> attributes = TrafficLog.flatten(mGatt.getServices());
+          for (int i = 0; i < attributes.size(); i++) {
+            mAttributes.put(attributes.get(i), i);
+          }
+        }
+      }
+      Integer index = mAttributes.get(attribute);
+      return index != null ? index : TrafficLog.NO_ATTRIBUTE;
+    }
+
+    private synchronized void invalidate() {
+      mAttributes = null;
+    }
+
+    /**
+     * Record a request before it is issued, since its completion may arrive on a binder thread before the call
+     * returns. Pass what the call returns to {@link #accepted(boolean)}.
+     */
+    private void request(int op, @Nullable Object attribute, int arg1, int arg2, int arg3, @Nullable byte[] value) {
+      TrafficRecorder recorder = mRecorder;
+      if (recorder != null) {
+        int index = attribute != null ? indexOf(attribute) : TrafficLog.NO_ATTRIBUTE;
+        recorder.request(mId, op, index, arg1, arg2, arg3, value);
+      }
+    }
+
+    private boolean accepted(boolean result) {
+      TrafficRecorder recorder = mRecorder;
+      if (recorder != null && !result) {
+        recorder.refused(mId);
+      }
+      return result;
+    }
+
+    private void completion(int op, @Nullable Object attribute, int status, int arg1, int arg2, @Nullable byte[] value) {
+      TrafficRecorder recorder = mRecorder;
+      if (recorder != null) {
+        int index = attribute != null ? indexOf(attribute) : TrafficLog.NO_ATTRIBUTE;
+        recorder.completion(mId, op, index, status, arg1, arg2, value);
+      }
+    }
+
+    Listener createListener(Listener listener) {
+      return new Listener() {
+        @Override
+        public void onConnectionStateChange(int status, int newState) {
+          mConnected = newState == BluetoothProfile.STATE_CONNECTED;
+          if (!mConnected) {
+            mDiscovered = false;
+            invalidate();
+          }
+          TrafficRecorder recorder = mRecorder;
+          if (recorder != null) {
+            recorder.connectionState(mId, status, newState);
+          }
+          listener.onConnectionStateChange(status, newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(int status) {
+          mDiscovered = status == 0;
+          invalidate();
+          TrafficRecorder recorder = mRecorder;
+          if (recorder != null) {
+            recorder.services(mId, status, mDiscovered ? mGatt.getServices() : Collections.<BluetoothGattService>emptyList());
+          }
+          listener.onServicesDiscovered(status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, byte[] value, int status) {
+          completion(TrafficLog.OP_READ_CHARACTERISTIC, characteristic, status, 0, 0, value);
+          listener.onCharacteristicRead(characteristic, value, status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+          completion(TrafficLog.OP_WRITE_CHARACTERISTIC, characteristic, status, 0, 0, null);
+          listener.onCharacteristicWrite(characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGattCharacteristic characteristic, byte[] value) {
+          TrafficRecorder recorder = mRecorder;
+          if (recorder != null) {
+            recorder.notification(mId, indexOf(characteristic), value);
+          }
+          listener.onCharacteristicChanged(characteristic, value);
+        }
+
+        @Override
+        public void onDescriptorRead(BluetoothGattDescriptor descriptor, byte[] value, int status) {
+          completion(TrafficLog.OP_READ_DESCRIPTOR, descriptor, status, 0, 0, value);
+          listener.onDescriptorRead(descriptor, value, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+          completion(TrafficLog.OP_WRITE_DESCRIPTOR, descriptor, status, 0, 0, null);
+          listener.onDescriptorWrite(descriptor, status);
+        }
+
+        @Override
+        public void onMtuChanged(int mtu, int status) {
+          completion(TrafficLog.OP_REQUEST_MTU, null, status, mtu, 0, null);
+          listener.onMtuChanged(mtu, status);
+        }
+
+        @Override
+        public void onPhyUpdate(int txPhy, int rxPhy, int status) {
+          completion(TrafficLog.OP_SET_PHY, null, status, txPhy, rxPhy, null);
+          listener.onPhyUpdate(txPhy, rxPhy, status);
+        }
+
+        @Override
+        public void onServiceChanged() {
+          mDiscovered = false;
+          invalidate();
+          TrafficRecorder recorder = mRecorder;
+          if (recorder != null) {
+            recorder.serviceChanged(mId);
+          }
+          listener.onServiceChanged();
+        }
+      };
+    }
+
+    @Override
+    public boolean discoverServices() {
+      request(TrafficLog.OP_DISCOVER_SERVICES, null, 0, 0, 0, null);
+      return accepted(mGatt.discoverServices());
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+      return mGatt.getServices();
+    }
+
+    @Nullable
+    @Override
+    public BluetoothGattService getService(UUID uuid) {
+      return mGatt.getService(uuid);
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+      request(TrafficLog.OP_READ_CHARACTERISTIC, characteristic, 0, 0, 0, null);
+      return accepted(mGatt.readCharacteristic(characteristic));
+    }
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, int writeType) {
+      request(TrafficLog.OP_WRITE_CHARACTERISTIC, characteristic, writeType, 0, 0, value);
+      return accepted(mGatt.writeCharacteristic(characteristic, value, writeType));
+    }
+
+    @Override
+    public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+      request(TrafficLog.OP_READ_DESCRIPTOR, descriptor, 0, 0, 0, null);
+      return accepted(mGatt.readDescriptor(descriptor));
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+      request(TrafficLog.OP_WRITE_DESCRIPTOR, descriptor, 0, 0, 0, value);
+      return accepted(mGatt.writeDescriptor(descriptor, value));
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+      request(TrafficLog.OP_SET_NOTIFICATION, characteristic, enable ? 1 : 0, 0, 0, null);
+      return accepted(mGatt.setCharacteristicNotification(characteristic, enable));
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+      request(TrafficLog.OP_REQUEST_MTU, null, mtu, 0, 0, null);
+      return accepted(mGatt.requestMtu(mtu));
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+      request(TrafficLog.OP_REQUEST_PRIORITY, null, priority, 0, 0, null);
+      return accepted(mGatt.requestConnectionPriority(priority));
+    }
+
+    @Override
+    public void setPreferredPhy(int txPhy, int rxPhy, int phyOptions) {
+      request(TrafficLog.OP_SET_PHY, null, txPhy, rxPhy, phyOptions, null);
+      mGatt.setPreferredPhy(txPhy, rxPhy, phyOptions);
+    }
+
+    @Override
+    public void disconnect() {
+      request(TrafficLog.OP_DISCONNECT, null, 0, 0, 0, null);
+      mGatt.disconnect();
+    }
+
+    @Override
+    public void close() {
+      request(TrafficLog.OP_CLOSE, null, 0, 0, 0, null);
+      mGatt.close();
+      mConnections.remove(this);
+    }
+  }
+}
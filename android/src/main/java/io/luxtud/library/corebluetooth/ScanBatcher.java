@@ -0,0 +1,117 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.le.ScanResult;
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coalesces scan results so that only the latest result of each device is delivered once per interval.
+ * <p>
+ * When the controller batches results itself ({@link #setOffloaded(boolean)}) the batcher only
+ * deduplicates each hardware batch, otherwise it holds results for the interval on its handler.
+ * It is synchronized, so results may be added from another thread than the one it delivers on.
+ */
+class ScanBatcher {
+  interface Listener {
+    /**
+     * The devices of one batch with their latest results, in parallel lists only valid during the call.
+     */
+    void onBatch(List<DeviceRegistry.Entry> entries, List<ScanResult> results);
+  }
+
+  private final Handler mHandler;
+  private final Listener mListener;
+  private final Runnable mFlushRunnable;
+  private final Object mDeliveryLock;
+  private final ArrayList<ScanResult> mResults;
+
+  private ArrayList<DeviceRegistry.Entry> mPending;
+  private ArrayList<DeviceRegistry.Entry> mDelivering;
+  private long mInterval;
+  private boolean mOffloaded;
+  private boolean mScheduled;
+
+  ScanBatcher(Handler handler, Listener listener) {
+    mHandler = handler;
+    mListener = listener;
+    mFlushRunnable = this::flush;
+    mDeliveryLock = new Object();
+    mResults = new ArrayList<>();
+    mPending = new ArrayList<>();
+    mDelivering = new ArrayList<>();
+  }
+
+  /**
+   * Set the delivery interval in ms, zero disables batching.
+   */
+  synchronized void setInterval(long interval) {
+    mInterval = Math.max(0, interval);
+  }
+
+  synchronized long getInterval() {
+    return mInterval;
+  }
+
+  synchronized boolean isEnabled() {
+    return mInterval > 0;
+  }
+
+  synchronized void setOffloaded(boolean offloaded) {
+    mOffloaded = offloaded;
+  }
+
+  synchronized boolean isOffloaded() {
+    return mOffloaded;
+  }
+
+  synchronized void add(DeviceRegistry.Entry entry, ScanResult result) {
+    entry.latestResult = result;
+    if (!entry.pending) {
+      entry.pending = true;
+      mPending.add(entry);
+    }
+    if (!mOffloaded && !mScheduled) {
+      mScheduled = true;
+      mHandler.postDelayed(mFlushRunnable, mInterval);
+    }
+  }
+
+  void flush() {
+    synchronized (mDeliveryLock) {
+      ArrayList<DeviceRegistry.Entry> batch;
+      synchronized (this) {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mScheduled = false;
+        if (mPending.isEmpty()) {
+          return;
+        }
+        // swap the lists and take the results, so results arriving during delivery start a new batch
+        batch = mPending;
+        mPending = mDelivering;
+        mDelivering = batch;
+        for (int i = 0; i < batch.size(); i++) {
+          DeviceRegistry.Entry entry = batch.get(i);
+          mResults.add(entry.latestResult);
+          entry.pending = false;
+          entry.latestResult = null;
+        }
+      }
+      mListener.onBatch(batch, mResults);
+      batch.clear();
+      mResults.clear();
+    }
+  }
+
+  synchronized void cancel() {
+    mHandler.removeCallbacks(mFlushRunnable);
+    mScheduled = false;
+    for (int i = 0; i < mPending.size(); i++) {
+      DeviceRegistry.Entry entry = mPending.get(i);
+      entry.pending = false;
+      entry.latestResult = null;
+    }
+    mPending.clear();
+  }
+}
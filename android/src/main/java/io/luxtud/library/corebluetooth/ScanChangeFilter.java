@@ -0,0 +1,125 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+
+/**
+ * Suppresses scan results that carry nothing new compared to what was last emitted for a device.
+ * <p>
+ * A result is forwarded when one of the subscribed advertisement fields changed, when the (optionally EWMA
+ * smoothed) RSSI moved by at least the configured delta, or when the heartbeat interval elapsed since the last
+ * emit. Fields are compared as raw AD structures through an {@link AdvertisingCursor}, so unchanged packets
+ * allocate nothing. The last emitted state lives on the {@link DeviceRegistry.Entry}.
+ */
+class ScanChangeFilter {
+  static final int DEFAULT_RSSI_DELTA = 5;
+  static final double DEFAULT_RSSI_SMOOTHING = 1.0;
+  static final long DEFAULT_HEARTBEAT_MS = 5000;
+
+  private boolean mEnabled;
+  private int mRssiDelta;
+  private double mRssiSmoothing;
+  private long mHeartbeat;
+  private int mFields;
+  private final AdvertisingCursor mCursor;
+
+  ScanChangeFilter() {
+    mEnabled = false;
+    mRssiDelta = DEFAULT_RSSI_DELTA;
+    mRssiSmoothing = DEFAULT_RSSI_SMOOTHING;
+    mHeartbeat = DEFAULT_HEARTBEAT_MS;
+    mFields = AdvertisingCursor.DEFAULT_FIELDS;
+    mCursor = new AdvertisingCursor();
+  }
+
+  /**
+   * Advertisement fields whose change forwards a device, see {@link AdvertisingCursor}.
+   */
+  void setFields(int fields) {
+    mFields = fields;
+  }
+
+  /**
+   * @param rssiDelta minimum RSSI change in dBm that is forwarded
+   * @param rssiSmoothing EWMA weight of a new RSSI sample in (0, 1], 1 disables smoothing
+   * @param heartbeat interval in ms after which a device is forwarded even if unchanged, zero disables it
+   */
+  void configure(boolean enabled, int rssiDelta, double rssiSmoothing, long heartbeat) {
+    if (rssiSmoothing <= 0 || rssiSmoothing > 1) {
+      throw new IllegalArgumentException("rssiSmoothing must be in (0, 1]");
+    }
+    mEnabled = enabled;
+    mRssiDelta = Math.max(0, rssiDelta);
+    mRssiSmoothing = rssiSmoothing;
+    mHeartbeat = Math.max(0, heartbeat);
+  }
+
+  boolean isEnabled() {
+    return mEnabled;
+  }
+
+  /**
+   * Decide whether the result should be forwarded and remember it as emitted if so.
+   */
+  boolean accept(DeviceRegistry.Entry entry, ScanResult result, long now) {
+    if (!mEnabled) {
+      return true;
+    }
+
+    int rssi = result.getRssi();
+    if (!entry.emitted) {
+      entry.smoothedRssi = rssi;
+    } else {
+      entry.smoothedRssi += mRssiSmoothing * (rssi - entry.smoothedRssi);
+    }
+
+    ScanRecord record = result.getScanRecord();
+    byte[] bytes = record != null ? record.getBytes() : null;
+
+    boolean changed = !entry.emitted
+      || (mHeartbeat > 0 && now - entry.lastEmittedAt >= mHeartbeat)
+      || Math.abs(entry.smoothedRssi - entry.lastEmittedRssi) >= mRssiDelta
+      || !fieldsEqual(entry, bytes);
+    if (!changed) {
+      return false;
+    }
+
+    entry.emitted = true;
+    entry.lastEmittedAt = now;
+    entry.lastEmittedRssi = entry.smoothedRssi;
+    rememberFields(entry, bytes);
+    return true;
+  }
+
+  private boolean fieldsEqual(DeviceRegistry.Entry entry, byte[] bytes) {
+    byte[] last = entry.lastEmittedFields;
+    int position = 0;
+    AdvertisingCursor cursor = mCursor.reset(bytes);
+    while (cursor.next(mFields)) {
+      if (last == null || position + cursor.size() > entry.lastEmittedFieldsLength || !cursor.regionEquals(last, position)) {
+        return false;
+      }
+      position += cursor.size();
+    }
+    return position == entry.lastEmittedFieldsLength;
+  }
+
+  private void rememberFields(DeviceRegistry.Entry entry, byte[] bytes) {
+    int length = 0;
+    AdvertisingCursor cursor = mCursor.reset(bytes);
+    while (cursor.next(mFields)) {
+      length += cursor.size();
+    }
+    if (entry.lastEmittedFields == null || entry.lastEmittedFields.length < length) {
+      // advertisements are at most 31 bytes for legacy and 255 for extended ones
+      entry.lastEmittedFields = new byte[Math.max(length, 31)];
+    }
+    int position = 0;
+    cursor.reset(bytes);
+    while (cursor.next(mFields)) {
+      System.arraycopy(bytes, cursor.start, entry.lastEmittedFields, position, cursor.size());
+      position += cursor.size();
+    }
+    entry.lastEmittedFieldsLength = length;
+  }
+}
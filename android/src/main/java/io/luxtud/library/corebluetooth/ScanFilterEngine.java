@@ -0,0 +1,312 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Advertisement filter applied to every scan result before anything is allocated for it.
+ * <p>
+ * Rules are compiled into primitive arrays once. A result passes when any rule matches, and a rule matches
+ * when all of its conditions do, like {@link ScanFilter}. Rules that name a company or service are also
+ * handed to the controller as hardware filters; the software check still runs because name prefixes,
+ * RSSI floors and masks at an offset are looser or absent in hardware.
+ */
+class ScanFilterEngine {
+  static final int NO_COMPANY_ID = -1;
+  static final int NO_RSSI_FLOOR = Integer.MIN_VALUE;
+
+  /**
+   * One filter rule as configured from js, unset conditions are left at their defaults.
+   */
+  static final class Rule {
+    int companyId = NO_COMPANY_ID;
+    // manufacturer data bytes compared at offset, under mask when one is given
+    int offset;
+    @Nullable
+    byte[] prefix;
+    @Nullable
+    byte[] mask;
+    @Nullable
+    UUID serviceUuid;
+    @Nullable
+    UUID serviceDataUuid;
+    @Nullable
+    byte[] serviceData;
+    @Nullable
+    byte[] serviceDataMask;
+    @Nullable
+    String namePrefix;
+    int rssiFloor = NO_RSSI_FLOOR;
+
+    boolean isOffloadable() {
+      return companyId != NO_COMPANY_ID || serviceUuid != null || serviceDataUuid != null;
+    }
+  }
+
+  /**
+   * Immutable compiled form of a rule set, swapped in as a whole so scan callbacks never see a partial one.
+   */
+  private static final class Program {
+    final int count;
+    final int[] companyIds;
+    final int[] offsets;
+    final byte[][] prefixes;
+    final byte[][] masks;
+    final boolean[] hasServiceUuid;
+    final long[] serviceMsb;
+    final long[] serviceLsb;
+    final ParcelUuid[] serviceDataUuids;
+    final byte[][] serviceData;
+    final byte[][] serviceDataMasks;
+    final String[] namePrefixes;
+    final int[] rssiFloors;
+    // sorted company ids whose manufacturer data is reported, empty reports all
+    final int[] reportedCompanyIds;
+    @Nullable
+    final List<ScanFilter> hardwareFilters;
+
+    Program(List<Rule> rules) {
+      count = rules.size();
+      companyIds = new int[count];
+      offsets = new int[count];
+      prefixes = new byte[count][];
+      masks = new byte[count][];
+      hasServiceUuid = new boolean[count];
+      serviceMsb = new long[count];
+      serviceLsb = new long[count];
+      serviceDataUuids = new ParcelUuid[count];
+      serviceData = new byte[count][];
+      serviceDataMasks = new byte[count][];
+      namePrefixes = new String[count];
+      rssiFloors = new int[count];
+
+      int companyCount = 0;
+      int[] companies = new int[count];
+      boolean offloadable = count > 0;
+      List<ScanFilter> filters = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        Rule rule = rules.get(i);
+        validate(rule);
+        companyIds[i] = rule.companyId;
+        offsets[i] = rule.offset;
+        if (rule.prefix != null) {
+          masks[i] = rule.mask != null ? rule.mask.clone() : filled(rule.prefix.length);
+          prefixes[i] = applyMask(rule.prefix, masks[i]);
+        }
+        if (rule.serviceUuid != null) {
+          hasServiceUuid[i] = true;
+          serviceMsb[i] = rule.serviceUuid.getMostSignificantBits();
+          serviceLsb[i] = rule.serviceUuid.getLeastSignificantBits();
+        }
+        if (rule.serviceDataUuid != null) {
+          serviceDataUuids[i] = new ParcelUuid(rule.serviceDataUuid);
+          if (rule.serviceData != null) {
+            serviceDataMasks[i] = rule.serviceDataMask != null ? rule.serviceDataMask.clone() : filled(rule.serviceData.length);
+            serviceData[i] = applyMask(rule.serviceData, serviceDataMasks[i]);
+          }
+        }
+        namePrefixes[i] = rule.namePrefix;
+        rssiFloors[i] = rule.rssiFloor;
+        if (rule.companyId != NO_COMPANY_ID) {
+          companies[companyCount++] = rule.companyId;
+        }
+
+        // a single rule the controller cannot express means it has to report everything
+        offloadable &= rule.isOffloadable();
+        if (offloadable) {
+          filters.add(createHardwareFilter(i));
+        }
+      }
+
+      reportedCompanyIds = Arrays.copyOf(companies, companyCount);
+      Arrays.sort(reportedCompanyIds);
+      hardwareFilters = offloadable ? Collections.unmodifiableList(filters) : null;
+    }
+
+    private ScanFilter createHardwareFilter(int i) {
+      ScanFilter.Builder builder = new ScanFilter.Builder();
+      if (companyIds[i] != NO_COMPANY_ID) {
+        if (prefixes[i] != null) {
+          // the controller compares from the start of the manufacturer data, mask out the bytes before offset
+          int length = offsets[i] + prefixes[i].length;
+          byte[] data = new byte[length];
+          byte[] mask = new byte[length];
+          System.arraycopy(prefixes[i], 0, data, offsets[i], prefixes[i].length);
+          System.arraycopy(masks[i], 0, mask, offsets[i], masks[i].length);
+          builder.setManufacturerData(companyIds[i], data, mask);
+        } else {
+          builder.setManufacturerData(companyIds[i], new byte[] {}, new byte[] {});
+        }
+      }
+      if (hasServiceUuid[i]) {
+        builder.setServiceUuid(new ParcelUuid(new UUID(serviceMsb[i], serviceLsb[i])));
+      }
+      if (serviceDataUuids[i] != null) {
+        if (serviceData[i] != null) {
+          builder.setServiceData(serviceDataUuids[i], serviceData[i], serviceDataMasks[i]);
+        } else {
+          builder.setServiceData(serviceDataUuids[i], new byte[] {}, new byte[] {});
+        }
+      }
+      return builder.build();
+    }
+  }
+
+  private volatile Program mProgram;
+
+  ScanFilterEngine() {
+    mProgram = new Program(Collections.<Rule>emptyList());
+  }
+
+  /**
+   * Compile a new rule set. Throws IllegalArgumentException for inconsistent rules and keeps the previous set.
+   */
+  void setRules(List<Rule> rules) {
+    mProgram = new Program(rules);
+  }
+
+  /**
+   * Filters to pass to the scanner, or null when some rule can only be checked in software.
+   */
+  @Nullable
+  List<ScanFilter> getHardwareFilters() {
+    return mProgram.hardwareFilters;
+  }
+
+  boolean accept(ScanResult result) {
+    Program program = mProgram;
+    if (program.count == 0) {
+      return true;
+    }
+    ScanRecord record = result.getScanRecord();
+    if (record == null) {
+      return false;
+    }
+    int rssi = result.getRssi();
+    for (int i = 0; i < program.count; i++) {
+      if (matches(program, i, record, rssi)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Whether manufacturer data of this company belongs in the emitted result.
+   */
+  boolean isReportedCompany(int companyId) {
+    int[] companies = mProgram.reportedCompanyIds;
+    return companies.length == 0 || Arrays.binarySearch(companies, companyId) >= 0;
+  }
+
+  private static boolean matches(Program program, int i, ScanRecord record, int rssi) {
+    if (rssi < program.rssiFloors[i]) {
+      return false;
+    }
+
+    String namePrefix = program.namePrefixes[i];
+    if (namePrefix != null) {
+      String name = record.getDeviceName();
+      if (name == null || !name.startsWith(namePrefix)) {
+        return false;
+      }
+    }
+
+    int companyId = program.companyIds[i];
+    if (companyId != NO_COMPANY_ID) {
+      byte[] data = record.getManufacturerSpecificData(companyId);
+      if (data == null) {
+        return false;
+      }
+      byte[] prefix = program.prefixes[i];
+      if (prefix != null && !matchesMasked(data, program.offsets[i], prefix, program.masks[i])) {
+        return false;
+      }
+    }
+
+    if (program.hasServiceUuid[i] && !containsServiceUuid(record, program.serviceMsb[i], program.serviceLsb[i])) {
+      return false;
+    }
+
+    ParcelUuid serviceDataUuid = program.serviceDataUuids[i];
+    if (serviceDataUuid != null) {
+      byte[] data = record.getServiceData(serviceDataUuid);
+      if (data == null) {
+        return false;
+      }
+      byte[] expected = program.serviceData[i];
+      if (expected != null && !matchesMasked(data, 0, expected, program.serviceDataMasks[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean matchesMasked(byte[] data, int offset, byte[] expected, byte[] mask) {
+    if (data.length < offset + expected.length) {
+      return false;
+    }
+    for (int j = 0; j < expected.length; j++) {
+      if (((data[offset + j] & mask[j]) & 0xff) != (expected[j] & 0xff)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean containsServiceUuid(ScanRecord record, long msb, long lsb) {
+    List<ParcelUuid> uuids = record.getServiceUuids();
+    if (uuids == null) {
+      return false;
+    }
+    for (int j = 0; j < uuids.size(); j++) {
+      UUID uuid = uuids.get(j).getUuid();
+      if (uuid.getLeastSignificantBits() == lsb && uuid.getMostSignificantBits() == msb) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void validate(Rule rule) {
+    if (rule.prefix != null && rule.companyId == NO_COMPANY_ID) {
+      throw new IllegalArgumentException("prefix requires a company id");
+    }
+    if (rule.offset < 0) {
+      throw new IllegalArgumentException("offset must not be negative");
+    }
+    if (rule.mask != null && (rule.prefix == null || rule.mask.length != rule.prefix.length)) {
+      throw new IllegalArgumentException("mask must have the length of prefix");
+    }
+    if (rule.serviceData != null && rule.serviceDataUuid == null) {
+      throw new IllegalArgumentException("service data requires a service data uuid");
+    }
+    if (rule.serviceDataMask != null && (rule.serviceData == null || rule.serviceDataMask.length != rule.serviceData.length)) {
+      throw new IllegalArgumentException("service data mask must have the length of service data");
+    }
+  }
+
+  private static byte[] filled(int length) {
+    byte[] mask = new byte[length];
+    Arrays.fill(mask, (byte) 0xff);
+    return mask;
+  }
+
+  private static byte[] applyMask(byte[] value, byte[] mask) {
+    byte[] masked = new byte[value.length];
+    for (int i = 0; i < value.length; i++) {
+      masked[i] = (byte) (value[i] & mask[i]);
+    }
+    return masked;
+  }
+}
@@ -0,0 +1,238 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Decides when the LE scanner actually starts and stops.
+ * <p>
+ * js only requests scanning on or off. Repeated requests are coalesced, and a stop that is followed by a start
+ * within {@link #STOP_GRACE_MS} never reaches the scanner. With a duty cycle the scanner runs for the on duration
+ * of every period. Android ignores an app's sixth scan start within 30 s, so every start is checked against
+ * the last {@link #MAX_STARTS_PER_WINDOW} and delayed until it fits the window.
+ */
+class ScanScheduler {
+  static final int PROFILE_LOW_POWER = 0;
+  static final int PROFILE_BALANCED = 1;
+  static final int PROFILE_LOW_LATENCY = 2;
+  static final int PROFILE_OPPORTUNISTIC = 3;
+
+  static final int MAX_STARTS_PER_WINDOW = 5;
+  static final long START_WINDOW_MS = 30000;
+  static final long STOP_GRACE_MS = 250;
+
+  // ScanCallback.SCAN_FAILED_SCANNING_TOO_FREQUENTLY, only public since API 33
+  static final int SCAN_FAILED_SCANNING_TOO_FREQUENTLY = 6;
+
+  private static final long START_MARGIN_MS = 100;
+
+  interface Scanner {
+    /**
+     * Start the LE scan with the current settings, return false when it could not be started.
+     */
+    boolean startScan();
+
+    void stopScan();
+  }
+
+  private final Handler mHandler;
+  private final Scanner mScanner;
+  private final Runnable mStartRunnable;
+  private final Runnable mStopRunnable;
+  private final Runnable mDutyOffRunnable;
+
+  // ring of the most recent start times, mStartIndex points at the oldest
+  private final long[] mStarts;
+  private int mStartIndex;
+
+  private long mOnDuration;
+  private long mPeriod;
+
+  private boolean mRequested;
+  private boolean mScanning;
+
+  ScanScheduler(Handler handler, Scanner scanner) {
+    mHandler = handler;
+    mScanner = scanner;
+    mStartRunnable = this::onStartDue;
+    mStopRunnable = this::onStopDue;
+    mDutyOffRunnable = this::onDutyOff;
+    mStarts = new long[MAX_STARTS_PER_WINDOW];
+    for (int i = 0; i < mStarts.length; i++) {
+      mStarts[i] = Long.MIN_VALUE / 2;
+    }
+  }
+
+  static int toScanMode(int profile) {
+    switch (profile) {
+      case PROFILE_LOW_POWER:
+        return ScanSettings.SCAN_MODE_LOW_POWER;
+      case PROFILE_BALANCED:
+        return ScanSettings.SCAN_MODE_BALANCED;
+      case PROFILE_LOW_LATENCY:
+        return ScanSettings.SCAN_MODE_LOW_LATENCY;
+      case PROFILE_OPPORTUNISTIC:
+        return ScanSettings.SCAN_MODE_OPPORTUNISTIC;
+      default:
+        throw new IllegalArgumentException("unknown scan profile " + profile);
+    }
+  }
+
+  /**
+   * Throw unless ScanSettings.Builder takes the callback type, match mode and number of matches.
+   */
+  static void checkScanSettings(int callbackType, int matchMode, int numOfMatches) {
+    switch (callbackType) {
+      case ScanSettings.CALLBACK_TYPE_ALL_MATCHES:
+      case ScanSettings.CALLBACK_TYPE_FIRST_MATCH:
+      case ScanSettings.CALLBACK_TYPE_MATCH_LOST:
+      case ScanSettings.CALLBACK_TYPE_FIRST_MATCH | ScanSettings.CALLBACK_TYPE_MATCH_LOST:
+        break;
+      default:
+        throw new IllegalArgumentException("unknown callback type " + callbackType);
+    }
+    if (matchMode != ScanSettings.MATCH_MODE_AGGRESSIVE && matchMode != ScanSettings.MATCH_MODE_STICKY) {
+      throw new IllegalArgumentException("unknown match mode " + matchMode);
+    }
+    if (numOfMatches < ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT || numOfMatches > ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT) {
+      throw new IllegalArgumentException("unknown number of matches " + numOfMatches);
+    }
+  }
+
+  /**
+   * Scan for onDuration ms of every period ms, zero for either scans continuously.
+   * Takes effect with the next start.
+   */
+  synchronized void setDutyCycle(long onDuration, long period) {
+    if (onDuration > 0 && period > 0 && onDuration >= period) {
+      throw new IllegalArgumentException("on duration must be shorter than the period");
+    }
+    boolean enabled = onDuration > 0 && period > 0;
+    mOnDuration = enabled ? onDuration : 0;
+    mPeriod = enabled ? period : 0;
+  }
+
+  synchronized boolean isRequested() {
+    return mRequested;
+  }
+
+  synchronized boolean isScanning() {
+    return mScanning;
+  }
+
+  /**
+   * Request scanning, returns false when it already was requested.
+   */
+  synchronized boolean start() {
+    if (mRequested) {
+      return false;
+    }
+    mRequested = true;
+    // a stop still in its grace period is simply called off
+    mHandler.removeCallbacks(mStopRunnable);
+    if (mScanning) {
+      if (isDutyCycled()) {
+        mHandler.postDelayed(mDutyOffRunnable, mOnDuration);
+      }
+    } else {
+      scheduleStart();
+    }
+    return true;
+  }
+
+  /**
+   * Request scanning off, returns false when it was not requested.
+   */
+  synchronized boolean stop() {
+    if (!mRequested) {
+      return false;
+    }
+    mRequested = false;
+    mHandler.removeCallbacks(mStartRunnable);
+    mHandler.removeCallbacks(mDutyOffRunnable);
+    if (mScanning) {
+      mHandler.postDelayed(mStopRunnable, STOP_GRACE_MS);
+    }
+    return true;
+  }
+
+  /**
+   * Stop a running scan and start it again, within the budget, so new settings apply.
+   */
+  synchronized void restart() {
+    if (!mRequested) {
+      return;
+    }
+    mHandler.removeCallbacks(mDutyOffRunnable);
+    if (mScanning) {
+      mScanner.stopScan();
+      mScanning = false;
+    }
+    scheduleStart();
+  }
+
+  /**
+   * The scanner reported a failure for the current scan.
+   */
+  synchronized void onScanFailed(int errorCode) {
+    mHandler.removeCallbacks(mDutyOffRunnable);
+    mScanning = false;
+    if (errorCode == SCAN_FAILED_SCANNING_TOO_FREQUENTLY && mRequested) {
+      // starts made outside of this scheduler count too, wait out a whole window
+      mHandler.removeCallbacks(mStartRunnable);
+      mHandler.postDelayed(mStartRunnable, START_WINDOW_MS);
+    } else {
+      mRequested = false;
+    }
+  }
+
+  private boolean isDutyCycled() {
+    return mOnDuration > 0;
+  }
+
+  private void scheduleStart() {
+    long now = SystemClock.elapsedRealtime();
+    long delay = mStarts[mStartIndex] + START_WINDOW_MS + START_MARGIN_MS - now;
+    if (delay > 0) {
+      mHandler.removeCallbacks(mStartRunnable);
+      mHandler.postDelayed(mStartRunnable, delay);
+      return;
+    }
+
+    if (!mScanner.startScan()) {
+      mRequested = false;
+      return;
+    }
+    mStarts[mStartIndex] = now;
+    mStartIndex = (mStartIndex + 1) % mStarts.length;
+    mScanning = true;
+    if (isDutyCycled()) {
+      mHandler.postDelayed(mDutyOffRunnable, mOnDuration);
+    }
+  }
+
+  private synchronized void onStartDue() {
+    if (mRequested && !mScanning) {
+      scheduleStart();
+    }
+  }
+
+  private synchronized void onStopDue() {
+    if (!mRequested && mScanning) {
+      mScanner.stopScan();
+      mScanning = false;
+    }
+  }
+
+  private synchronized void onDutyOff() {
+    if (!mScanning) {
+      return;
+    }
+    mScanner.stopScan();
+    mScanning = false;
+    if (mRequested) {
+      mHandler.postDelayed(mStartRunnable, mPeriod - mOnDuration);
+    }
+  }
+}
@@ -0,0 +1,299 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Binary log of the traffic between the module and its {@link BluetoothTransport}, written by a
+ * {@link TrafficRecorder} and read back by the unit tests' ReplayTransport.
+ * <p>
+ * The file starts with a header (magic, version, wall clock ms and elapsed realtime ns at the start) followed by
+ * records of a type byte, the ns since the previous record as a varint and a body of varints, fixed-size uuids
+ * and length-prefixed byte arrays. Attributes are referenced by their position in the connection's discovered
+ * table, see {@link #flatten(List)}, so a record costs a few bytes plus its value. A record cut off at the end of
+ * the file, e.g. by a crash while recording, ends the log.
+ * <p>
+ * A request is recorded before it is issued, as its completion may be delivered on a binder thread before the call
+ * returns, and one the stack did not accept is followed by a REFUSED record. Version 1 logs carried the acceptance
+ * in the REQUEST record instead.
+ */
+final class TrafficLog {
+  static final int MAGIC = 0x4342544c;
+  static final int VERSION = 2;
+
+  static final int SCAN_START = 1;
+  static final int SCAN_STOP = 2;
+  static final int SCAN_RESULT = 3;
+  static final int SCAN_BATCH = 4;
+  static final int SCAN_FAILED = 5;
+  static final int CONNECT = 6;
+  static final int REQUEST = 7;
+  static final int CONNECTION_STATE = 8;
+  static final int SERVICES = 9;
+  static final int COMPLETION = 10;
+  static final int NOTIFICATION = 11;
+  static final int SERVICE_CHANGED = 12;
+  static final int REFUSED = 13;
+
+  // operations of REQUEST and COMPLETION records
+  static final int OP_DISCOVER_SERVICES = 1;
+  static final int OP_READ_CHARACTERISTIC = 2;
+  static final int OP_WRITE_CHARACTERISTIC = 3;
+  static final int OP_READ_DESCRIPTOR = 4;
+  static final int OP_WRITE_DESCRIPTOR = 5;
+  static final int OP_SET_NOTIFICATION = 6;
+  static final int OP_REQUEST_MTU = 7;
+  static final int OP_REQUEST_PRIORITY = 8;
+  static final int OP_SET_PHY = 9;
+  static final int OP_DISCONNECT = 10;
+  static final int OP_CLOSE = 11;
+
+  static final int NO_ATTRIBUTE = -1;
+
+  /**
+   * One decoded record. Which fields are set depends on the type, see {@link TrafficRecorder}.
+   */
+  static final class Event {
+    final int type;
+    // elapsed realtime ns
+    final long timestamp;
+    int connection;
+    int op;
+    int attribute = NO_ATTRIBUTE;
+    int status;
+    int arg1;
+    int arg2;
+    int arg3;
+    boolean result;
+    long address;
+    int rssi;
+    @Nullable
+    byte[] value;
+    // scan results of a SCAN_BATCH
+    @Nullable
+    List<Event> batch;
+    // table of a successful SERVICES record
+    @Nullable
+    List<BluetoothGattService> services;
+
+    Event(int type, long timestamp) {
+      this.type = type;
+      this.timestamp = timestamp;
+    }
+  }
+
+  final long startedAt;
+  final List<Event> events;
+
+  private TrafficLog(long startedAt, List<Event> events) {
+    this.startedAt = startedAt;
+    this.events = Collections.unmodifiableList(events);
+  }
+
+  /**
+   * Services, characteristics and descriptors in table order, the index of an attribute is its reference in records.
+   */
+  static List<Object> flatten(List<BluetoothGattService> services) {
+    List<Object> attributes = new ArrayList<>();
+    for (BluetoothGattService service : services) {
+      attributes.add(service);
+      for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+        attributes.add(characteristic);
+        attributes.addAll(characteristic.getDescriptors());
+      }
+    }
+    return attributes;
+  }
+
+  /**
+   * Map the whole file and decode it.
+   */
+  static TrafficLog read(File file) throws IOException {
+    ByteBuffer buffer;
+    try (RandomAccessFile input = new RandomAccessFile(file, "r"); FileChannel channel = input.getChannel()) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (buffer.remaining() < 21 || buffer.getInt() != MAGIC) {
+      throw new IOException("Not a traffic log: " + file);
+    }
+    int version = buffer.get();
+    if (version < 1 || version > VERSION) {
+      throw new IOException("Unsupported traffic log version " + version);
+    }
+    long startedAt = buffer.getLong();
+    long timestamp = buffer.getLong();
+
+    List<Event> events = new ArrayList<>();
+    try {
+      while (buffer.hasRemaining()) {
+        int type = buffer.get();
+        timestamp += readVarLong(buffer);
+        if (type == REFUSED) {
+          refuse(events, readVarInt(buffer));
+        } else {
+          events.add(readEvent(buffer, version, type, timestamp));
+        }
+      }
+    } catch (BufferUnderflowException e) {
+      // the last record was not written completely
+    }
+    return new TrafficLog(startedAt, events);
+  }
+
+  /**
+   * Mark the last request of the connection as not accepted. There is none when the recording started between
+   * issuing the request and its refusal.
+   */
+  private static void refuse(List<Event> events, int connection) {
+    for (int i = events.size() - 1; i >= 0; i--) {
+      Event event = events.get(i);
+      if (event.type == REQUEST && event.connection == connection) {
+        event.result = false;
+        return;
+      }
+    }
+  }
+
+  private static Event readEvent(ByteBuffer buffer, int version, int type, long timestamp) throws IOException {
+    Event event = new Event(type, timestamp);
+    switch (type) {
+      case SCAN_START:
+      case SCAN_STOP:
+        break;
+      case SCAN_RESULT:
+        readScanResult(buffer, event);
+        break;
+      case SCAN_BATCH:
+        int count = readVarInt(buffer);
+        event.batch = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          Event result = new Event(SCAN_RESULT, timestamp);
+          readScanResult(buffer, result);
+          event.batch.add(result);
+        }
+        break;
+      case SCAN_FAILED:
+        event.status = readVarInt(buffer);
+        break;
+      case CONNECT:
+        event.connection = readVarInt(buffer);
+        event.address = readVarLong(buffer);
+        break;
+      case REQUEST:
+        event.connection = readVarInt(buffer);
+        event.op = buffer.get();
+        event.attribute = readVarInt(buffer) - 1;
+        event.arg1 = readVarInt(buffer);
+        event.arg2 = readVarInt(buffer);
+        event.arg3 = readVarInt(buffer);
+        event.value = readBytes(buffer);
+        // version 1 stored whether the stack accepted the request, later versions follow a refused one up
+        event.result = version == 1 ? buffer.get() != 0 : true;
+        break;
+      case CONNECTION_STATE:
+        event.connection = readVarInt(buffer);
+        event.status = readVarInt(buffer);
+        event.arg1 = readVarInt(buffer);
+        break;
+      case SERVICES:
+        event.connection = readVarInt(buffer);
+        event.status = readVarInt(buffer);
+        event.services = readServices(buffer);
+        break;
+      case COMPLETION:
+        event.connection = readVarInt(buffer);
+        event.op = buffer.get();
+        event.attribute = readVarInt(buffer) - 1;
+        event.status = readVarInt(buffer);
+        event.arg1 = readVarInt(buffer);
+        event.arg2 = readVarInt(buffer);
+        event.value = readBytes(buffer);
+        break;
+      case NOTIFICATION:
+        event.connection = readVarInt(buffer);
+        event.attribute = readVarInt(buffer) - 1;
+        event.value = readBytes(buffer);
+        break;
+      case SERVICE_CHANGED:
+        event.connection = readVarInt(buffer);
+        break;
+      default:
+        throw new IOException("Unknown traffic log record " + type);
+    }
+    return event;
+  }
+
+  private static void readScanResult(ByteBuffer buffer, Event event) {
+    event.address = readVarLong(buffer);
+    event.rssi = -readVarInt(buffer);
+    event.value = readBytes(buffer);
+  }
+
+  private static List<BluetoothGattService> readServices(ByteBuffer buffer) {
+    int serviceCount = readVarInt(buffer);
+    List<BluetoothGattService> services = new ArrayList<>(serviceCount);
+    for (int i = 0; i < serviceCount; i++) {
+      BluetoothGattService service = new BluetoothGattService(readUuid(buffer), buffer.get());
+      int characteristicCount = readVarInt(buffer);
+      for (int j = 0; j < characteristicCount; j++) {
+        BluetoothGattCharacteristic characteristic =
+          new BluetoothGattCharacteristic(readUuid(buffer), readVarInt(buffer), readVarInt(buffer));
+        int descriptorCount = readVarInt(buffer);
+        for (int k = 0; k < descriptorCount; k++) {
+          characteristic.addDescriptor(new BluetoothGattDescriptor(readUuid(buffer), readVarInt(buffer)));
+        }
+        service.addCharacteristic(characteristic);
+      }
+      services.add(service);
+    }
+    return services;
+  }
+
+  private static UUID readUuid(ByteBuffer buffer) {
+    return new UUID(buffer.getLong(), buffer.getLong());
+  }
+
+  /**
+   * Length-prefixed bytes, the length is stored plus one so zero can stand for null.
+   */
+  @Nullable
+  private static byte[] readBytes(ByteBuffer buffer) {
+    int length = readVarInt(buffer) - 1;
+    if (length < 0) {
+      return null;
+    }
+    byte[] value = new byte[length];
+    buffer.get(value);
+    return value;
+  }
+
+  static int readVarInt(ByteBuffer buffer) {
+    return (int) readVarLong(buffer);
+  }
+
+  static long readVarLong(ByteBuffer buffer) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get();
+      value |= (long) (b & 0x7f) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+}
@@ -0,0 +1,421 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Appends {@link TrafficLog} records to a file.
+ * <p>
+ * Records are encoded under a lock into 64 KiB buffers on whatever thread the traffic happens, and full buffers are
+ * written to the file channel by a thread of the recorder's own, so neither the scan callbacks nor the bluetooth
+ * thread ever wait for the disk. Partly filled buffers are written at least once per second. Should the disk fall
+ * behind by more than {@link #MAX_BUFFERS} buffers, further records are dropped and counted instead of piling up.
+ */
+final class TrafficRecorder {
+  private static final String TAG = "CoreBluetooth";
+
+  static final int BUFFER_SIZE = 64 * 1024;
+  static final int MAX_BUFFERS = 16;
+  private static final long FLUSH_INTERVAL_MS = 1000;
+
+  private final File mFile;
+  private final FileChannel mChannel;
+  private final HandlerThread mThread;
+  private final Handler mHandler;
+  private final Runnable mFlushRunnable;
+  private final ArrayDeque<ByteBuffer> mFreeBuffers;
+
+  private ByteBuffer mBuffer;
+  private int mAllocatedBuffers;
+  private long mLastTimestamp;
+  private long mRecords;
+  private long mDropped;
+  private long mBytes;
+  private boolean mInRecord;
+  private boolean mClosed;
+  @Nullable
+  private IOException mError;
+
+  TrafficRecorder(File file) throws IOException {
+    mFile = file;
+    mChannel = new FileOutputStream(file).getChannel();
+    mThread = new HandlerThread(TAG + "Recorder");
+    mThread.start();
+    mHandler = new Handler(mThread.getLooper());
+    mFlushRunnable = this::flush;
+    mFreeBuffers = new ArrayDeque<>();
+    mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    mAllocatedBuffers = 1;
+
+    mLastTimestamp = SystemClock.elapsedRealtimeNanos();
+    mBuffer.putInt(TrafficLog.MAGIC);
+    mBuffer.put((byte) TrafficLog.VERSION);
+    mBuffer.putLong(System.currentTimeMillis());
+    mBuffer.putLong(mLastTimestamp);
+    mHandler.postDelayed(mFlushRunnable, FLUSH_INTERVAL_MS);
+  }
+
+  File getFile() {
+    return mFile;
+  }
+
+  synchronized long getRecords() {
+    return mRecords;
+  }
+
+  synchronized long getDropped() {
+    return mDropped;
+  }
+
+  /**
+   * Bytes handed to the file so far, including what is still on its way.
+   */
+  synchronized long getBytes() {
+    return mBytes + mBuffer.position();
+  }
+
+  void scanStarted() {
+    synchronized (this) {
+      if (begin(TrafficLog.SCAN_START)) {
+        end();
+      }
+    }
+  }
+
+  void scanStopped() {
+    synchronized (this) {
+      if (begin(TrafficLog.SCAN_STOP)) {
+        end();
+      }
+    }
+  }
+
+  void scanResult(ScanResult result) {
+    synchronized (this) {
+      if (begin(TrafficLog.SCAN_RESULT)) {
+        writeScanResult(result);
+        end();
+      }
+    }
+  }
+
+  void scanBatch(List<ScanResult> results) {
+    synchronized (this) {
+      if (begin(TrafficLog.SCAN_BATCH)) {
+        writeVarInt(results.size());
+        for (int i = 0; i < results.size(); i++) {
+          writeScanResult(results.get(i));
+        }
+        end();
+      }
+    }
+  }
+
+  void scanFailed(int errorCode) {
+    synchronized (this) {
+      if (begin(TrafficLog.SCAN_FAILED)) {
+        writeVarInt(errorCode);
+        end();
+      }
+    }
+  }
+
+  void connect(int connection, long address) {
+    synchronized (this) {
+      if (begin(TrafficLog.CONNECT)) {
+        writeVarInt(connection);
+        writeVarLong(address);
+        end();
+      }
+    }
+  }
+
+  /**
+   * An operation the module is about to ask the stack for.
+   */
+  void request(int connection, int op, int attribute, int arg1, int arg2, int arg3, @Nullable byte[] value) {
+    synchronized (this) {
+      if (begin(TrafficLog.REQUEST)) {
+        writeVarInt(connection);
+        writeByte(op);
+        writeVarInt(attribute + 1);
+        writeVarInt(arg1);
+        writeVarInt(arg2);
+        writeVarInt(arg3);
+        writeBytes(value);
+        end();
+      }
+    }
+  }
+
+  /**
+   * The stack did not accept the last request of the connection.
+   */
+  void refused(int connection) {
+    synchronized (this) {
+      if (begin(TrafficLog.REFUSED)) {
+        writeVarInt(connection);
+        end();
+      }
+    }
+  }
+
+  void connectionState(int connection, int status, int newState) {
+    synchronized (this) {
+      if (begin(TrafficLog.CONNECTION_STATE)) {
+        writeVarInt(connection);
+        writeVarInt(status);
+        writeVarInt(newState);
+        end();
+      }
+    }
+  }
+
+  /**
+   * Result of a discovery, with the discovered table on success.
+   */
+  void services(int connection, int status, List<BluetoothGattService> services) {
+    synchronized (this) {
+      if (begin(TrafficLog.SERVICES)) {
+        writeVarInt(connection);
+        writeVarInt(status);
+        writeVarInt(services.size());
+        for (BluetoothGattService service : services) {
+          writeUuid(service.getUuid());
+          writeByte(service.getType());
+          List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
+          writeVarInt(characteristics.size());
+          for (BluetoothGattCharacteristic characteristic : characteristics) {
+            writeUuid(characteristic.getUuid());
+            writeVarInt(characteristic.getProperties());
+            writeVarInt(characteristic.getPermissions());
+            List<BluetoothGattDescriptor> descriptors = characteristic.getDescriptors();
+            writeVarInt(descriptors.size());
+            for (BluetoothGattDescriptor descriptor : descriptors) {
+              writeUuid(descriptor.getUuid());
+              writeVarInt(descriptor.getPermissions());
+            }
+          }
+        }
+        end();
+      }
+    }
+  }
+
+  /**
+   * A completion callback: read and write results, MTU (arg1) and PHY (arg1 tx, arg2 rx) updates.
+   */
+  void completion(int connection, int op, int attribute, int status, int arg1, int arg2, @Nullable byte[] value) {
+    synchronized (this) {
+      if (begin(TrafficLog.COMPLETION)) {
+        writeVarInt(connection);
+        writeByte(op);
+        writeVarInt(attribute + 1);
+        writeVarInt(status);
+        writeVarInt(arg1);
+        writeVarInt(arg2);
+        writeBytes(value);
+        end();
+      }
+    }
+  }
+
+  void notification(int connection, int attribute, byte[] value) {
+    synchronized (this) {
+      if (begin(TrafficLog.NOTIFICATION)) {
+        writeVarInt(connection);
+        writeVarInt(attribute + 1);
+        writeBytes(value);
+        end();
+      }
+    }
+  }
+
+  void serviceChanged(int connection) {
+    synchronized (this) {
+      if (begin(TrafficLog.SERVICE_CHANGED)) {
+        writeVarInt(connection);
+        end();
+      }
+    }
+  }
+
+  /**
+   * Write what is buffered, close the file and end the recorder's thread. Later records are ignored.
+   */
+  void close() {
+    synchronized (this) {
+      if (mClosed) {
+        return;
+      }
+      mClosed = true;
+      submit();
+    }
+    mHandler.removeCallbacks(mFlushRunnable);
+    mHandler.post(() -> {
+      try {
+        mChannel.close();
+      } catch (IOException e) {
+        Log.w(TAG, "Closing traffic log failed", e);
+      }
+      mThread.quitSafely();
+    });
+  }
+
+  private boolean begin(int type) {
+    if (mClosed || mError != null) {
+      return false;
+    }
+    // worst case of the type and timestamp
+    if (!ensure(11)) {
+      mDropped++;
+      return false;
+    }
+    long now = SystemClock.elapsedRealtimeNanos();
+    mInRecord = true;
+    mBuffer.put((byte) type);
+    writeVarLong(Math.max(0, now - mLastTimestamp));
+    mLastTimestamp = Math.max(mLastTimestamp, now);
+    return true;
+  }
+
+  private void end() {
+    mInRecord = false;
+    mRecords++;
+  }
+
+  private void writeScanResult(ScanResult result) {
+    ScanRecord record = result.getScanRecord();
+    writeVarLong(DeviceRegistry.parseAddress(result.getDevice().getAddress()));
+    // RSSI is negative for anything that is received at all
+    writeVarInt(-result.getRssi());
+    writeBytes(record != null ? record.getBytes() : null);
+  }
+
+  private void writeByte(int value) {
+    if (ensure(1)) {
+      mBuffer.put((byte) value);
+    }
+  }
+
+  private void writeUuid(UUID uuid) {
+    if (ensure(16)) {
+      mBuffer.putLong(uuid.getMostSignificantBits());
+      mBuffer.putLong(uuid.getLeastSignificantBits());
+    }
+  }
+
+  private void writeVarInt(int value) {
+    writeVarLong(value & 0xffffffffL);
+  }
+
+  private void writeVarLong(long value) {
+    if (!ensure(10)) {
+      return;
+    }
+    while ((value & ~0x7fL) != 0) {
+      mBuffer.put((byte) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    mBuffer.put((byte) value);
+  }
+
+  private void writeBytes(@Nullable byte[] value) {
+    if (value == null) {
+      writeVarInt(0);
+      return;
+    }
+    writeVarInt(value.length + 1);
+    int offset = 0;
+    while (offset < value.length && ensure(1)) {
+      int length = Math.min(value.length - offset, mBuffer.remaining());
+      mBuffer.put(value, offset, length);
+      offset += length;
+    }
+  }
+
+  /**
+   * Make room for the given number of bytes, moving on to the next buffer when the current one is full. A record
+   * may span buffers, the file is written in order. Returns false when the disk is too far behind; the record
+   * started is then left incomplete, which ends the log there, so the recorder stops.
+   */
+  private boolean ensure(int bytes) {
+    if (mBuffer.remaining() >= bytes) {
+      return true;
+    }
+    if (mFreeBuffers.isEmpty() && mAllocatedBuffers >= MAX_BUFFERS) {
+      if (mInRecord) {
+        // anything after a cut in the middle of a record could not be decoded
+        mError = new IOException("Traffic log buffers exhausted");
+        Log.w(TAG, "Traffic log buffers exhausted, recording stopped");
+      }
+      return false;
+    }
+    submit();
+    return true;
+  }
+
+  /**
+   * Hand the current buffer to the writer thread and continue in a free one.
+   */
+  private void submit() {
+    ByteBuffer buffer = mBuffer;
+    if (buffer.position() == 0) {
+      return;
+    }
+    mBytes += buffer.position();
+    buffer.flip();
+    ByteBuffer next = mFreeBuffers.poll();
+    if (next == null) {
+      next = ByteBuffer.allocate(BUFFER_SIZE);
+      mAllocatedBuffers++;
+    }
+    mBuffer = next;
+    mHandler.post(() -> write(buffer));
+  }
+
+  private synchronized void flush() {
+    if (!mClosed) {
+      submit();
+      mHandler.postDelayed(mFlushRunnable, FLUSH_INTERVAL_MS);
+    }
+  }
+
+  /**
+   * Runs on the recorder's thread.
+   */
+  private void write(ByteBuffer buffer) {
+    try {
+      while (buffer.hasRemaining()) {
+        mChannel.write(buffer);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Writing traffic log failed", e);
+      synchronized (this) {
+        mError = e;
+      }
+    }
+    buffer.clear();
+    synchronized (this) {
+      mFreeBuffers.add(buffer);
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package io.luxtud.library.corebluetooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.bluetooth.BluetoothGatt;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Connects against a simulated peripheral whose stack answers with the infamous status 133.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ConnectionTest {
+  private Simulation mSimulation;
+  private SimulatedPeripheral mPeripheral;
+
+  @Before
+  public void setUp() {
+    mSimulation = new Simulation(2);
+    mPeripheral = Simulation.peripheral("C0:10:00:00:00:02", "Sensor-2", 0x0059, (byte) 0x01);
+    mSimulation.transport.addPeripheral(mPeripheral);
+  }
+
+  @After
+  public void tearDown() {
+    mSimulation.close();
+  }
+
+  @Test
+  public void rejectsConnectThatFailedWithGattError() {
+    mPeripheral.connectStatus = SimulatedPeripheral.GATT_ERROR;
+    String identifier = mSimulation.discover(mPeripheral);
+    TestPromise connect = new TestPromise();
+    mSimulation.bluetooth.connect(identifier, connect);
+    mSimulation.advance(mPeripheral.connectLatency + mPeripheral.latencyJitter);
+
+    assertEquals("E_BLUETOOTH_CONNECTION_ERROR", connect.getCode());
+    ReadableMap total = mSimulation.stats().getMap("total");
+    assertEquals(0, (long) total.getDouble("connects"));
+    assertEquals(1, (long) total.getDouble("connectFailures"));
+  }
+
+  @Test
+  public void connectsAgainAfterGattError() {
+    mPeripheral.connectStatus = SimulatedPeripheral.GATT_ERROR;
+    String identifier = mSimulation.discover(mPeripheral);
+    TestPromise failed = new TestPromise();
+    mSimulation.bluetooth.connect(identifier, failed);
+    mSimulation.advance(mPeripheral.connectLatency + mPeripheral.latencyJitter);
+    assertTrue(failed.isRejected());
+
+    // the failed attempt released its connection, so a new one is not refused as already connecting
+    mPeripheral.connectStatus = BluetoothGatt.GATT_SUCCESS;
+    TestPromise connect = new TestPromise();
+    mSimulation.bluetooth.connect(identifier, connect);
+    mSimulation.advance(mPeripheral.connectLatency + mPeripheral.latencyJitter);
+
+    assertTrue("connect settled with " + connect.getCode(), connect.isResolved());
+    ReadableMap total = mSimulation.stats().getMap("total");
+    assertEquals(1, (long) total.getDouble("connects"));
+    assertEquals(1, (long) total.getDouble("connectFailures"));
+  }
+
+  @Test
+  public void failsPendingOperationsWhenLinkDropsWithGattError() {
+    String identifier = mSimulation.connect(mPeripheral);
+    mPeripheral.dropRate = 1;
+    TestPromise read = new TestPromise();
+    mSimulation.bluetooth.readCharacteristic(identifier, Simulation.SERVICE, Simulation.CHARACTERISTIC, read);
+    mSimulation.idle();
+    assertFalse(read.isSettled());
+
+    mPeripheral.disconnect(SimulatedPeripheral.GATT_ERROR);
+    mSimulation.idle();
+    assertEquals("E_BLUETOOTH_DISCONNECTED", read.getCode());
+  }
+}
@@ -0,0 +1,81 @@
+package io.luxtud.library.corebluetooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * discoverServices answered from the GATT database cache on the second connection, while the real discovery
+ * still runs.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GattDatabaseCacheTest {
+  private Simulation mSimulation;
+  private SimulatedPeripheral mPeripheral;
+  private String mIdentifier;
+
+  @Before
+  public void setUp() {
+    mSimulation = new Simulation(5);
+    mPeripheral = Simulation.peripheral("C0:10:00:00:00:06", "Sensor-6", 0x0059, (byte) 0x01);
+    mPeripheral.setValue(Simulation.characteristicOf(mPeripheral), new byte[] {1, 2, 3});
+    mSimulation.transport.addPeripheral(mPeripheral);
+    mSimulation.bluetooth.setGattDatabaseCache(true);
+
+    // the first connection discovers and stores the layout
+    mIdentifier = mSimulation.connect(mPeripheral);
+    TestPromise disconnect = new TestPromise();
+    mSimulation.bluetooth.disconnect(mIdentifier, disconnect);
+    mSimulation.advance(100);
+    assertTrue(disconnect.isResolved());
+
+    TestPromise connect = new TestPromise();
+    mSimulation.bluetooth.connect(mIdentifier, connect);
+    mSimulation.advance(mPeripheral.connectLatency + mPeripheral.latencyJitter);
+    assertTrue(connect.isResolved());
+  }
+
+  @After
+  public void tearDown() {
+    mSimulation.close();
+  }
+
+  @Test
+  public void answersDiscoveryFromCache() {
+    TestPromise discover = new TestPromise();
+    mSimulation.bluetooth.discoverServices(mIdentifier, discover);
+    mSimulation.idle();
+
+    assertTrue(discover.isResolved());
+    ReadableMap service = ((ReadableMap) discover.getValue()).getArray("services").getMap(0);
+    assertEquals(Simulation.SERVICE.toString(), service.getString("uuid"));
+  }
+
+  @Test
+  public void holdsOperationsUntilDiscoveryCompleted() {
+    TestPromise discover = new TestPromise();
+    TestPromise read = new TestPromise();
+    TestPromise readByHandle = new TestPromise();
+    mSimulation.bluetooth.discoverServices(mIdentifier, discover);
+    mSimulation.bluetooth.readCharacteristic(mIdentifier, Simulation.SERVICE, Simulation.CHARACTERISTIC, read);
+    // handles number the characteristics from zero in discovery order
+    mSimulation.bluetooth.readCharacteristic(mIdentifier, 0, readByHandle);
+    mSimulation.idle();
+    assertTrue(discover.isResolved());
+    assertFalse(read.isSettled());
+    assertFalse(readByHandle.isSettled());
+
+    mSimulation.advance(3 * (mPeripheral.operationLatency + mPeripheral.latencyJitter));
+    assertTrue("read settled with " + read.getCode(), read.isResolved());
+    assertEquals("AQID", ((ReadableMap) read.getValue()).getString("data"));
+    assertTrue("read by handle settled with " + readByHandle.getCode(), readByHandle.isResolved());
+  }
+}
@@ -0,0 +1,128 @@
+package io.luxtud.library.corebluetooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Collections;
+
+/**
+ * The per-connection GATT queue driven through the module against a simulated peripheral: one operation at a
+ * time, timeouts and refusals retried, then rejected.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GattQueueTest {
+  private static final long TIMEOUT_MS = 200;
+
+  private Simulation mSimulation;
+  private SimulatedPeripheral mPeripheral;
+  private String mIdentifier;
+
+  @Before
+  public void setUp() {
+    mSimulation = new Simulation(1);
+    mPeripheral = Simulation.peripheral("C0:10:00:00:00:01", "Sensor-1", 0x0059, (byte) 0x01);
+    mPeripheral.setValue(Simulation.characteristicOf(mPeripheral), new byte[] {1, 2, 3});
+    mSimulation.transport.addPeripheral(mPeripheral);
+    mSimulation.bluetooth.setGattRetryPolicy(TIMEOUT_MS, 1);
+    mIdentifier = mSimulation.connect(mPeripheral);
+  }
+
+  @After
+  public void tearDown() {
+    mSimulation.close();
+  }
+
+  @Test
+  public void runsOperationsOneAtATime() {
+    // the simulated stack refuses an operation while another is outstanding, like the platform does
+    TestPromise write = new TestPromise();
+    TestPromise read = new TestPromise();
+    mSimulation.bluetooth.writeCharacteristic(mIdentifier, Simulation.SERVICE, Simulation.CHARACTERISTIC, new byte[] {9, 8}, write);
+    mSimulation.bluetooth.readCharacteristic(mIdentifier, Simulation.SERVICE, Simulation.CHARACTERISTIC, read);
+    mSimulation.advance(100);
+
+    assertTrue(write.isResolved());
+    assertTrue(read.isResolved());
+    assertEquals("CQg=", ((ReadableMap) read.getValue()).getString("data"));
+  }
+
+  @Test
+  public void retriesOperationThatTimedOut() {
+    mPeripheral.dropRate = 1;
+    TestPromise read = new TestPromise();
+    mSimulation.bluetooth.readCharacteristic(mIdentifier, Simulation.SERVICE, Simulation.CHARACTERISTIC, read);
+    mSimulation.advance(TIMEOUT_MS - 50);
+    assertFalse(read.isSettled());
+
+    // the completion of the retry arrives
+    mPeripheral.dropRate = 0;
+    mSimulation.advance(100);
+    assertTrue(read.isResolved());
+    assertEquals("AQID", ((ReadableMap) read.getValue()).getString("data"));
+    assertEquals(1, (long) mSimulation.stats().getMap("total").getDouble("timeouts"));
+  }
+
+  @Test
+  public void rejectsOperationThatKeepsTimingOut() {
+    mPeripheral.dropRate = 1;
+    TestPromise read = new TestPromise();
+    mSimulation.bluetooth.readCharacteristic(mIdentifier, Simulation.SERVICE, Simulation.CHARACTERISTIC, read);
+    mSimulation.advance(2 * TIMEOUT_MS - 50);
+    assertFalse(read.isSettled());
+    mSimulation.advance(100);
+    assertEquals("E_BLUETOOTH_TIMEOUT", read.getCode());
+    assertEquals(2, (long) mSimulation.stats().getMap("total").getDouble("timeouts"));
+
+    // the queue moves on to the next operation
+    mPeripheral.dropRate = 0;
+    TestPromise next = new TestPromise();
+    mSimulation.bluetooth.readCharacteristic(mIdentifier, Simulation.SERVICE, Simulation.CHARACTERISTIC, next);
+    mSimulation.advance(100);
+    assertTrue(next.isResolved());
+  }
+
+  @Test
+  public void retriesOperationTheStackRefused() {
+    mPeripheral.refuseRate = 1;
+    TestPromise read = new TestPromise();
+    mSimulation.bluetooth.readCharacteristic(mIdentifier, Simulation.SERVICE, Simulation.CHARACTERISTIC, read);
+    mSimulation.idle();
+    assertFalse(read.isSettled());
+
+    mPeripheral.refuseRate = 0;
+    mSimulation.advance(100);
+    assertTrue(read.isResolved());
+  }
+
+  @Test
+  public void rejectsOperationTheStackKeepsRefusing() {
+    mPeripheral.refuseRate = 1;
+    TestPromise read = new TestPromise();
+    mSimulation.bluetooth.readCharacteristic(mIdentifier, Simulation.SERVICE, Simulation.CHARACTERISTIC, read);
+    mSimulation.advance(100);
+
+    assertEquals("E_BLUETOOTH_READ_CHARACTERISTIC_FAILED", read.getCode());
+    assertEquals(1, (long) mSimulation.stats().getMap("total").getDouble("refused"));
+  }
+
+  @Test
+  public void rejectsStreamToCharacteristicWithoutWriteNoResponse() {
+    // the simulated characteristic only takes acknowledged writes
+    TestPromise stream = new TestPromise();
+    mSimulation.bluetooth.writeCharacteristicStream(
+      mIdentifier, Simulation.SERVICE, Simulation.CHARACTERISTIC, Collections.singletonList(new byte[] {1, 2}), stream
+    );
+    mSimulation.idle();
+
+    assertEquals("E_BLUETOOTH_WRITE_NO_RESPONSE_UNSUPPORTED", stream.getCode());
+  }
+}
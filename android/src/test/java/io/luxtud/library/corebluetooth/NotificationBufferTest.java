@@ -0,0 +1,127 @@
+package io.luxtud.library.corebluetooth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.List;
+
+/**
+ * Notifications arriving faster than they are delivered, buffered per subscription under each overflow policy.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class NotificationBufferTest {
+  private static final int CAPACITY = 4;
+  private static final long BATCH_INTERVAL_MS = 100;
+  private static final int SENT = 10;
+
+  private Simulation mSimulation;
+  private SimulatedPeripheral mPeripheral;
+  private String mIdentifier;
+
+  @Before
+  public void setUp() {
+    mSimulation = new Simulation(3);
+    mPeripheral = Simulation.peripheral("C0:10:00:00:00:03", "Sensor-3", 0x0059, (byte) 0x01);
+    mSimulation.transport.addPeripheral(mPeripheral);
+    mSimulation.bluetooth.setNotificationBatchInterval(BATCH_INTERVAL_MS);
+    mIdentifier = mSimulation.connect(mPeripheral);
+  }
+
+  @After
+  public void tearDown() {
+    mSimulation.close();
+  }
+
+  @Test
+  public void dropOldestKeepsTheLatestValues() {
+    ReadableMap batch = overflow(NotificationSubscription.POLICY_DROP_OLDEST);
+
+    assertValues(batch, 6, 7, 8, 9);
+    assertEquals(SENT - CAPACITY, (long) batch.getDouble("dropped"));
+    assertEquals(CAPACITY, (long) batch.getDouble("totalDelivered"));
+    assertEquals(SENT - CAPACITY, (long) batch.getDouble("totalDropped"));
+  }
+
+  @Test
+  public void dropNewestKeepsTheFirstValues() {
+    ReadableMap batch = overflow(NotificationSubscription.POLICY_DROP_NEWEST);
+
+    assertValues(batch, 0, 1, 2, 3);
+    assertEquals(SENT - CAPACITY, (long) batch.getDouble("dropped"));
+  }
+
+  @Test
+  public void coalesceKeepsOnlyTheLastValue() {
+    ReadableMap batch = overflow(NotificationSubscription.POLICY_COALESCE_LATEST);
+
+    assertValues(batch, 9);
+    assertEquals(SENT - 1, (long) batch.getDouble("dropped"));
+  }
+
+  @Test
+  public void countsDropsPerDeliveryAndInTotal() {
+    overflow(NotificationSubscription.POLICY_DROP_OLDEST);
+    send(SENT);
+    mSimulation.advance(BATCH_INTERVAL_MS);
+
+    List<Simulation.Event> events = mSimulation.events("CharacteristicValueChanged");
+    ReadableMap batch = ((ReadableArray) events.get(events.size() - 1).data).getMap(0);
+    assertEquals(SENT - CAPACITY, (long) batch.getDouble("dropped"));
+    assertEquals(2 * CAPACITY, (long) batch.getDouble("totalDelivered"));
+    assertEquals(2 * (SENT - CAPACITY), (long) batch.getDouble("totalDropped"));
+    assertEquals(2 * SENT, (long) mSimulation.stats().getMap("total").getDouble("notifications"));
+  }
+
+  /**
+   * Subscribe with the policy, let SENT notifications arrive within one interval and return the one delivery.
+   */
+  private ReadableMap overflow(int policy) {
+    mSimulation.bluetooth.setNotificationBufferPolicy(CAPACITY, policy);
+    TestPromise subscribe = new TestPromise();
+    mSimulation.bluetooth.setNotifyCharacteristic(mIdentifier, Simulation.SERVICE, Simulation.CHARACTERISTIC, true, subscribe);
+    mSimulation.advance(mPeripheral.operationLatency + mPeripheral.latencyJitter);
+    assertTrue("subscribe settled with " + subscribe.getCode(), subscribe.isResolved());
+
+    int from = mSimulation.events("CharacteristicValueChanged").size();
+    send(SENT);
+    mSimulation.advance(BATCH_INTERVAL_MS);
+
+    List<Simulation.Event> events = mSimulation.events("CharacteristicValueChanged");
+    assertEquals(from + 1, events.size());
+    ReadableArray deliveries = (ReadableArray) events.get(from).data;
+    assertEquals(1, deliveries.size());
+    ReadableMap batch = deliveries.getMap(0);
+    assertEquals(subscribe.getValue(), batch.getInt("subscriptionId"));
+    assertEquals(mIdentifier, batch.getString("identifier"));
+    return batch;
+  }
+
+  private void send(int count) {
+    BluetoothGattCharacteristic characteristic = Simulation.characteristicOf(mPeripheral);
+    for (int i = 0; i < count; i++) {
+      mPeripheral.sendNotification(characteristic, new byte[] {(byte) i});
+    }
+    mSimulation.idle();
+  }
+
+  private static void assertValues(ReadableMap batch, int... expected) {
+    ReadableArray values = batch.getArray("values");
+    assertEquals(expected.length, values.size());
+    assertEquals(expected.length, batch.getArray("timestamps").size());
+    for (int i = 0; i < expected.length; i++) {
+      assertArrayEquals(new byte[] {(byte) expected[i]}, PayloadCodec.decode(values.getString(i)));
+    }
+  }
+}
@@ -0,0 +1,563 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * {@link BluetoothTransport} that plays a {@link TrafficLog} back, so a session recorded on a device can be run
+ * through the module's callback logic again, e.g. to reproduce a bug report under Robolectric.
+ * <p>
+ * Scan results follow the recorded timeline from the first scan start on. A connection to a device plays the next
+ * recorded connection to its address: requests are matched in order to the recorded ones with the same operation
+ * and attribute and get the recorded result and, after the recorded latency, the recorded completion. Notifications,
+ * link losses and other unsolicited callbacks follow the connection's timeline from the moment of connecting.
+ * Delays are divided by the speed, an infinite speed delivers everything as soon as the looper gets to it.
+ * A request that was not recorded is refused.
+ */
+class ReplayTransport implements BluetoothTransport {
+  private final BluetoothAdapter mAdapter;
+  private final Handler mHandler;
+  private final double mSpeed;
+  private final List<TrafficLog.Event> mScanEvents;
+  private final List<Recording> mRecordings;
+
+  // recorded time the scan timeline continues from, and when it did
+  private long mScanOrigin;
+  private long mScanStartedAt;
+  private int mScanPosition;
+  @Nullable
+  private ScanListener mScanListener;
+  private List<ScanFilter> mScanFilters;
+  @Nullable
+  private Object mScanToken;
+
+  ReplayTransport(TrafficLog log, BluetoothAdapter adapter, Handler handler, double speed) {
+    if (!(speed > 0)) {
+      throw new IllegalArgumentException("Replay speed must be positive");
+    }
+    mAdapter = adapter;
+    mHandler = handler;
+    mSpeed = speed;
+    mScanEvents = new ArrayList<>();
+    mRecordings = new ArrayList<>();
+    mScanFilters = Collections.emptyList();
+
+    Map<Integer, Recording> recordings = new HashMap<>();
+    boolean scanned = false;
+    for (TrafficLog.Event event : log.events) {
+      switch (event.type) {
+        case TrafficLog.SCAN_START:
+          if (!scanned) {
+            scanned = true;
+            mScanOrigin = event.timestamp;
+          }
+          break;
+        case TrafficLog.SCAN_RESULT:
+        case TrafficLog.SCAN_BATCH:
+        case TrafficLog.SCAN_FAILED:
+          if (scanned) {
+            mScanEvents.add(event);
+          }
+          break;
+        case TrafficLog.SCAN_STOP:
+          break;
+        case TrafficLog.CONNECT:
+          Recording recording = new Recording(event);
+          recordings.put(event.connection, recording);
+          mRecordings.add(recording);
+          break;
+        default:
+          Recording owner = recordings.get(event.connection);
+          if (owner != null) {
+            owner.add(event);
+          }
+          break;
+      }
+    }
+  }
+
+  @Override
+  public boolean isAvailable() {
+    return true;
+  }
+
+  @Override
+  public boolean checkScanPermission() {
+    return true;
+  }
+
+  @Override
+  public boolean isDiscovering() {
+    return false;
+  }
+
+  @Override
+  public boolean isOffloadedScanBatchingSupported() {
+    return true;
+  }
+
+  @Override
+  public boolean isLe2MPhySupported() {
+    return true;
+  }
+
+  @Override
+  public synchronized boolean startScan(List<ScanFilter> filters, ScanSettings settings, ScanListener listener) {
+    stopScan();
+    Object token = new Object();
+    mScanToken = token;
+    mScanListener = listener;
+    mScanFilters = new ArrayList<>(filters);
+    // a restarted scan continues where the last one stopped
+    mScanStartedAt = SystemClock.uptimeMillis();
+    scheduleScanEvent(token);
+    return true;
+  }
+
+  @Override
+  public void flushPendingScanResults() {
+    // batches are delivered as recorded
+  }
+
+  @Override
+  public synchronized void stopScan() {
+    if (mScanToken != null) {
+      mHandler.removeCallbacksAndMessages(mScanToken);
+      if (mScanPosition > 0) {
+        mScanOrigin = mScanEvents.get(mScanPosition - 1).timestamp;
+      }
+    }
+    mScanToken = null;
+    mScanListener = null;
+  }
+
+  private void scheduleScanEvent(Object token) {
+    if (mScanPosition >= mScanEvents.size()) {
+      return;
+    }
+    TrafficLog.Event event = mScanEvents.get(mScanPosition);
+    mHandler.postAtTime(() -> deliverScanEvent(token), token, mScanStartedAt + delay(event.timestamp - mScanOrigin));
+  }
+
+  private void deliverScanEvent(Object token) {
+    ScanListener listener;
+    TrafficLog.Event event;
+    synchronized (this) {
+      if (token != mScanToken) {
+        return;
+      }
+      event = mScanEvents.get(mScanPosition++);
+      listener = mScanListener;
+      scheduleScanEvent(token);
+    }
+    switch (event.type) {
+      case TrafficLog.SCAN_RESULT:
+        ScanResult result = createScanResult(event);
+        if (matches(result)) {
+          listener.onScanResult(result);
+        }
+        break;
+      case TrafficLog.SCAN_BATCH:
+        List<ScanResult> results = new ArrayList<>(event.batch.size());
+        for (TrafficLog.Event item : event.batch) {
+          ScanResult batched = createScanResult(item);
+          if (matches(batched)) {
+            results.add(batched);
+          }
+        }
+        listener.onBatchScanResults(results);
+        break;
+      case TrafficLog.SCAN_FAILED:
+        listener.onScanFailed(event.status);
+        break;
+    }
+  }
+
+  private boolean matches(ScanResult result) {
+    if (mScanFilters.isEmpty()) {
+      return true;
+    }
+    for (ScanFilter filter : mScanFilters) {
+      if (filter.matches(result)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private ScanResult createScanResult(TrafficLog.Event event) {
+    return new ScanResult(
+      getDevice(event.address),
+      event.value != null ? SimulatedTransport.parseScanRecord(event.value) : null,
+      event.rssi,
+      SystemClock.elapsedRealtimeNanos()
+    );
+  }
+
+  private BluetoothDevice getDevice(long address) {
+    return mAdapter.getRemoteDevice(DeviceRegistry.formatAddress(address));
+  }
+
+  /**
+   * Uptime ms a recorded span of ns takes at the replay speed.
+   */
+  private long delay(long nanos) {
+    if (Double.isInfinite(mSpeed) || nanos <= 0) {
+      return 0;
+    }
+    return (long) (nanos / mSpeed / 1000000);
+  }
+
+  @Nullable
+  @Override
+  public synchronized GattConnection connect(BluetoothDevice device, GattConnection.Listener listener, Handler handler, boolean autoConnect) {
+    long address = DeviceRegistry.parseAddress(device.getAddress());
+    for (Recording recording : mRecordings) {
+      if (!recording.mUsed && recording.mConnect.address == address) {
+        recording.mUsed = true;
+        Connection connection = new Connection(recording, listener, handler);
+        connection.start();
+        return connection;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The records of one recorded connection, with each request linked to the completion that answered it.
+   */
+  private static final class Recording {
+    final TrafficLog.Event mConnect;
+    final List<TrafficLog.Event> mRequests;
+    // callbacks no request asked for, in recorded order
+    final List<TrafficLog.Event> mTimeline;
+    final Map<TrafficLog.Event, TrafficLog.Event> mReplies;
+    // requests still waiting for their completion while reading the log
+    private final List<TrafficLog.Event> mPending;
+    boolean mUsed;
+
+    Recording(TrafficLog.Event connect) {
+      mConnect = connect;
+      mRequests = new ArrayList<>();
+      mTimeline = new ArrayList<>();
+      mReplies = new IdentityHashMap<>();
+      mPending = new ArrayList<>();
+      mPending.add(connect);
+    }
+
+    void add(TrafficLog.Event event) {
+      if (event.type == TrafficLog.REQUEST) {
+        mRequests.add(event);
+        if (event.result && expectsReply(event.op)) {
+          mPending.add(event);
+        }
+        return;
+      }
+      for (int i = 0; i < mPending.size(); i++) {
+        TrafficLog.Event request = mPending.get(i);
+        if (answers(request, event)) {
+          mPending.remove(i);
+          mReplies.put(request, event);
+          return;
+        }
+      }
+      if (event.type == TrafficLog.CONNECTION_STATE && event.arg1 == BluetoothProfile.STATE_DISCONNECTED) {
+        // nothing pending survives the link
+        mPending.clear();
+      }
+      mTimeline.add(event);
+    }
+
+    private static boolean expectsReply(int op) {
+      return op != TrafficLog.OP_SET_NOTIFICATION && op != TrafficLog.OP_REQUEST_PRIORITY && op != TrafficLog.OP_CLOSE;
+    }
+
+    private static boolean answers(TrafficLog.Event request, TrafficLog.Event event) {
+      if (request.type == TrafficLog.CONNECT) {
+        return event.type == TrafficLog.CONNECTION_STATE;
+      }
+      switch (request.op) {
+        case TrafficLog.OP_DISCOVER_SERVICES:
+          return event.type == TrafficLog.SERVICES;
+        case TrafficLog.OP_DISCONNECT:
+          return event.type == TrafficLog.CONNECTION_STATE;
+        default:
+          return event.type == TrafficLog.COMPLETION && event.op == request.op && event.attribute == request.attribute;
+      }
+    }
+  }
+
+  /**
+   * Plays one recorded connection to the module.
+   */
+  private final class Connection implements GattConnection {
+    private final Recording mRecording;
+    private final Listener mListener;
+    private final Handler mHandler;
+    private final Object mToken;
+    private final boolean[] mAnswered;
+
+    private List<BluetoothGattService> mServices;
+    @Nullable
+    private List<Object> mAttributes;
+    @Nullable
+    private Map<Object, Integer> mIndexes;
+    private long mStartedAt;
+    private int mTimelinePosition;
+    private boolean mClosed;
+
+    Connection(Recording recording, Listener listener, Handler handler) {
+      mRecording = recording;
+      mListener = listener;
+      mHandler = handler;
+      mToken = new Object();
+      mAnswered = new boolean[recording.mRequests.size()];
+      mServices = Collections.emptyList();
+    }
+
+    void start() {
+      mStartedAt = SystemClock.uptimeMillis();
+      reply(mRecording.mConnect);
+      scheduleTimeline();
+    }
+
+    private void scheduleTimeline() {
+      if (mTimelinePosition >= mRecording.mTimeline.size()) {
+        return;
+      }
+      TrafficLog.Event event = mRecording.mTimeline.get(mTimelinePosition);
+      mHandler.postAtTime(() -> {
+        mTimelinePosition++;
+        scheduleTimeline();
+        deliver(event);
+      }, mToken, mStartedAt + delay(event.timestamp - mRecording.mConnect.timestamp));
+    }
+
+    /**
+     * Answer a request with its recorded completion after the recorded latency.
+     */
+    private void reply(TrafficLog.Event request) {
+      TrafficLog.Event reply = mRecording.mReplies.get(request);
+      if (reply != null) {
+        mHandler.postAtTime(() -> deliver(reply), mToken, SystemClock.uptimeMillis() + delay(reply.timestamp - request.timestamp));
+      }
+    }
+
+    private boolean request(int op, @Nullable Object attribute) {
+      if (mClosed) {
+        return false;
+      }
+      int index = attribute != null ? indexOf(attribute) : TrafficLog.NO_ATTRIBUTE;
+      List<TrafficLog.Event> requests = mRecording.mRequests;
+      for (int i = 0; i < requests.size(); i++) {
+        TrafficLog.Event request = requests.get(i);
+        if (!mAnswered[i] && request.op == op && request.attribute == index) {
+          mAnswered[i] = true;
+          if (request.result) {
+            reply(request);
+          }
+          return request.result;
+        }
+      }
+      return false;
+    }
+
+    private int indexOf(Object attribute) {
+      if (mIndexes == null) {
+        mIndexes = new IdentityHashMap<>();
+        List<Object> attributes = attributes();
+        for (int i = 0; i < attributes.size(); i++) {
+          mIndexes.put(attributes.get(i), i);
+        }
+      }
+      Integer index = mIndexes.get(attribute);
+      return index != null ? index : TrafficLog.NO_ATTRIBUTE;
+    }
+
+    @Nullable
+    private Object attribute(int index) {
+      List<Object> attributes = attributes();
+      return index >= 0 && index < attributes.size() ? attributes.get(index) : null;
+    }
+
+    private List<Object> attributes() {
+      if (mAttributes == null) {
+        mAttributes = TrafficLog.flatten(mServices);
+      }
+      return mAttributes;
+    }
+
+    private void deliver(TrafficLog.Event event) {
+      if (mClosed) {
+        return;
+      }
+      switch (event.type) {
+        case TrafficLog.CONNECTION_STATE:
+          if (event.arg1 == BluetoothProfile.STATE_DISCONNECTED) {
+            // completions of the lost link never come, and the recorded connection ends here
+            mHandler.removeCallbacksAndMessages(mToken);
+          }
+          mListener.onConnectionStateChange(event.status, event.arg1);
+          break;
+        case TrafficLog.SERVICES:
+          if (event.services != null) {
+            mServices = event.services;
+            mAttributes = null;
+            mIndexes = null;
+          }
+          // a table recorded at the start of a recording is only installed, nobody asked for it
+          if (mRecording.mReplies.containsValue(event)) {
+            mListener.onServicesDiscovered(event.status);
+          }
+          break;
+        case TrafficLog.COMPLETION:
+          deliverCompletion(event);
+          break;
+        case TrafficLog.NOTIFICATION:
+          Object characteristic = attribute(event.attribute);
+          if (characteristic instanceof BluetoothGattCharacteristic) {
+            mListener.onCharacteristicChanged((BluetoothGattCharacteristic) characteristic, event.value);
+          }
+          break;
+        case TrafficLog.SERVICE_CHANGED:
+          mListener.onServiceChanged();
+          break;
+      }
+    }
+
+    private void deliverCompletion(TrafficLog.Event event) {
+      Object attribute = attribute(event.attribute);
+      switch (event.op) {
+        case TrafficLog.OP_READ_CHARACTERISTIC:
+          if (attribute instanceof BluetoothGattCharacteristic) {
+            mListener.onCharacteristicRead((BluetoothGattCharacteristic) attribute, event.value, event.status);
+          }
+          break;
+        case TrafficLog.OP_WRITE_CHARACTERISTIC:
+          if (attribute instanceof BluetoothGattCharacteristic) {
+            mListener.onCharacteristicWrite((BluetoothGattCharacteristic) attribute, event.status);
+          }
+          break;
+        case TrafficLog.OP_READ_DESCRIPTOR:
+          if (attribute instanceof BluetoothGattDescriptor) {
+            mListener.onDescriptorRead((BluetoothGattDescriptor) attribute, event.value, event.status);
+          }
+          break;
+        case TrafficLog.OP_WRITE_DESCRIPTOR:
+          if (attribute instanceof BluetoothGattDescriptor) {
+            mListener.onDescriptorWrite((BluetoothGattDescriptor) attribute, event.status);
+          }
+          break;
+        case TrafficLog.OP_REQUEST_MTU:
+          mListener.onMtuChanged(event.arg1, event.status);
+          break;
+        case TrafficLog.OP_SET_PHY:
+          mListener.onPhyUpdate(event.arg1, event.arg2, event.status);
+          break;
+      }
+    }
+
+    @Override
+    public boolean discoverServices() {
+      return request(TrafficLog.OP_DISCOVER_SERVICES, null);
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+      return new ArrayList<>(mServices);
+    }
+
+    @Nullable
+    @Override
+    public BluetoothGattService getService(UUID uuid) {
+      for (BluetoothGattService service : mServices) {
+        if (service.getUuid().equals(uuid)) {
+          return service;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+      return request(TrafficLog.OP_READ_CHARACTERISTIC, characteristic);
+    }
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, int writeType) {
+      return request(TrafficLog.OP_WRITE_CHARACTERISTIC, characteristic);
+    }
+
+    @Override
+    public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+      return request(TrafficLog.OP_READ_DESCRIPTOR, descriptor);
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+      return request(TrafficLog.OP_WRITE_DESCRIPTOR, descriptor);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+      return request(TrafficLog.OP_SET_NOTIFICATION, characteristic);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+      return request(TrafficLog.OP_REQUEST_MTU, null);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+      return request(TrafficLog.OP_REQUEST_PRIORITY, null);
+    }
+
+    @Override
+    public void setPreferredPhy(int txPhy, int rxPhy, int phyOptions) {
+      request(TrafficLog.OP_SET_PHY, null);
+    }
+
+    @Override
+    public void disconnect() {
+      if (!request(TrafficLog.OP_DISCONNECT, null) && !mClosed) {
+        // not recorded, the module still has to learn that the link is down
+        mHandler.removeCallbacksAndMessages(mToken);
+        mHandler.post(() -> deliver(disconnected()));
+      }
+    }
+
+    private TrafficLog.Event disconnected() {
+      TrafficLog.Event event = new TrafficLog.Event(TrafficLog.CONNECTION_STATE, 0);
+      event.status = BluetoothGatt.GATT_SUCCESS;
+      event.arg1 = BluetoothProfile.STATE_DISCONNECTED;
+      return event;
+    }
+
+    @Override
+    public void close() {
+      mClosed = true;
+      mHandler.removeCallbacksAndMessages(mToken);
+    }
+  }
+}
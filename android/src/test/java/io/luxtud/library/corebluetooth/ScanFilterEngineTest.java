@@ -0,0 +1,120 @@
+package io.luxtud.library.corebluetooth;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.bluetooth.le.ScanResult;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Collections;
+import java.util.UUID;
+
+@RunWith(RobolectricTestRunner.class)
+public class ScanFilterEngineTest {
+  private static final int COMPANY_ID = 0x004c;
+  private static final UUID EDDYSTONE = UUID.fromString("0000feaa-0000-1000-8000-00805f9b34fb");
+
+  @Test
+  public void matchesPrefixWithHighBitBytes() {
+    ScanFilterEngine.Rule rule = new ScanFilterEngine.Rule();
+    rule.companyId = COMPANY_ID;
+    rule.prefix = new byte[] {(byte) 0xbe, (byte) 0xac};
+    ScanFilterEngine engine = engine(rule);
+
+    assertTrue(engine.accept(result(manufacturerData(COMPANY_ID, 0xbe, 0xac, 0x01))));
+    assertFalse(engine.accept(result(manufacturerData(COMPANY_ID, 0xbe, 0xad, 0x01))));
+    assertFalse(engine.accept(result(manufacturerData(COMPANY_ID, 0x3e, 0xac, 0x01))));
+  }
+
+  @Test
+  public void matchesMaskedPrefixAtOffset() {
+    ScanFilterEngine.Rule rule = new ScanFilterEngine.Rule();
+    rule.companyId = COMPANY_ID;
+    rule.offset = 1;
+    rule.prefix = new byte[] {(byte) 0xc0, (byte) 0xff};
+    rule.mask = new byte[] {(byte) 0xf0, (byte) 0xff};
+    ScanFilterEngine engine = engine(rule);
+
+    assertTrue(engine.accept(result(manufacturerData(COMPANY_ID, 0x00, 0xc7, 0xff))));
+    assertTrue(engine.accept(result(manufacturerData(COMPANY_ID, 0x80, 0xcf, 0xff))));
+    assertFalse(engine.accept(result(manufacturerData(COMPANY_ID, 0x00, 0xb7, 0xff))));
+    assertFalse(engine.accept(result(manufacturerData(COMPANY_ID, 0x00, 0xc7, 0xfe))));
+    // too short for the prefix at its offset
+    assertFalse(engine.accept(result(manufacturerData(COMPANY_ID, 0x00, 0xc7))));
+  }
+
+  @Test
+  public void matchesServiceDataWithHighBitBytes() {
+    ScanFilterEngine.Rule rule = new ScanFilterEngine.Rule();
+    rule.serviceDataUuid = EDDYSTONE;
+    // Eddystone TLM frame of version 0
+    rule.serviceData = new byte[] {0x20, 0x00, (byte) 0x80};
+    rule.serviceDataMask = new byte[] {(byte) 0xff, (byte) 0xff, (byte) 0x80};
+    ScanFilterEngine engine = engine(rule);
+
+    assertTrue(engine.accept(result(serviceData(0xfeaa, 0x20, 0x00, 0xc1))));
+    assertTrue(engine.accept(result(serviceData(0xfeaa, 0x20, 0x00, 0xff))));
+    assertFalse(engine.accept(result(serviceData(0xfeaa, 0x20, 0x00, 0x41))));
+    assertFalse(engine.accept(result(serviceData(0xfeaa, 0x10, 0x00, 0xc1))));
+  }
+
+  @Test
+  public void rejectsOtherCompanies() {
+    ScanFilterEngine.Rule rule = new ScanFilterEngine.Rule();
+    rule.companyId = COMPANY_ID;
+    rule.prefix = new byte[] {(byte) 0xff};
+    ScanFilterEngine engine = engine(rule);
+
+    assertTrue(engine.accept(result(manufacturerData(COMPANY_ID, 0xff))));
+    assertFalse(engine.accept(result(manufacturerData(0x0059, 0xff))));
+  }
+
+  private static ScanFilterEngine engine(ScanFilterEngine.Rule rule) {
+    ScanFilterEngine engine = new ScanFilterEngine();
+    engine.setRules(Collections.singletonList(rule));
+    return engine;
+  }
+
+  private static ScanResult result(byte[] advertisement) {
+    return new ScanResult(null, SimulatedTransport.parseScanRecord(advertisement), -60, 0);
+  }
+
+  /**
+   * Flags and manufacturer specific data, company id little endian.
+   */
+  static byte[] manufacturerData(int companyId, int... data) {
+    byte[] bytes = new byte[3 + 4 + data.length];
+    bytes[0] = 2;
+    bytes[1] = 0x01;
+    bytes[2] = 0x06;
+    bytes[3] = (byte) (data.length + 3);
+    bytes[4] = (byte) 0xff;
+    bytes[5] = (byte) companyId;
+    bytes[6] = (byte) (companyId >> 8);
+    for (int i = 0; i < data.length; i++) {
+      bytes[7 + i] = (byte) data[i];
+    }
+    return bytes;
+  }
+
+  /**
+   * Flags and 16-bit service data, uuid little endian.
+   */
+  static byte[] serviceData(int uuid, int... data) {
+    byte[] bytes = new byte[3 + 4 + data.length];
+    bytes[0] = 2;
+    bytes[1] = 0x01;
+    bytes[2] = 0x06;
+    bytes[3] = (byte) (data.length + 3);
+    bytes[4] = 0x16;
+    bytes[5] = (byte) uuid;
+    bytes[6] = (byte) (uuid >> 8);
+    for (int i = 0; i < data.length; i++) {
+      bytes[7 + i] = (byte) data[i];
+    }
+    return bytes;
+  }
+}
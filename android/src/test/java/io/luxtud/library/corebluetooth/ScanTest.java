@@ -0,0 +1,153 @@
+package io.luxtud.library.corebluetooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.ReadableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scans among simulated peripherals: the scan filter in hardware and in software, and the change filter
+ * deduplicating repeated advertisements of the same device.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ScanTest {
+  private static final long SCAN_MS = 1000;
+
+  private Simulation mSimulation;
+  private SimulatedPeripheral mSensor;
+  private SimulatedPeripheral mBeacon;
+
+  @Before
+  public void setUp() {
+    mSimulation = new Simulation(4);
+    mSensor = Simulation.peripheral("C0:10:00:00:00:04", "Sensor-4", 0x0059, (byte) 0x01);
+    mBeacon = Simulation.peripheral("C0:10:00:00:00:05", "Beacon-5", 0x004c, (byte) 0x02, (byte) 0x15);
+    mSimulation.transport.addPeripheral(mSensor);
+    mSimulation.transport.addPeripheral(mBeacon);
+  }
+
+  @After
+  public void tearDown() {
+    mSimulation.close();
+  }
+
+  @Test
+  public void reportsEveryAdvertisementWithoutFilters() {
+    scan(SCAN_MS);
+
+    List<ReadableMap> sensor = found("Sensor-4");
+    List<ReadableMap> beacon = found("Beacon-5");
+    assertTrue(sensor.size() > 1);
+    assertTrue(beacon.size() > 1);
+    assertStableIdentifier(sensor);
+    assertStableIdentifier(beacon);
+    ReadableMap scan = mSimulation.stats().getMap("scan");
+    assertEquals(sensor.size() + beacon.size(), (long) scan.getDouble("forwarded"));
+    assertEquals(0, (long) scan.getDouble("filtered"));
+  }
+
+  @Test
+  public void companyIdsKeepOtherManufacturersAwayInHardware() {
+    mSimulation.bluetooth.setCompanyIds(Collections.singletonList(0x0059));
+    scan(SCAN_MS);
+
+    assertTrue(found("Sensor-4").size() > 1);
+    assertEquals(0, found("Beacon-5").size());
+    // the controller never reported the beacon, so there was nothing left to filter in software
+    ReadableMap scan = mSimulation.stats().getMap("scan");
+    assertEquals(found("Sensor-4").size(), (long) scan.getDouble("results"));
+    assertEquals(0, (long) scan.getDouble("filtered"));
+  }
+
+  @Test
+  public void namePrefixFiltersInSoftware() {
+    JavaOnlyMap rule = new JavaOnlyMap();
+    rule.putString("namePrefix", "Sensor");
+    JavaOnlyArray rules = new JavaOnlyArray();
+    rules.pushMap(rule);
+    mSimulation.bluetooth.setScanRules(rules);
+    scan(SCAN_MS);
+
+    int sensor = found("Sensor-4").size();
+    assertTrue(sensor > 1);
+    assertEquals(0, found("Beacon-5").size());
+    ReadableMap scan = mSimulation.stats().getMap("scan");
+    long filtered = (long) scan.getDouble("filtered");
+    assertTrue(filtered > 1);
+    assertEquals(sensor + filtered, (long) scan.getDouble("results"));
+  }
+
+  @Test
+  public void changeFilterForwardsOnlyWhatChanged() {
+    mSensor.rssiJitter = 0;
+    mSimulation.transport.removePeripheral(mBeacon);
+    mSimulation.bluetooth.setScanChangeFilter(true, 5, 1.0, 5000);
+    TestPromise started = new TestPromise();
+    mSimulation.bluetooth.startScan(Collections.emptyList(), started);
+    mSimulation.advance(SCAN_MS);
+
+    // the first sighting only
+    assertEquals(1, found("Sensor-4").size());
+    ReadableMap scan = mSimulation.stats().getMap("scan");
+    long results = (long) scan.getDouble("results");
+    assertTrue(results > 1);
+    assertEquals(results - 1, (long) scan.getDouble("suppressed"));
+
+    // an RSSI step beyond the delta
+    mSensor.rssi += 10;
+    mSimulation.advance(mSensor.advertisingInterval + SimulatedTransport.ADVERTISING_DELAY_MS);
+    assertEquals(2, found("Sensor-4").size());
+
+    // nothing changes until the heartbeat is due
+    mSimulation.advance(4000);
+    assertEquals(2, found("Sensor-4").size());
+    mSimulation.advance(1000 + mSensor.advertisingInterval + SimulatedTransport.ADVERTISING_DELAY_MS);
+    assertEquals(3, found("Sensor-4").size());
+    assertStableIdentifier(found("Sensor-4"));
+
+    TestPromise stopped = new TestPromise();
+    mSimulation.bluetooth.stopScan(stopped);
+    mSimulation.idle();
+    assertTrue(started.isResolved() && stopped.isResolved());
+  }
+
+  private void scan(long ms) {
+    TestPromise started = new TestPromise();
+    mSimulation.bluetooth.startScan(Collections.emptyList(), started);
+    mSimulation.advance(ms);
+    TestPromise stopped = new TestPromise();
+    mSimulation.bluetooth.stopScan(stopped);
+    mSimulation.idle();
+    assertTrue(started.isResolved() && stopped.isResolved());
+  }
+
+  private List<ReadableMap> found(String name) {
+    List<ReadableMap> devices = new ArrayList<>();
+    for (Simulation.Event event : mSimulation.events()) {
+      ReadableMap device = Simulation.device(event, name);
+      if (device != null) {
+        devices.add(device);
+      }
+    }
+    return devices;
+  }
+
+  private static void assertStableIdentifier(List<ReadableMap> devices) {
+    String identifier = devices.get(0).getString("identifier");
+    for (ReadableMap device : devices) {
+      assertEquals(identifier, device.getString("identifier"));
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package io.luxtud.library.corebluetooth;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+
+/**
+ * Hands out the Java-only bridge collections, the native ones {@link Arguments} creates need the React Native
+ * libraries loaded.
+ */
+@Implements(Arguments.class)
+public class ShadowArguments {
+  @Implementation
+  protected static WritableMap createMap() {
+    return new JavaOnlyMap();
+  }
+
+  @Implementation
+  protected static WritableArray createArray() {
+    return new JavaOnlyArray();
+  }
+}
@@ -0,0 +1,130 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A scripted peripheral of a {@link SimulatedTransport}: what it advertises and how often, its GATT table,
+ * how fast it answers and which failures it injects.
+ * <p>
+ * Configure the fields before adding it to a transport. Attribute values and the peer actions
+ * ({@link #sendNotification(BluetoothGattCharacteristic, byte[])}, {@link #notifyEvery(BluetoothGattCharacteristic, long)},
+ * {@link #disconnect(int)} and {@link #changeServices()}) may be used from any thread at any time.
+ */
+final class SimulatedPeripheral {
+  // BluetoothGatt.GATT_FAILURE as most stacks report it, the infamous 133
+  static final int GATT_ERROR = 0x85;
+  // link supervision timeout, the usual status of a lost connection
+  static final int GATT_CONN_TIMEOUT = 0x08;
+
+  final BluetoothDevice device;
+  final List<BluetoothGattService> services;
+
+  // raw AD structures as ScanRecord.getBytes() returns them, advertised every interval (ms), zero does not advertise
+  byte[] advertisement;
+  long advertisingInterval;
+  int rssi;
+  int rssiJitter;
+
+  // ms until a connection is up and until an operation completes, plus up to latencyJitter ms
+  long connectLatency;
+  long operationLatency;
+  long latencyJitter;
+  int maxMtu;
+  boolean le2MPhy;
+
+  // every connection attempt ends with this status, e.g. GATT_ERROR for a peripheral that keeps failing with 133
+  int connectStatus;
+  // share of operations the stack refuses to start, that complete with errorStatus and whose completion never arrives
+  double refuseRate;
+  double errorRate;
+  int errorStatus;
+  double dropRate;
+  // completed operations after which the link is lost, zero keeps it
+  int disconnectAfter;
+
+  private final Map<Object, byte[]> mValues;
+  @Nullable
+  volatile SimulatedTransport transport;
+  @Nullable
+  volatile SimulatedTransport.Connection connection;
+
+  SimulatedPeripheral(BluetoothDevice device) {
+    this.device = device;
+    this.services = new ArrayList<>();
+    this.advertisement = new byte[0];
+    this.advertisingInterval = 100;
+    this.rssi = -60;
+    this.rssiJitter = 4;
+    this.connectLatency = 40;
+    this.operationLatency = 15;
+    this.latencyJitter = 5;
+    this.maxMtu = 247;
+    this.le2MPhy = true;
+    this.connectStatus = BluetoothGatt.GATT_SUCCESS;
+    this.errorStatus = GATT_ERROR;
+    mValues = new IdentityHashMap<>();
+  }
+
+  /**
+   * Value of a characteristic or descriptor, empty until written.
+   */
+  synchronized byte[] getValue(Object attribute) {
+    byte[] value = mValues.get(attribute);
+    return value != null ? value.clone() : new byte[0];
+  }
+
+  synchronized void setValue(Object attribute, byte[] value) {
+    mValues.put(attribute, value.clone());
+  }
+
+  /**
+   * Send a notification or indication, delivered when the central enabled it through the CCC descriptor.
+   */
+  void sendNotification(BluetoothGattCharacteristic characteristic, byte[] value) {
+    SimulatedTransport.Connection connection = this.connection;
+    if (connection != null) {
+      connection.sendNotification(characteristic, value.clone());
+    }
+  }
+
+  /**
+   * Notify the current value of the characteristic every interval ms, zero stops.
+   */
+  void notifyEvery(BluetoothGattCharacteristic characteristic, long interval) {
+    SimulatedTransport transport = this.transport;
+    if (transport == null) {
+      throw new IllegalStateException("peripheral is not added to a transport");
+    }
+    transport.notifyEvery(this, characteristic, interval);
+  }
+
+  /**
+   * Drop the link from the peripheral's side with the given status.
+   */
+  void disconnect(int status) {
+    SimulatedTransport.Connection connection = this.connection;
+    if (connection != null) {
+      connection.lose(status);
+    }
+  }
+
+  /**
+   * Indicate Service Changed, e.g. after changing {@link #services}. The central has to discover again.
+   */
+  void changeServices() {
+    SimulatedTransport.Connection connection = this.connection;
+    if (connection != null) {
+      connection.changeServices();
+    }
+  }
+}
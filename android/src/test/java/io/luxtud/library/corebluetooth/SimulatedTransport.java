@@ -0,0 +1,613 @@
+package io.luxtud.library.corebluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * {@link BluetoothTransport} over {@link SimulatedPeripheral}s that only exist in memory, for exercising and
+ * load-testing the module without a radio, e.g. under Robolectric on a CI machine.
+ * <p>
+ * Advertisements, batches and notifications are timed on the transport's handler, GATT callbacks on the handler
+ * passed to connect, like the platform does since Android 8.0. With a paused looper the simulation is
+ * deterministic for a given seed. Like the platform stack a connection runs one operation at a time and
+ * refuses to start another while one is outstanding.
+ */
+class SimulatedTransport implements BluetoothTransport {
+  // how long a direct connection attempt to an absent peripheral lasts before it fails with 133
+  static final long CONNECT_TIMEOUT_MS = 30000;
+  // an advertising event is delayed by a random 0 to 10 ms on top of the interval
+  static final long ADVERTISING_DELAY_MS = 10;
+
+  private static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+  private final Handler mHandler;
+  private final Random mRandom;
+  private final Map<String, SimulatedPeripheral> mPeripherals;
+  private final Map<SimulatedPeripheral, Object> mNotifyTokens;
+
+  // adapter capabilities and an optional injected scan failure
+  boolean offloadedScanBatchingSupported;
+  boolean le2MPhySupported;
+  int scanErrorCode;
+
+  @Nullable
+  private ScanListener mScanListener;
+  private List<ScanFilter> mScanFilters;
+  private long mReportDelay;
+  private final ArrayList<ScanResult> mPendingResults;
+  // a new token per scan, so a stopped scan's events can be removed at once
+  @Nullable
+  private Object mScanToken;
+
+  SimulatedTransport(Handler handler, long seed) {
+    mHandler = handler;
+    mRandom = new Random(seed);
+    mPeripherals = new HashMap<>();
+    mNotifyTokens = new IdentityHashMap<>();
+    mScanFilters = Collections.emptyList();
+    mPendingResults = new ArrayList<>();
+    offloadedScanBatchingSupported = true;
+    le2MPhySupported = true;
+  }
+
+  synchronized void addPeripheral(SimulatedPeripheral peripheral) {
+    peripheral.transport = this;
+    mPeripherals.put(peripheral.device.getAddress(), peripheral);
+    if (mScanToken != null) {
+      scheduleAdvertising(peripheral, mScanToken, randomDelay(peripheral.advertisingInterval));
+    }
+  }
+
+  synchronized void removePeripheral(SimulatedPeripheral peripheral) {
+    mPeripherals.remove(peripheral.device.getAddress());
+    peripheral.disconnect(SimulatedPeripheral.GATT_CONN_TIMEOUT);
+    peripheral.transport = null;
+  }
+
+  @Override
+  public boolean isAvailable() {
+    return true;
+  }
+
+  @Override
+  public boolean checkScanPermission() {
+    return true;
+  }
+
+  @Override
+  public boolean isDiscovering() {
+    return false;
+  }
+
+  @Override
+  public boolean isOffloadedScanBatchingSupported() {
+    return offloadedScanBatchingSupported;
+  }
+
+  @Override
+  public boolean isLe2MPhySupported() {
+    return le2MPhySupported;
+  }
+
+  @Override
+  public synchronized boolean startScan(List<ScanFilter> filters, ScanSettings settings, ScanListener listener) {
+    stopScan();
+    if (scanErrorCode != 0) {
+      int errorCode = scanErrorCode;
+      mHandler.post(() -> listener.onScanFailed(errorCode));
+      return true;
+    }
+
+    Object token = new Object();
+    mScanToken = token;
+    mScanListener = listener;
+    mScanFilters = new ArrayList<>(filters);
+    mReportDelay = settings.getReportDelayMillis();
+    for (SimulatedPeripheral peripheral : mPeripherals.values()) {
+      scheduleAdvertising(peripheral, token, randomDelay(peripheral.advertisingInterval));
+    }
+    if (mReportDelay > 0) {
+      scheduleBatch(token);
+    }
+    return true;
+  }
+
+  @Override
+  public synchronized void flushPendingScanResults() {
+    ScanListener listener = mScanListener;
+    if (listener == null || mPendingResults.isEmpty()) {
+      return;
+    }
+    List<ScanResult> batch = new ArrayList<>(mPendingResults);
+    mPendingResults.clear();
+    mHandler.post(() -> listener.onBatchScanResults(batch));
+  }
+
+  @Override
+  public synchronized void stopScan() {
+    if (mScanToken != null) {
+      mHandler.removeCallbacksAndMessages(mScanToken);
+    }
+    mScanToken = null;
+    mScanListener = null;
+    mPendingResults.clear();
+  }
+
+  private void scheduleAdvertising(SimulatedPeripheral peripheral, Object token, long delay) {
+    if (peripheral.advertisingInterval <= 0) {
+      return;
+    }
+    mHandler.postAtTime(() -> advertise(peripheral, token), token, SystemClock.uptimeMillis() + delay);
+  }
+
+  private void advertise(SimulatedPeripheral peripheral, Object token) {
+    ScanListener listener;
+    ScanResult result;
+    synchronized (this) {
+      if (token != mScanToken || mPeripherals.get(peripheral.device.getAddress()) != peripheral) {
+        return;
+      }
+      scheduleAdvertising(peripheral, token, peripheral.advertisingInterval + nextLong(ADVERTISING_DELAY_MS));
+      result = createScanResult(peripheral);
+      if (!matches(result)) {
+        return;
+      }
+      if (mReportDelay > 0) {
+        mPendingResults.add(result);
+        return;
+      }
+      listener = mScanListener;
+    }
+    listener.onScanResult(result);
+  }
+
+  private void scheduleBatch(Object token) {
+    mHandler.postAtTime(() -> {
+      synchronized (this) {
+        if (token != mScanToken) {
+          return;
+        }
+        scheduleBatch(token);
+        flushPendingScanResults();
+      }
+    }, token, SystemClock.uptimeMillis() + mReportDelay);
+  }
+
+  private boolean matches(ScanResult result) {
+    if (mScanFilters.isEmpty()) {
+      return true;
+    }
+    for (ScanFilter filter : mScanFilters) {
+      if (filter.matches(result)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private ScanResult createScanResult(SimulatedPeripheral peripheral) {
+    int rssi = peripheral.rssi;
+    if (peripheral.rssiJitter > 0) {
+      rssi += mRandom.nextInt(peripheral.rssiJitter * 2 + 1) - peripheral.rssiJitter;
+    }
+    return new ScanResult(
+      peripheral.device,
+      parseScanRecord(peripheral.advertisement),
+      rssi,
+      SystemClock.elapsedRealtimeNanos()
+    );
+  }
+
+  @Nullable
+  private static Method sParseFromBytes;
+
+  /**
+   * ScanRecord has no public constructor, the stack's own parser is public but hidden from the SDK.
+   */
+  @Nullable
+  static ScanRecord parseScanRecord(byte[] bytes) {
+    try {
+      if (sParseFromBytes == null) {
+        sParseFromBytes = ScanRecord.class.getMethod("parseFromBytes", byte[].class);
+      }
+      return (ScanRecord) sParseFromBytes.invoke(null, (Object) bytes);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("ScanRecord.parseFromBytes is not available", e);
+    }
+  }
+
+  synchronized void notifyEvery(SimulatedPeripheral peripheral, BluetoothGattCharacteristic characteristic, long interval) {
+    Object previous = mNotifyTokens.remove(peripheral);
+    if (previous != null) {
+      mHandler.removeCallbacksAndMessages(previous);
+    }
+    if (interval <= 0) {
+      return;
+    }
+    Object token = new Object();
+    mNotifyTokens.put(peripheral, token);
+    scheduleNotification(peripheral, characteristic, interval, token);
+  }
+
+  private void scheduleNotification(SimulatedPeripheral peripheral, BluetoothGattCharacteristic characteristic, long interval, Object token) {
+    mHandler.postAtTime(() -> {
+      synchronized (this) {
+        if (mNotifyTokens.get(peripheral) != token) {
+          return;
+        }
+        scheduleNotification(peripheral, characteristic, interval, token);
+      }
+      peripheral.sendNotification(characteristic, peripheral.getValue(characteristic));
+    }, token, SystemClock.uptimeMillis() + interval);
+  }
+
+  @Override
+  public synchronized GattConnection connect(BluetoothDevice device, GattConnection.Listener listener, Handler handler, boolean autoConnect) {
+    SimulatedPeripheral peripheral = mPeripherals.get(device.getAddress());
+    Connection connection = new Connection(peripheral, listener, handler);
+    if (peripheral == null && autoConnect) {
+      // a background connection waits for the peripheral, one added later is not picked up though
+      return connection;
+    }
+    if (peripheral == null) {
+      connection.schedule(CONNECT_TIMEOUT_MS, () -> connection.onConnectFailed(SimulatedPeripheral.GATT_ERROR));
+    } else if (peripheral.connectStatus != BluetoothGatt.GATT_SUCCESS) {
+      int status = peripheral.connectStatus;
+      connection.schedule(latency(peripheral, peripheral.connectLatency), () -> connection.onConnectFailed(status));
+    } else {
+      connection.schedule(latency(peripheral, peripheral.connectLatency), connection::onConnected);
+    }
+    return connection;
+  }
+
+  private long latency(SimulatedPeripheral peripheral, long base) {
+    return base + nextLong(peripheral.latencyJitter);
+  }
+
+  private long randomDelay(long bound) {
+    return nextLong(Math.max(1, bound));
+  }
+
+  private long nextLong(long bound) {
+    return bound > 0 ? (long) (mRandom.nextDouble() * (bound + 1)) : 0;
+  }
+
+  private boolean chance(double rate) {
+    return rate > 0 && mRandom.nextDouble() < rate;
+  }
+
+  /**
+   * One central's connection to a simulated peripheral.
+   */
+  final class Connection implements GattConnection {
+    @Nullable
+    private final SimulatedPeripheral mPeripheral;
+    private final Listener mListener;
+    private final Handler mHandler;
+    private final Object mToken;
+    // characteristics whose CCC descriptor enables notifications or indications
+    private final Map<BluetoothGattCharacteristic, Boolean> mNotifying;
+
+    private boolean mConnected;
+    private boolean mClosed;
+    private boolean mBusy;
+    private boolean mDiscovered;
+    private int mCompleted;
+
+    Connection(@Nullable SimulatedPeripheral peripheral, Listener listener, Handler handler) {
+      mPeripheral = peripheral;
+      mListener = listener;
+      mHandler = handler;
+      mToken = new Object();
+      mNotifying = new IdentityHashMap<>();
+    }
+
+    void schedule(long delay, Runnable event) {
+      mHandler.postAtTime(event, mToken, SystemClock.uptimeMillis() + delay);
+    }
+
+    void onConnected() {
+      synchronized (SimulatedTransport.this) {
+        if (mClosed) {
+          return;
+        }
+        mConnected = true;
+        mPeripheral.connection = this;
+      }
+      mListener.onConnectionStateChange(BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+    }
+
+    void onConnectFailed(int status) {
+      synchronized (SimulatedTransport.this) {
+        if (mClosed) {
+          return;
+        }
+      }
+      mListener.onConnectionStateChange(status, BluetoothProfile.STATE_DISCONNECTED);
+    }
+
+    /**
+     * The link went away, every pending completion is dropped.
+     */
+    void lose(int status) {
+      synchronized (SimulatedTransport.this) {
+        if (!mConnected) {
+          return;
+        }
+        release();
+      }
+      mHandler.post(() -> mListener.onConnectionStateChange(status, BluetoothProfile.STATE_DISCONNECTED));
+    }
+
+    void sendNotification(BluetoothGattCharacteristic characteristic, byte[] value) {
+      synchronized (SimulatedTransport.this) {
+        if (!mConnected || !mNotifying.containsKey(characteristic)) {
+          return;
+        }
+      }
+      schedule(0, () -> {
+        if (isConnected()) {
+          mListener.onCharacteristicChanged(characteristic, value);
+        }
+      });
+    }
+
+    void changeServices() {
+      synchronized (SimulatedTransport.this) {
+        if (!mConnected) {
+          return;
+        }
+        mDiscovered = false;
+        mNotifying.clear();
+      }
+      schedule(0, () -> {
+        if (isConnected()) {
+          mListener.onServiceChanged();
+        }
+      });
+    }
+
+    private boolean isConnected() {
+      synchronized (SimulatedTransport.this) {
+        return mConnected;
+      }
+    }
+
+    private void release() {
+      mConnected = false;
+      mBusy = false;
+      mNotifying.clear();
+      mHandler.removeCallbacksAndMessages(mToken);
+      if (mPeripheral != null && mPeripheral.connection == this) {
+        mPeripheral.connection = null;
+      }
+    }
+
+    /**
+     * Claim the connection for an operation, false when it is down, busy or the injected refusal hits.
+     */
+    private boolean begin() {
+      synchronized (SimulatedTransport.this) {
+        if (!mConnected || mBusy || chance(mPeripheral.refuseRate)) {
+          return false;
+        }
+        mBusy = true;
+        return true;
+      }
+    }
+
+    /**
+     * Complete the running operation after the peripheral's latency with a status the completion receives.
+     */
+    private void complete(Completion completion) {
+      long delay = latency(mPeripheral, mPeripheral.operationLatency);
+      boolean dropped = chance(mPeripheral.dropRate);
+      int status = chance(mPeripheral.errorRate) ? mPeripheral.errorStatus : BluetoothGatt.GATT_SUCCESS;
+      schedule(delay, () -> {
+        synchronized (SimulatedTransport.this) {
+          if (!mConnected) {
+            return;
+          }
+          mBusy = false;
+          if (dropped) {
+            return;
+          }
+          mCompleted++;
+          if (mPeripheral.disconnectAfter > 0 && mCompleted >= mPeripheral.disconnectAfter) {
+            release();
+            mHandler.post(() -> mListener.onConnectionStateChange(SimulatedPeripheral.GATT_CONN_TIMEOUT, BluetoothProfile.STATE_DISCONNECTED));
+            return;
+          }
+        }
+        completion.run(status);
+      });
+    }
+
+    @Override
+    public boolean discoverServices() {
+      if (!begin()) {
+        return false;
+      }
+      complete(status -> {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+          synchronized (SimulatedTransport.this) {
+            mDiscovered = true;
+          }
+        }
+        mListener.onServicesDiscovered(status);
+      });
+      return true;
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+      synchronized (SimulatedTransport.this) {
+        return mDiscovered ? new ArrayList<>(mPeripheral.services) : new ArrayList<>();
+      }
+    }
+
+    @Nullable
+    @Override
+    public BluetoothGattService getService(UUID uuid) {
+      for (BluetoothGattService service : getServices()) {
+        if (service.getUuid().equals(uuid)) {
+          return service;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+      if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) == 0 || !begin()) {
+        return false;
+      }
+      complete(status -> mListener.onCharacteristicRead(
+        characteristic,
+        status == BluetoothGatt.GATT_SUCCESS ? mPeripheral.getValue(characteristic) : new byte[0],
+        status
+      ));
+      return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, int writeType) {
+      int property = writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+        ? BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE
+        : BluetoothGattCharacteristic.PROPERTY_WRITE;
+      if ((characteristic.getProperties() & property) == 0 || !begin()) {
+        return false;
+      }
+      byte[] copy = value.clone();
+      complete(status -> {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+          mPeripheral.setValue(characteristic, copy);
+        }
+        mListener.onCharacteristicWrite(characteristic, status);
+      });
+      return true;
+    }
+
+    @Override
+    public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+      if (!begin()) {
+        return false;
+      }
+      complete(status -> mListener.onDescriptorRead(
+        descriptor,
+        status == BluetoothGatt.GATT_SUCCESS ? mPeripheral.getValue(descriptor) : new byte[0],
+        status
+      ));
+      return true;
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+      if (!begin()) {
+        return false;
+      }
+      byte[] copy = value.clone();
+      complete(status -> {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+          mPeripheral.setValue(descriptor, copy);
+          if (CLIENT_CHARACTERISTIC_CONFIG.equals(descriptor.getUuid())) {
+            synchronized (SimulatedTransport.this) {
+              if (copy.length > 0 && copy[0] != 0) {
+                mNotifying.put(descriptor.getCharacteristic(), Boolean.TRUE);
+              } else {
+                mNotifying.remove(descriptor.getCharacteristic());
+              }
+            }
+          }
+        }
+        mListener.onDescriptorWrite(descriptor, status);
+      });
+      return true;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+      return isConnected();
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+      if (!begin()) {
+        return false;
+      }
+      int negotiated = Math.max(GattSession.DEFAULT_MTU, Math.min(mtu, mPeripheral.maxMtu));
+      complete(status -> mListener.onMtuChanged(
+        status == BluetoothGatt.GATT_SUCCESS ? negotiated : GattSession.DEFAULT_MTU,
+        status
+      ));
+      return true;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+      return isConnected();
+    }
+
+    @Override
+    public void setPreferredPhy(int txPhy, int rxPhy, int phyOptions) {
+      if (!isConnected()) {
+        return;
+      }
+      boolean le2M = le2MPhySupported && mPeripheral.le2MPhy;
+      int tx = le2M && (txPhy & BluetoothDevice.PHY_LE_2M_MASK) != 0 ? BluetoothDevice.PHY_LE_2M : BluetoothDevice.PHY_LE_1M;
+      int rx = le2M && (rxPhy & BluetoothDevice.PHY_LE_2M_MASK) != 0 ? BluetoothDevice.PHY_LE_2M : BluetoothDevice.PHY_LE_1M;
+      // the PHY update is a link layer procedure, it does not occupy the GATT client
+      schedule(latency(mPeripheral, mPeripheral.operationLatency), () -> {
+        if (isConnected()) {
+          mListener.onPhyUpdate(tx, rx, BluetoothGatt.GATT_SUCCESS);
+        }
+      });
+    }
+
+    @Override
+    public void disconnect() {
+      boolean connected;
+      synchronized (SimulatedTransport.this) {
+        connected = mConnected;
+        release();
+      }
+      // also ends a pending connection attempt
+      long delay = connected ? latency(mPeripheral, mPeripheral.operationLatency) : 0;
+      schedule(delay, () -> mListener.onConnectionStateChange(BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED));
+    }
+
+    @Override
+    public void close() {
+      synchronized (SimulatedTransport.this) {
+        mClosed = true;
+        release();
+      }
+    }
+  }
+
+  private interface Completion {
+    void run(int status);
+  }
+}
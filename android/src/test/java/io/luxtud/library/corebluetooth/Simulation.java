@@ -0,0 +1,242 @@
+package io.luxtud.library.corebluetooth;
+
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A {@link CoreBluetooth} on a {@link SimulatedTransport}, with the clock under the test's control.
+ * <p>
+ * The simulated radio runs on the main looper and the module on its bluetooth thread, both paused by Robolectric.
+ * {@link #advance(long)} moves the clock from task to task and lets both loopers run whatever came due, so a
+ * run is deterministic for a given seed. Events the module emits are collected in order.
+ */
+final class Simulation {
+  static final UUID SERVICE = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+  static final UUID CHARACTERISTIC = UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");
+  static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+  static final class Event {
+    final String name;
+    final Object data;
+
+    Event(String name, Object data) {
+      this.name = name;
+      this.data = data;
+    }
+  }
+
+  final SimulatedTransport transport;
+  final CoreBluetooth bluetooth;
+
+  private final ShadowLooper mRadioLooper;
+  private final ShadowLooper mBluetoothLooper;
+  private final List<Event> mEvents;
+
+  Simulation(long seed) {
+    transport = new SimulatedTransport(new Handler(Looper.getMainLooper()), seed);
+    bluetooth = new CoreBluetooth(RuntimeEnvironment.getApplication(), transport);
+    mRadioLooper = shadowOf(Looper.getMainLooper());
+    mBluetoothLooper = shadowOf(bluetooth.getLooper());
+    mEvents = Collections.synchronizedList(new ArrayList<>());
+    bluetooth.setEmitter((name, data) -> mEvents.add(new Event(name, data)));
+  }
+
+  /**
+   * A peripheral advertising its name and the given manufacturer data, with one service whose characteristic
+   * can be read, written and subscribed to.
+   */
+  static SimulatedPeripheral peripheral(String address, String name, int companyId, byte... manufacturerData) {
+    SimulatedPeripheral peripheral = new SimulatedPeripheral(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address));
+    peripheral.advertisement = advertisement(name, companyId, manufacturerData);
+
+    BluetoothGattService service = new BluetoothGattService(SERVICE, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+    BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+      CHARACTERISTIC,
+      BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+      BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE
+    );
+    characteristic.addDescriptor(new BluetoothGattDescriptor(
+      CLIENT_CHARACTERISTIC_CONFIG,
+      BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE
+    ));
+    service.addCharacteristic(characteristic);
+    peripheral.services.add(service);
+    return peripheral;
+  }
+
+  /**
+   * Flags, complete local name and manufacturer specific data, company id little endian.
+   */
+  static byte[] advertisement(String name, int companyId, byte... manufacturerData) {
+    byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+    byte[] bytes = new byte[3 + 2 + nameBytes.length + 4 + manufacturerData.length];
+    int i = 0;
+    bytes[i++] = 2;
+    bytes[i++] = 0x01;
+    bytes[i++] = 0x06;
+    bytes[i++] = (byte) (nameBytes.length + 1);
+    bytes[i++] = 0x09;
+    System.arraycopy(nameBytes, 0, bytes, i, nameBytes.length);
+    i += nameBytes.length;
+    bytes[i++] = (byte) (manufacturerData.length + 3);
+    bytes[i++] = (byte) 0xff;
+    bytes[i++] = (byte) companyId;
+    bytes[i++] = (byte) (companyId >> 8);
+    System.arraycopy(manufacturerData, 0, bytes, i, manufacturerData.length);
+    return bytes;
+  }
+
+  static BluetoothGattCharacteristic characteristicOf(SimulatedPeripheral peripheral) {
+    return peripheral.services.get(0).getCharacteristic(CHARACTERISTIC);
+  }
+
+  /**
+   * Scan until the peripheral was reported and return its identifier.
+   */
+  String discover(SimulatedPeripheral peripheral) {
+    int from = events().size();
+    TestPromise started = new TestPromise();
+    bluetooth.startScan(Collections.emptyList(), started);
+    advance(peripheral.advertisingInterval + SimulatedTransport.ADVERTISING_DELAY_MS);
+    TestPromise stopped = new TestPromise();
+    bluetooth.stopScan(stopped);
+    idle();
+    assertTrue(started.isResolved() && stopped.isResolved());
+
+    String name = new String(peripheral.advertisement, 5, peripheral.advertisement[3] - 1, StandardCharsets.US_ASCII);
+    List<Event> events = events();
+    for (int i = from; i < events.size(); i++) {
+      ReadableMap device = device(events.get(i), name);
+      if (device != null) {
+        return device.getString("identifier");
+      }
+    }
+    throw new AssertionError("peripheral " + name + " was not found");
+  }
+
+  /**
+   * Discover, connect to and discover the services of the peripheral, return its identifier.
+   */
+  String connect(SimulatedPeripheral peripheral) {
+    String identifier = discover(peripheral);
+    TestPromise connected = new TestPromise();
+    bluetooth.connect(identifier, connected);
+    advance(peripheral.connectLatency + peripheral.latencyJitter);
+    assertTrue("connect settled with " + connected.getCode(), connected.isResolved());
+
+    TestPromise discovered = new TestPromise();
+    bluetooth.discoverServices(identifier, discovered);
+    advance(peripheral.operationLatency + peripheral.latencyJitter);
+    assertTrue("discoverServices settled with " + discovered.getCode(), discovered.isResolved());
+    return identifier;
+  }
+
+  /**
+   * The device map of a 'FoundBLEDevice' or 'FoundBLEDevices' event for the device with that name.
+   */
+  @Nullable
+  static ReadableMap device(Event event, String name) {
+    if (event.name.equals("FoundBLEDevice")) {
+      ReadableMap device = (ReadableMap) event.data;
+      return name.equals(device.getString("name")) ? device : null;
+    }
+    if (event.name.equals("FoundBLEDevices")) {
+      ReadableArray devices = (ReadableArray) event.data;
+      for (int i = 0; i < devices.size(); i++) {
+        if (name.equals(devices.getMap(i).getString("name"))) {
+          return devices.getMap(i);
+        }
+      }
+    }
+    return null;
+  }
+
+  List<Event> events() {
+    synchronized (mEvents) {
+      return new ArrayList<>(mEvents);
+    }
+  }
+
+  List<Event> events(String name) {
+    List<Event> events = new ArrayList<>();
+    for (Event event : events()) {
+      if (event.name.equals(name)) {
+        events.add(event);
+      }
+    }
+    return events;
+  }
+
+  ReadableMap stats() {
+    TestPromise stats = new TestPromise();
+    bluetooth.getStats(stats);
+    idle();
+    return (ReadableMap) stats.getValue();
+  }
+
+  /**
+   * Run everything that is due on either looper, including what the tasks post to the other one.
+   */
+  void idle() {
+    do {
+      mRadioLooper.idle();
+      mBluetoothLooper.idle();
+    } while (!mRadioLooper.isIdle() || !mBluetoothLooper.isIdle());
+  }
+
+  /**
+   * Let ms of simulated time pass, running every task in the order it comes due.
+   */
+  void advance(long ms) {
+    long deadline = SystemClock.uptimeMillis() + ms;
+    idle();
+    while (true) {
+      long next = Math.min(nextTaskTime(mRadioLooper), nextTaskTime(mBluetoothLooper));
+      if (next > deadline) {
+        break;
+      }
+      ShadowSystemClock.advanceBy(Duration.ofMillis(Math.max(0, next - SystemClock.uptimeMillis())));
+      idle();
+    }
+    ShadowSystemClock.advanceBy(Duration.ofMillis(deadline - SystemClock.uptimeMillis()));
+    idle();
+  }
+
+  private static long nextTaskTime(ShadowLooper looper) {
+    // zero when nothing is scheduled
+    long next = looper.getNextScheduledTaskTime().toMillis();
+    return next > 0 ? next : Long.MAX_VALUE;
+  }
+
+  /**
+   * Destroy the module, which ends its bluetooth thread.
+   */
+  void close() {
+    bluetooth.destroy();
+    mBluetoothLooper.idle();
+  }
+}
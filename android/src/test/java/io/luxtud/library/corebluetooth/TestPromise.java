@@ -0,0 +1,106 @@
+package io.luxtud.library.corebluetooth;
+
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Promise that remembers how it was settled, for tests that call the module the way js does.
+ * Settled on the bluetooth thread and read on the test's after the loopers ran.
+ */
+final class TestPromise implements Promise {
+  private volatile boolean mSettled;
+  @Nullable
+  private volatile Object mValue;
+  @Nullable
+  private volatile String mCode;
+
+  boolean isSettled() {
+    return mSettled;
+  }
+
+  boolean isResolved() {
+    return mSettled && mCode == null;
+  }
+
+  boolean isRejected() {
+    return mSettled && mCode != null;
+  }
+
+  @Nullable
+  Object getValue() {
+    return mValue;
+  }
+
+  @Nullable
+  String getCode() {
+    return mCode;
+  }
+
+  @Override
+  public void resolve(@Nullable Object value) {
+    settle(value, null);
+  }
+
+  @Override
+  public void reject(String code, String message) {
+    settle(null, code);
+  }
+
+  @Override
+  public void reject(String code, Throwable throwable) {
+    settle(null, code);
+  }
+
+  @Override
+  public void reject(String code, String message, Throwable throwable) {
+    settle(null, code);
+  }
+
+  @Override
+  public void reject(Throwable throwable) {
+    settle(null, "EUNSPECIFIED");
+  }
+
+  @Override
+  public void reject(Throwable throwable, WritableMap userInfo) {
+    settle(null, "EUNSPECIFIED");
+  }
+
+  @Override
+  public void reject(String code, WritableMap userInfo) {
+    settle(null, code);
+  }
+
+  @Override
+  public void reject(String code, Throwable throwable, WritableMap userInfo) {
+    settle(null, code);
+  }
+
+  @Override
+  public void reject(String code, String message, WritableMap userInfo) {
+    settle(null, code);
+  }
+
+  @Override
+  public void reject(String code, String message, Throwable throwable, WritableMap userInfo) {
+    settle(null, code);
+  }
+
+  @Override
+  @Deprecated
+  public void reject(String message) {
+    settle(null, "EUNSPECIFIED");
+  }
+
+  private void settle(@Nullable Object value, @Nullable String code) {
+    // like the bridge's promise, only the first outcome counts
+    if (mSettled) {
+      return;
+    }
+    mValue = value;
+    mCode = code;
+    mSettled = true;
+  }
+}
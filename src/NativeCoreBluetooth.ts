@@ -1,12 +1,26 @@
 import type { TurboModule } from 'react-native';
 import { TurboModuleRegistry } from 'react-native';
 
-interface GattServices {
-  serviceIds: string[];
-  characteristics: string[];
+interface CBCharacteristic {
+  uuid: string;
+  instanceId: number;
+  handle: number;
+  properties: number;
+  permissions: number;
   descriptors: string[];
 }
 
+interface CBService {
+  uuid: string;
+  instanceId: number;
+  isPrimary: boolean;
+  characteristics: CBCharacteristic[];
+}
+
+interface GattServices {
+  services: CBService[];
+}
+
 interface CBCharacteristicData {
   uuid: string;
   data: string;
@@ -18,36 +32,172 @@ interface CBDescriptorData {
   data: string;
 }
 
+interface CBWriteStreamResult {
+  bytesWritten: number;
+  totalBytes: number;
+  duration: number;
+  bytesPerSecond: number;
+}
+
+interface CBGattTarget {
+  serviceId: string;
+  characteristicId: string;
+  descriptorId?: string;
+  data?: string;
+}
+
+interface CBGattBatchItem {
+  serviceId: string;
+  characteristicId: string;
+  descriptorId?: string;
+  ok: boolean;
+  data?: string;
+  code?: string;
+  message?: string;
+}
+
+interface CBGattBatchResult {
+  results: CBGattBatchItem[];
+  succeeded: number;
+  failed: number;
+  duration: number;
+}
+
+interface CBPhy {
+  txPhy: number;
+  rxPhy: number;
+}
+
+interface CBScanRule {
+  companyId?: number;
+  offset?: number;
+  prefix?: string;
+  mask?: string;
+  serviceUuid?: string;
+  serviceDataUuid?: string;
+  serviceData?: string;
+  serviceDataMask?: string;
+  namePrefix?: string;
+  rssiFloor?: number;
+}
+
+interface CBLatency {
+  count: number;
+  min: number;
+  mean: number;
+  p50: number;
+  p90: number;
+  p99: number;
+  p999: number;
+  max: number;
+}
+
+interface CBGattStats {
+  connects: number;
+  connectFailures: number;
+  refused: number;
+  timeouts: number;
+  notifications: number;
+  notificationsPerSecond: number;
+  latency: { [operation: string]: CBLatency };
+}
+
+interface CBStats {
+  elapsed: number;
+  scan: {
+    results: number;
+    resultsPerSecond: number;
+    filtered: number;
+    suppressed: number;
+    forwarded: number;
+  };
+  total: CBGattStats;
+  devices: { [identifier: string]: CBGattStats };
+}
+
+interface CBRecording {
+  path: string;
+  records: number;
+  bytes: number;
+  dropped: number;
+}
+
 export interface Spec extends TurboModule {
   startScan(): Promise<void>;
   startScanByCompanyId(companyIds: number[]): Promise<void>;
+  startScanWithRules(rules: CBScanRule[]): Promise<void>;
   stopScan(): Promise<void>;
   isDiscovering(): Promise<boolean>;
   checkAdvertisePermission(): Promise<boolean>;
   checkScanPermission(): Promise<boolean>;
-  connect(identifier: string): void;
-  disconnect(): void;
-  discoverServices(): Promise<GattServices>;
+  connect(identifier: string): Promise<void>;
+  disconnect(identifier: string): Promise<void>;
+  discoverServices(identifier: string): Promise<GattServices>;
   writeCharacteristic(
+    identifier: string,
     serviceId: string,
     uuid: string,
     data: string
   ): Promise<void>;
+  writeCharacteristicByHandle(
+    identifier: string,
+    handle: number,
+    data: string
+  ): Promise<void>;
+  writeCharacteristicStream(
+    identifier: string,
+    serviceId: string,
+    uuid: string,
+    payloads: string[]
+  ): Promise<CBWriteStreamResult>;
   readCharacteristic(
+    identifier: string,
     serviceId: string,
     uuid: string
   ): Promise<CBCharacteristicData>;
+  readCharacteristicByHandle(
+    identifier: string,
+    handle: number
+  ): Promise<CBCharacteristicData>;
+  setNotifyCharacteristic(
+    identifier: string,
+    serviceId: string,
+    uuid: string,
+    enable: boolean
+  ): Promise<number | null>;
   writeDescriptor(
+    identifier: string,
     serviceId: string,
     characteristicId: string,
     uuid: string,
     data: string
   ): Promise<void>;
   readDescriptor(
+    identifier: string,
     serviceId: string,
     characteristicId: string,
     uuid: string
   ): Promise<CBDescriptorData>;
+  readMany(
+    identifier: string,
+    targets: CBGattTarget[]
+  ): Promise<CBGattBatchResult>;
+  writeMany(
+    identifier: string,
+    targets: CBGattTarget[]
+  ): Promise<CBGattBatchResult>;
+  requestMtu(identifier: string, mtu: number): Promise<number>;
+  requestConnectionPriority(identifier: string, priority: number): Promise<void>;
+  setPreferredPhy(
+    identifier: string,
+    txPhy: number,
+    rxPhy: number,
+    phyOptions: number
+  ): Promise<CBPhy>;
+  getStats(): Promise<CBStats>;
+  resetStats(): Promise<void>;
+  startRecording(): Promise<string>;
+  stopRecording(): Promise<CBRecording>;
   requestAdvertisePermission(): Promise<void>;
   requestScanPermissions(): Promise<void>;
 }